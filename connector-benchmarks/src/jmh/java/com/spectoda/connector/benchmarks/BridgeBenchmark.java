@@ -0,0 +1,57 @@
+package com.spectoda.connector.benchmarks;
+
+import com.spectoda.connector.codec.Base64Codec;
+import com.spectoda.connector.codec.JavascriptCallBatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A #bytecode notification on its way to the page, as the script the old bridge spliced a boxed
+ * list into and as a call of the batch with the bytes in base64.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BridgeBenchmark {
+    byte[] notification;
+    String encoded;
+    JavascriptCallBatch batch;
+
+    @Setup
+    public void setUp() {
+        notification = new byte[512];
+        new Random(1).nextBytes(notification);
+        encoded = Base64Codec.encode(notification);
+        batch = new JavascriptCallBatch("window.tangleConnect");
+    }
+
+    @Benchmark
+    public String boxedListScript() {
+        ArrayList<Integer> bytes = new ArrayList<>(notification.length);
+        for (byte datum : notification) {
+            bytes.add(datum & 0xFF);
+        }
+        return "javascript:window.tangleConnect.emit('#bytecode', " + bytes + ");";
+    }
+
+    @Benchmark
+    public String batchedScript() {
+        batch.add("emit", "#bytecode", notification);
+        return batch.drain();
+    }
+
+    @Benchmark
+    public byte[] decodeInbound() {
+        return Base64Codec.decode(encoded);
+    }
+}
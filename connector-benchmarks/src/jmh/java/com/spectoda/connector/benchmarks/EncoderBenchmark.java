@@ -0,0 +1,64 @@
+package com.spectoda.connector.benchmarks;
+
+import com.spectoda.connector.codec.ByteEncoders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Value encoders every terminal command goes through, with the values the web app sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncoderBenchmark {
+    // Fields rather than constants so the JIT cannot fold the encodings
+    int timestamp = 123_456_789;
+    long clock = 1_650_000_000_123L;
+    String color = "#ff8800";
+    String invalidColor = "#FF8800";
+    float percentage = 42.5F;
+    String label = "toggl";
+    String longLabel = "brightness";
+
+    @Benchmark
+    public byte[] integerToBytes() {
+        return ByteEncoders.integerToBytes(timestamp, 4);
+    }
+
+    @Benchmark
+    public byte[] longToBytes() {
+        return ByteEncoders.longToBytes(clock, 8);
+    }
+
+    @Benchmark
+    public byte[] colorToBytes() {
+        return ByteEncoders.colorToBytes(color);
+    }
+
+    @Benchmark
+    public byte[] colorToBytes_invalid() {
+        return ByteEncoders.colorToBytes(invalidColor);
+    }
+
+    @Benchmark
+    public byte[] percentageToBytes() {
+        return ByteEncoders.percentageToBytes(percentage);
+    }
+
+    @Benchmark
+    public byte[] labelToBytes() {
+        return ByteEncoders.labelToBytes(label);
+    }
+
+    @Benchmark
+    public byte[] labelToBytes_truncated() {
+        return ByteEncoders.labelToBytes(longLabel);
+    }
+}
@@ -0,0 +1,90 @@
+package com.spectoda.connector.benchmarks;
+
+import com.spectoda.connector.codec.ByteEncoders;
+import com.spectoda.connector.protocol.FrameFragmenter;
+import com.spectoda.connector.protocol.FramePool;
+import com.spectoda.connector.protocol.FrameSizing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing of one payload into GATT packets: a short command, a typical deliver, a tngl upload
+ * and an OTA-sized blob, at the default, the common Android and the largest MTU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FramingBenchmark {
+    @Param({"16", "256", "1024", "16384"})
+    int payloadSize;
+
+    @Param({"23", "247", "517"})
+    int mtu;
+
+    byte[] payload;
+    long payloadId = 0x12345678L;
+    FrameFragmenter fragmenter;
+    int packetSize;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        packetSize = FrameSizing.packetSize(mtu, FrameSizing.MAX_PACKET_SIZE);
+        fragmenter = new FrameFragmenter(new FramePool(FrameSizing.MAX_PACKET_SIZE), packetSize);
+    }
+
+    /**
+     * What the operation queue does per payload, frames go back to the pool once written.
+     */
+    @Benchmark
+    public void fragmenter(Blackhole blackhole) {
+        fragmenter.reset(payloadId, payload);
+        while (fragmenter.hasNext()) {
+            ByteBuffer frame = fragmenter.next();
+            blackhole.consume(frame.array());
+            fragmenter.release(frame);
+        }
+    }
+
+    /**
+     * Baseline of the framing {@code SpectodaBluetoothServices.writeBytes} did before the
+     * fragmenter, kept to show what the fragmenter saves.
+     */
+    @Benchmark
+    public void legacyWriteBytes(Blackhole blackhole) throws IOException {
+        int bytesSize = packetSize - FrameFragmenter.HEADER_SIZE;
+        int indexFrom = 0;
+        int indexTo = bytesSize;
+
+        while (indexFrom < payload.length) {
+            if (indexTo > payload.length) {
+                indexTo = payload.length;
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            outputStream.write(ByteEncoders.longToBytes(payloadId, 4));
+            outputStream.write(ByteEncoders.longToBytes(indexFrom, 4));
+            outputStream.write(ByteEncoders.longToBytes(payload.length, 4));
+            outputStream.write(Arrays.copyOfRange(payload, indexFrom, indexTo));
+            blackhole.consume(outputStream.toByteArray());
+
+            indexFrom += bytesSize;
+            indexTo = indexFrom + bytesSize;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.spectoda.connector.benchmarks;
+
+import com.spectoda.connector.codec.ManufacturerData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing runs once per scan result, filter compilation once per scan start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ManufacturerDataBenchmark {
+    String ownerSignature = "a06cd5c4d5741b61fee69422f2590926";
+    String fwVersion = "0.8.12";
+    String otherFwVersion = "!0.8.12";
+    int productCode = 2;
+    byte[] advertisement;
+
+    @Setup
+    public void setUp() {
+        advertisement = new byte[ManufacturerData.LENGTH];
+        advertisement[0] = (byte) 0x2c;
+        advertisement[1] = (byte) 0x03;
+        advertisement[2] = (byte) productCode;
+        for (int i = 0; i < 16; i++) {
+            advertisement[4 + i] = (byte) Integer.parseInt(ownerSignature.substring(i * 2, i * 2 + 2), 16);
+        }
+        advertisement[20] = 1;
+    }
+
+    @Benchmark
+    public ManufacturerData parse() {
+        return ManufacturerData.parse(advertisement);
+    }
+
+    @Benchmark
+    public List<ManufacturerData.Filter> compileFilters_exactVersion() {
+        return ManufacturerData.compileFilters(fwVersion, productCode, ownerSignature, false);
+    }
+
+    @Benchmark
+    public List<ManufacturerData.Filter> compileFilters_otherVersions() {
+        return ManufacturerData.compileFilters(otherFwVersion, productCode, ownerSignature, false);
+    }
+}
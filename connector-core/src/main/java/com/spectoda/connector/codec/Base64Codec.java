@@ -0,0 +1,103 @@
+package com.spectoda.connector.codec;
+
+import java.util.Arrays;
+
+/**
+ * Standard base64 with padding, the alphabet of atob and btoa, for byte arrays that cross the
+ * JavaScript bridge. java.util.Base64 is not available below API 26.
+ */
+public final class Base64Codec {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    public static String encode(byte[] bytes) {
+        StringBuilder text = new StringBuilder(encodedLength(bytes.length));
+        encode(bytes, text);
+        return text.toString();
+    }
+
+    /**
+     * Appends the encoded bytes, without an intermediate string.
+     */
+    public static void encode(byte[] bytes, StringBuilder text) {
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int group = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+            text.append(ALPHABET[group >> 18])
+                    .append(ALPHABET[(group >> 12) & 0x3F])
+                    .append(ALPHABET[(group >> 6) & 0x3F])
+                    .append(ALPHABET[group & 0x3F]);
+        }
+        int remaining = bytes.length - i;
+        if (remaining == 1) {
+            int group = (bytes[i] & 0xFF) << 16;
+            text.append(ALPHABET[group >> 18])
+                    .append(ALPHABET[(group >> 12) & 0x3F])
+                    .append("==");
+        } else if (remaining == 2) {
+            int group = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8;
+            text.append(ALPHABET[group >> 18])
+                    .append(ALPHABET[(group >> 12) & 0x3F])
+                    .append(ALPHABET[(group >> 6) & 0x3F])
+                    .append('=');
+        }
+    }
+
+    public static int encodedLength(int byteCount) {
+        return (byteCount + 2) / 3 * 4;
+    }
+
+    /**
+     * @throws IllegalArgumentException When the text is not padded base64.
+     */
+    public static byte[] decode(String text) {
+        int length = text.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Base64 length " + length + " is not a multiple of 4");
+        }
+        int padding = 0;
+        if (length > 0 && text.charAt(length - 1) == '=') {
+            padding = text.charAt(length - 2) == '=' ? 2 : 1;
+        }
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        int index = 0;
+        for (int i = 0; i < length; i += 4) {
+            // Padding only ends the last group, an '=' anywhere else is an illegal character
+            int count = i + 4 == length ? 3 - padding : 3;
+            int group = value(text, i) << 18 | value(text, i + 1) << 12;
+            if (count > 1) {
+                group |= value(text, i + 2) << 6;
+            }
+            if (count > 2) {
+                group |= value(text, i + 3);
+            }
+            bytes[index++] = (byte) (group >> 16);
+            if (count > 1) {
+                bytes[index++] = (byte) (group >> 8);
+            }
+            if (count > 2) {
+                bytes[index++] = (byte) group;
+            }
+        }
+        return bytes;
+    }
+
+    private static int value(String text, int index) {
+        char c = text.charAt(index);
+        int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal base64 character '" + c + "' at " + index);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,139 @@
+package com.spectoda.connector.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Calls to functions of a page object, collected from any thread and run by one script. The
+ * calls are kept as a JSON array of [function, arguments...] entries and applied in order, a call
+ * that throws does not stop the ones after it.
+ * <p>
+ * Arguments may be null, strings, numbers, booleans or byte arrays. A byte array travels as base64
+ * and the script decodes it into an array of its unsigned values, the page gets the same arrays
+ * without the decimal text of every byte in the script.
+ */
+public final class JavascriptCallBatch {
+    // Runs the calls on t, with the {"b": base64} arguments decoded into arrays of bytes
+    private static final String RUNNER = "(function(t,c){"
+            + "function d(v){if(v===null||typeof v!==\"object\")return v;"
+            + "var s=atob(v.b),a=new Array(s.length);for(var j=0;j<s.length;j++)a[j]=s.charCodeAt(j);return a;}"
+            + "for(var i=0;i<c.length;i++){try{t[c[i][0]].apply(t,c[i].slice(1).map(d));}catch(e){console.error(e);}}})(";
+
+    private final String target;
+    private List<String> calls = new ArrayList<>();
+
+    /**
+     * @param target Expression of the object the functions are called on, e.g. window.tangleConnect
+     */
+    public JavascriptCallBatch(String target) {
+        this.target = target;
+    }
+
+    /**
+     * @return Whether the batch was empty, the caller schedules the run then.
+     */
+    public boolean add(String function, Object... arguments) {
+        StringBuilder call = new StringBuilder(32);
+        call.append('[');
+        appendString(call, function);
+        for (Object argument : arguments) {
+            call.append(',');
+            appendValue(call, argument);
+        }
+        call.append(']');
+        synchronized (this) {
+            calls.add(call.toString());
+            return calls.size() == 1;
+        }
+    }
+
+    public synchronized int size() {
+        return calls.size();
+    }
+
+    public synchronized void clear() {
+        calls.clear();
+    }
+
+    /**
+     * Takes the calls out of the batch.
+     *
+     * @return Script running them, null when there are none.
+     */
+    public String drain() {
+        List<String> drained;
+        synchronized (this) {
+            if (calls.isEmpty()) {
+                return null;
+            }
+            drained = calls;
+            calls = new ArrayList<>();
+        }
+        int length = RUNNER.length() + target.length() + 4;
+        for (String call : drained) {
+            length += call.length() + 1;
+        }
+        StringBuilder script = new StringBuilder(length);
+        script.append(RUNNER)
+                .append(target)
+                .append(",[");
+        for (int i = 0; i < drained.size(); i++) {
+            if (i > 0) {
+                script.append(',');
+            }
+            script.append(drained.get(i));
+        }
+        return script.append("]);").toString();
+    }
+
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String) {
+            appendString(json, (String) value);
+        } else if (value instanceof byte[]) {
+            json.append("{\"b\":\"");
+            Base64Codec.encode((byte[]) value, json);
+            json.append("\"}");
+        } else if (value instanceof Float || value instanceof Double) {
+            double number = ((Number) value).doubleValue();
+            json.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else {
+            throw new IllegalArgumentException("Unsupported argument " + value.getClass().getName());
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    // Line separators end a line in older JavaScript engines, control characters are not valid JSON
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
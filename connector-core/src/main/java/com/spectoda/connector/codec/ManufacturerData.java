@@ -0,0 +1,210 @@
+package com.spectoda.connector.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The manufacturer specific data Tangle devices advertise, and the scan filters that select
+ * devices by it.
+ * <p>
+ * 0-1 firmware version (2 bytes)<br>
+ * 2-3 product code (2 bytes)<br>
+ * 4-19 owner signature (16 bytes)<br>
+ * 20 adoptionFlag: false-0 = do not adopting; true-1 = adopting (1 byte)
+ */
+public final class ManufacturerData {
+    private static final Logger LOG = Logger.getLogger(ManufacturerData.class.getName());
+
+    public static final int MANUFACTURER_ID = 0x02e5;
+    public static final int LENGTH = 21;
+
+    private static final Pattern FW_VERSION_PATTERN = Pattern.compile("(!?)([\\d]?).([\\d]+).([\\d]+)");
+
+    /**
+     * Manufacturer data and mask of one scan filter.
+     */
+    public static final class Filter {
+        public final byte[] data;
+        public final byte[] mask;
+
+        Filter(byte[] data, byte[] mask) {
+            this.data = data;
+            this.mask = mask;
+        }
+    }
+
+    public final String fwVersion;
+    public final int productCode;
+    public final String ownerSignature;
+    public final boolean adoptionFlag;
+
+    private ManufacturerData(String fwVersion, int productCode, String ownerSignature, boolean adoptionFlag) {
+        this.fwVersion = fwVersion;
+        this.productCode = productCode;
+        this.ownerSignature = ownerSignature;
+        this.adoptionFlag = adoptionFlag;
+    }
+
+    public static ManufacturerData parse(byte[] manufactureData) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.write(manufactureData, 0, 2);
+        String fwVersion = parseFwVersion(buffer.toByteArray());
+        buffer.reset();
+        buffer.write(manufactureData, 2, 2);
+        int productCode = parseProductCode(buffer.toByteArray());
+        buffer.reset();
+        buffer.write(manufactureData, 4, 16);
+        String ownerSignature = parseOwnerSignatureKey(buffer.toByteArray());
+        boolean adoptionFlag = manufactureData[20] == 1;
+        return new ManufacturerData(fwVersion, productCode, ownerSignature, adoptionFlag);
+    }
+
+    /**
+     * @param fwVersion      Empty for any version, {@code x.y.z} for that version or {@code !x.y.z} for any other version.
+     * @param productCode    0 to 0xffff, anything else matches any product.
+     * @param ownerSignature 32 hex digits, or empty for any owner.
+     * @return One filter, or 16 filters that together match every version but the given one.
+     */
+    public static List<Filter> compileFilters(String fwVersion, int productCode, String ownerSignature, boolean adoptionFlag) {
+        byte[] data = new byte[LENGTH];
+        byte[] mask = new byte[LENGTH];
+        compileProductCode(productCode, data, mask);
+        compileOwnerSignatureKey(ownerSignature, data, mask);
+        compileAdoptionFlag(adoptionFlag, data, mask);
+        return compileFWVersion(fwVersion, data, mask);
+    }
+
+    private static List<Filter> compileFWVersion(String fwVersion, byte[] data, byte[] mask) {
+        final int byteOffset = 0;
+        List<Filter> filters = new ArrayList<>();
+        if (!fwVersion.equals("")) {
+            Matcher m = FW_VERSION_PATTERN.matcher(fwVersion);
+
+            if (m.find()) {
+                int versionCode;
+                versionCode = groupToInt(m.group(2)) * 10000;
+                versionCode += groupToInt(m.group(3)) * 100;
+                versionCode += groupToInt(m.group(4));
+
+                if (Objects.requireNonNull(m.group(1)).equals("!")) {
+                    // filter all device with different Fw version.
+                    // we will generate 16 filters, each filtering one of the 16 bits that is different from my version.
+                    // if the one bit is different, then the version of the found device is different than mine.
+
+                    byte[] versionBytes = {(byte) (versionCode & 0xff), (byte) ((versionCode >> 8) & 0xff)};
+
+                    // version is defined as 2 bytes
+                    for (int i = 0; i < 2; i++) {
+                        // each byte have 8 bits
+                        for (int j = 0; j < 8; j++) {
+                            // set bytes to zero
+                            for (int k = 0; k < 2; k++) {
+                                data[byteOffset + k] = 0;
+                                mask[byteOffset + k] = 0;
+                            }
+
+                            data[byteOffset + i] = (byte) ~(versionBytes[i] & (1 << j));
+                            mask[byteOffset + i] = (byte) (1 << j);
+                            filters.add(new Filter(data.clone(), mask.clone()));
+                        }
+                    }
+                    return filters;
+                } else {
+                    byte[] versionCodeBytes = ByteEncoders.integerToBytes(versionCode, 2);
+                    for (int i = 0; i < 2; i++) {
+                        data[byteOffset + i] = versionCodeBytes[i];
+                        mask[byteOffset + i] = (byte) 0xff;
+                    }
+                }
+            }
+        }
+        filters.add(new Filter(data, mask));
+        return filters;
+    }
+
+    private static void compileProductCode(int productCode, byte[] data, byte[] mask) {
+        final int byteOffset = 2;
+        if (productCode < 0 || productCode > 0xffff) {
+            LOG.warning("compileProductCode: Invalid productCode");
+        } else {
+            byte[] productCodeBytes = ByteEncoders.integerToBytes(productCode, 2);
+            for (int i = 0; i < 2; i++) {
+                data[byteOffset + i] = productCodeBytes[i];
+                mask[byteOffset + i] = (byte) 0xff;
+            }
+        }
+    }
+
+    private static void compileOwnerSignatureKey(String ownerSignature, byte[] data, byte[] mask) {
+        final int byteOffset = 4;
+        if (ownerSignature.length() == 32) {
+            for (int i = 0; i < 32; i = i + 2) {
+                data[byteOffset + i / 2] = (byte) (Integer.parseInt(ownerSignature.substring(i, i + 2), 16));
+            }
+            for (int i = 0; i < 16; i++) {
+                mask[byteOffset + i] = (byte) 0xff;
+            }
+        } else if (!ownerSignature.equals("")) {
+            LOG.warning("compileOwnerSignatureKey: Invalid ownerSignature");
+        }
+    }
+
+    private static void compileAdoptionFlag(boolean adoptionFlag, byte[] data, byte[] mask) {
+        final int byteOffset = 20;
+
+        data[byteOffset] = (byte) (adoptionFlag ? 1 : 0);
+        mask[byteOffset] = (byte) 0xff;
+    }
+
+    private static int groupToInt(String group) {
+        if (group == null) {
+            return 0;
+        }
+        if (group.equals("")) {
+            return 0;
+        } else return Integer.parseInt(group);
+    }
+
+    private static String parseFwVersion(byte[] bytes) {
+        int fwVersionCode = 0;
+
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        bb = bb.order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            short s = bb.getShort();
+            fwVersionCode = 0xFFFF & s;
+        }
+        int thousands = fwVersionCode / 1000;
+        int hundreds = (fwVersionCode - thousands) / 100;
+        int dozens = (fwVersionCode - thousands * 1000 - hundreds * 100);
+
+        return "" + thousands + "." + hundreds + "." + dozens;
+    }
+
+    private static int parseProductCode(byte[] bytes) {
+        int productCode = 0;
+
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        bb = bb.order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            short s = bb.getShort();
+            productCode = 0xFFFF & s;
+        }
+        return productCode;
+    }
+
+    private static String parseOwnerSignatureKey(byte[] bytes) {
+        StringBuilder ownerSignatureKey = new StringBuilder();
+        for (byte b : bytes) {
+            ownerSignatureKey.append(String.format("%02x", b));
+        }
+        return ownerSignatureKey.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package com.spectoda.connector.firmware;
+
+/**
+ * Image handed over as one array, e.g. from the web page.
+ */
+final class ByteArrayFirmwareSource implements FirmwareSource {
+    private final byte[] firmware;
+    private String sha256;
+
+    ByteArrayFirmwareSource(byte[] firmware) {
+        this.firmware = firmware;
+    }
+
+    @Override
+    public int length() {
+        return firmware.length;
+    }
+
+    @Override
+    public void read(int offset, byte[] destination, int destinationOffset, int length) {
+        System.arraycopy(firmware, offset, destination, destinationOffset, length);
+    }
+
+    @Override
+    public String getSha256() {
+        if (sha256 == null) {
+            sha256 = Digests.sha256Hex(firmware);
+        }
+        return sha256;
+    }
+}
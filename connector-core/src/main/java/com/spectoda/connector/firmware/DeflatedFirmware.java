@@ -0,0 +1,48 @@
+package com.spectoda.connector.firmware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Raw deflate (no zlib header) of a firmware image for the compressed OTA transfer, see
+ * {@link FirmwareCache#deflate(FirmwareSource)}. The image is read and compressed a buffer at a
+ * time, neither it nor the compressed stream is held whole.
+ */
+final class DeflatedFirmware {
+    private static final int READ_SIZE = 16 * 1024;
+
+    private DeflatedFirmware() {
+    }
+
+    /**
+     * Blocks while compressing.
+     *
+     * @return CRC32 of the image.
+     */
+    static long deflate(FirmwareSource image, OutputStream output) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        CRC32 crc32 = new CRC32();
+        byte[] input = new byte[READ_SIZE];
+        byte[] buffer = new byte[READ_SIZE];
+        try {
+            for (int offset = 0; offset < image.length(); offset += READ_SIZE) {
+                int length = Math.min(READ_SIZE, image.length() - offset);
+                image.read(offset, input, 0, length);
+                crc32.update(input, 0, length);
+                deflater.setInput(input, 0, length);
+                while (!deflater.needsInput()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return crc32.getValue();
+    }
+}
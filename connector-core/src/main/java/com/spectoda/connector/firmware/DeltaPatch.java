@@ -0,0 +1,231 @@
+package com.spectoda.connector.firmware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Patch of a firmware image against the image the device runs, for the delta OTA transfer, see
+ * {@link FirmwareCache#patch(FirmwareSource, FirmwareSource)}. The patch is a stream of
+ * operations the device applies in order while it writes the new image:
+ * <p>
+ * COPY:   [0x01][base offset (4)][length (4)] copies bytes of the running image<br>
+ * INSERT: [0x02][length (4)][bytes] writes the bytes that follow
+ * <p>
+ * Matches are found on blocks of the base image aligned to {@link #BLOCK_SIZE} and extended byte
+ * by byte both ways, which finds every unchanged run of code that moved by any offset. BEGIN
+ * carries the length and SHA-256 of the base, a device running another image rejects it.
+ * <p>
+ * Both images are read through windows of {@link #WINDOW_SIZE} and the patch is written out as
+ * it is found, the index of the base blocks is the only structure that grows with the images.
+ */
+final class DeltaPatch {
+    static final int OP_COPY = 0x01;
+    static final int OP_INSERT = 0x02;
+    static final int BLOCK_SIZE = 32;
+    static final int WINDOW_SIZE = 16 * 1024;
+
+    // Kept behind the offset read when a window moves, matches are extended backwards into it
+    private static final int WINDOW_MARGIN = 1024;
+
+    // Spreads the hash of a block over the int range
+    private static final int HASH_PRIME = 0x01000193;
+
+    private DeltaPatch() {
+    }
+
+    /**
+     * @return [base length (4)][base SHA-256 (32)]
+     */
+    static byte[] beginParameters(int baseLength, String baseSha256) {
+        byte[] parameters = new byte[4 + 32];
+        writeInt(parameters, 0, baseLength);
+        System.arraycopy(Digests.unhex(baseSha256), 0, parameters, 4, 32);
+        return parameters;
+    }
+
+    /**
+     * Blocks while diffing.
+     *
+     * @param base  Image the device runs.
+     * @param image Image to update it to.
+     * @return CRC32 of the image.
+     */
+    static long diff(FirmwareSource base, FirmwareSource image, OutputStream patch) throws IOException {
+        Window baseWindow = new Window(base);
+        Window imageWindow = new Window(image);
+        int baseLength = base.length();
+        int imageLength = image.length();
+
+        BlockIndex blocks = new BlockIndex(baseLength / BLOCK_SIZE);
+        for (int offset = 0; offset + BLOCK_SIZE <= baseLength; offset += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(baseWindow, offset), offset);
+        }
+
+        // Factor of the byte that leaves the rolling window
+        int outFactor = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            outFactor *= HASH_PRIME;
+        }
+
+        byte[] buffer = new byte[WINDOW_SIZE];
+        int insertFrom = 0;
+        int position = 0;
+        int hash = imageLength >= BLOCK_SIZE ? hash(imageWindow, 0) : 0;
+        while (position + BLOCK_SIZE <= imageLength) {
+            int candidate = blocks.get(hash);
+            if (candidate >= 0 && equal(baseWindow, candidate, imageWindow, position, BLOCK_SIZE)) {
+                int baseOffset = candidate;
+                int imageOffset = position;
+                while (imageOffset > insertFrom && baseOffset > 0 && baseWindow.at(baseOffset - 1) == imageWindow.at(imageOffset - 1)) {
+                    baseOffset--;
+                    imageOffset--;
+                }
+                int length = position - imageOffset + BLOCK_SIZE;
+                while (baseOffset + length < baseLength && imageOffset + length < imageLength
+                        && baseWindow.at(baseOffset + length) == imageWindow.at(imageOffset + length)) {
+                    length++;
+                }
+                insert(patch, image, insertFrom, imageOffset, buffer);
+                copy(patch, baseOffset, length);
+                position = imageOffset + length;
+                insertFrom = position;
+                if (position + BLOCK_SIZE <= imageLength) {
+                    hash = hash(imageWindow, position);
+                }
+                continue;
+            }
+            if (position + BLOCK_SIZE < imageLength) {
+                hash = (hash - imageWindow.at(position) * outFactor) * HASH_PRIME + imageWindow.at(position + BLOCK_SIZE);
+            }
+            position++;
+        }
+        insert(patch, image, insertFrom, imageLength, buffer);
+        return crc32(image, buffer);
+    }
+
+    private static int hash(Window window, int offset) throws IOException {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * HASH_PRIME + window.at(i);
+        }
+        return hash;
+    }
+
+    private static boolean equal(Window lhs, int lhsOffset, Window rhs, int rhsOffset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            if (lhs.at(lhsOffset + i) != rhs.at(rhsOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copy(OutputStream patch, int baseOffset, int length) throws IOException {
+        byte[] op = new byte[9];
+        op[0] = OP_COPY;
+        writeInt(op, 1, baseOffset);
+        writeInt(op, 5, length);
+        patch.write(op);
+    }
+
+    // Copies the bytes straight from the image, a long insert does not pass through the window
+    private static void insert(OutputStream patch, FirmwareSource image, int from, int to, byte[] buffer) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        byte[] op = new byte[5];
+        op[0] = OP_INSERT;
+        writeInt(op, 1, to - from);
+        patch.write(op);
+        for (int offset = from; offset < to; offset += buffer.length) {
+            int length = Math.min(buffer.length, to - offset);
+            image.read(offset, buffer, 0, length);
+            patch.write(buffer, 0, length);
+        }
+    }
+
+    private static long crc32(FirmwareSource image, byte[] buffer) throws IOException {
+        CRC32 crc32 = new CRC32();
+        for (int offset = 0; offset < image.length(); offset += buffer.length) {
+            int length = Math.min(buffer.length, image.length() - offset);
+            image.read(offset, buffer, 0, length);
+            crc32.update(buffer, 0, length);
+        }
+        return crc32.getValue();
+    }
+
+    private static void writeInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >> 8);
+        bytes[index + 2] = (byte) (value >> 16);
+        bytes[index + 3] = (byte) (value >> 24);
+    }
+
+    // Part of a source read into a buffer, moved when a byte outside of it is read
+    private static final class Window {
+        private final FirmwareSource source;
+        private final byte[] buffer = new byte[WINDOW_SIZE];
+        private int start;
+        private int length;
+
+        Window(FirmwareSource source) {
+            this.source = source;
+        }
+
+        byte at(int offset) throws IOException {
+            if (offset < start || offset >= start + length) {
+                start = Math.max(0, offset - WINDOW_MARGIN);
+                length = Math.min(buffer.length, source.length() - start);
+                source.read(start, buffer, 0, length);
+            }
+            return buffer[offset - start];
+        }
+    }
+
+    // Offset of the first base block with each hash, open addressing over two int arrays
+    private static final class BlockIndex {
+        private final int[] hashes;
+        // Offset + 1, 0 marks a free slot
+        private final int[] offsets;
+        private final int mask;
+
+        BlockIndex(int blocks) {
+            // At most three quarters full
+            int capacity = Integer.highestOneBit(Math.max(1, blocks + blocks / 3)) << 1;
+            hashes = new int[capacity];
+            offsets = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        void putIfAbsent(int hash, int offset) {
+            int slot = slot(hash);
+            while (offsets[slot] != 0) {
+                if (hashes[slot] == hash) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            offsets[slot] = offset + 1;
+        }
+
+        /**
+         * @return The offset, or -1.
+         */
+        int get(int hash) {
+            int slot = slot(hash);
+            while (offsets[slot] != 0) {
+                if (hashes[slot] == hash) {
+                    return offsets[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int slot(int hash) {
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.spectoda.connector.firmware;
+
+import java.io.IOException;
+
+/**
+ * Firmware image in the form an OTA transfer sends it, the source reads the encoded stream from
+ * its file in the {@link FirmwareCache}. The CRC32 and SHA-256 of the image itself are known from
+ * encoding it, so the END digest needs no pass of its own.
+ */
+public final class EncodedFirmware implements FirmwareSource {
+    public static final int ENCODING_DEFLATE = 1;
+    public static final int ENCODING_DELTA = 2;
+
+    private final int encoding;
+    private final byte[] parameters;
+    private final int imageLength;
+    private final long imageCrc32;
+    private final String imageSha256;
+    private final FirmwareSource stream;
+
+    EncodedFirmware(int encoding, byte[] parameters, int imageLength, long imageCrc32, String imageSha256, FirmwareSource stream) {
+        this.encoding = encoding;
+        this.parameters = parameters;
+        this.imageLength = imageLength;
+        this.imageCrc32 = imageCrc32;
+        this.imageSha256 = imageSha256;
+        this.stream = stream;
+    }
+
+    /**
+     * @return One of the ENCODING_ constants.
+     */
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return What the device needs to know before the stream starts, sent with BEGIN.
+     */
+    public byte[] getBeginParameters() {
+        return parameters.clone();
+    }
+
+    /**
+     * @return Length of the encoded stream.
+     */
+    @Override
+    public int length() {
+        return stream.length();
+    }
+
+    @Override
+    public void read(int offset, byte[] destination, int destinationOffset, int length) throws IOException {
+        stream.read(offset, destination, destinationOffset, length);
+    }
+
+    /**
+     * @return SHA-256 of the encoded stream.
+     */
+    @Override
+    public String getSha256() {
+        return stream.getSha256();
+    }
+
+    public int getImageLength() {
+        return imageLength;
+    }
+
+    public long getImageCrc32() {
+        return imageCrc32;
+    }
+
+    /**
+     * @return SHA-256 of the image the stream decodes to.
+     */
+    public byte[] getImageSha256() {
+        return Digests.unhex(imageSha256);
+    }
+}
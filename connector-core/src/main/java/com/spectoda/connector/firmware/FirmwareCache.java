@@ -0,0 +1,303 @@
+package com.spectoda.connector.firmware;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Firmware images on disk, keyed by version and SHA-256. Downloads stream straight to a file,
+ * cached images are handed out as {@link FirmwareSource}s mapped from their file, so a rollout
+ * of the same version to many devices downloads the image once and never holds it on the heap.
+ * <p>
+ * The encoded streams of the OTA transfer are kept next to the images, keyed by what they
+ * encode, so retries and the devices of a rollout encode an image once. The stream is written to
+ * the file as it is encoded, followed by a trailer with what the transfer needs besides it:
+ * <p>
+ * [stream][encoding (1)][image length (4)][image CRC32 (4)][image SHA-256 (32)]
+ * [stream SHA-256 (32)][parameters][parameters length (2)][magic (4)]
+ * <p>
+ * Blocking: call from a background thread.
+ */
+public final class FirmwareCache {
+    private static final Logger LOG = Logger.getLogger(FirmwareCache.class.getName());
+
+    public static final int DEFAULT_MAX_IMAGES = 4;
+
+    private static final String SUFFIX = ".bin";
+    private static final String ENCODED_SUFFIX = ".enc";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int CONNECT_TIMEOUT_MILLIS = 15_000;
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+    private static final String DEFLATE_PREFIX = "deflate_";
+    private static final String DELTA_PREFIX = "delta_";
+    private static final int ENCODED_MAGIC = 0x454e4331;
+    // The trailer without the parameters
+    private static final int ENCODED_TRAILER_SIZE = 1 + 4 + 4 + 32 + 32 + 2 + 4;
+
+    // Writes the encoded stream, returns the CRC32 of the image
+    private interface Encoder {
+        long encode(OutputStream output) throws IOException;
+    }
+
+    private final File directory;
+    private final int maxImages;
+    // Held while encoding, a second transfer of the same image waits for the first to finish
+    private final Object encodeLock = new Object();
+
+    public FirmwareCache(File directory) {
+        this(directory, DEFAULT_MAX_IMAGES);
+    }
+
+    /**
+     * @param maxImages Least recently used images beyond this count are deleted, and as many encoded streams.
+     */
+    public FirmwareCache(File directory, int maxImages) {
+        this.directory = directory;
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * @param sha256 Hex SHA-256 of the image, or null for any cached image of the version.
+     * @return The cached image, or null.
+     */
+    public synchronized FirmwareSource get(String version, String sha256) throws IOException {
+        File file = find(version, sha256);
+        if (file == null) {
+            return null;
+        }
+        // Marks the image as recently used for the eviction
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            LOG.fine("get: cannot touch " + file);
+        }
+        return MappedFirmwareSource.map(file, sha256(file));
+    }
+
+    /**
+     * Returns the cached image, or downloads it first.
+     *
+     * @param sha256 Hex SHA-256 the download has to match, or null to trust the server.
+     * @throws IOException When the download fails or does not match {@code sha256}.
+     */
+    public FirmwareSource fetch(URL url, String version, String sha256) throws IOException {
+        FirmwareSource cached = get(version, sha256);
+        if (cached != null) {
+            return cached;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        File partial = File.createTempFile(key(version, "download"), PARTIAL_SUFFIX, directory);
+        String downloaded;
+        try {
+            downloaded = download(url, partial);
+            if (sha256 != null && !sha256.equalsIgnoreCase(downloaded)) {
+                throw new IOException("Firmware " + version + " from " + url + " has SHA-256 " + downloaded + ", expected " + sha256);
+            }
+        } catch (IOException e) {
+            delete(partial);
+            throw e;
+        }
+
+        synchronized (this) {
+            File file = new File(directory, key(version, downloaded) + SUFFIX);
+            if (!partial.renameTo(file)) {
+                delete(partial);
+                throw new IOException("Cannot store " + file);
+            }
+            evict(SUFFIX);
+            return MappedFirmwareSource.map(file, sha256(file));
+        }
+    }
+
+    /**
+     * Returns the image compressed for the compressed OTA transfer, compressing it into the cache
+     * first unless it is there already.
+     */
+    public EncodedFirmware deflate(FirmwareSource image) throws IOException {
+        return encoded(DEFLATE_PREFIX + image.getSha256(), EncodedFirmware.ENCODING_DEFLATE, new byte[0], image,
+                output -> DeflatedFirmware.deflate(image, output));
+    }
+
+    /**
+     * Returns the patch from the image the device runs to the new image for the delta OTA
+     * transfer, diffing them into the cache first unless it is there already.
+     *
+     * @param base Image the device runs.
+     */
+    public EncodedFirmware patch(FirmwareSource base, FirmwareSource image) throws IOException {
+        String baseSha256 = base.getSha256();
+        return encoded(DELTA_PREFIX + baseSha256 + "_" + image.getSha256(), EncodedFirmware.ENCODING_DELTA,
+                DeltaPatch.beginParameters(base.length(), baseSha256), image, output -> DeltaPatch.diff(base, image, output));
+    }
+
+    private EncodedFirmware encoded(String key, int encoding, byte[] parameters, FirmwareSource image, Encoder encoder) throws IOException {
+        File file = new File(directory, key + ENCODED_SUFFIX);
+        synchronized (encodeLock) {
+            if (file.isFile()) {
+                try {
+                    EncodedFirmware cached = readEncoded(file);
+                    if (!file.setLastModified(System.currentTimeMillis())) {
+                        LOG.fine("encoded: cannot touch " + file);
+                    }
+                    return cached;
+                } catch (IOException e) {
+                    LOG.warning("encoded: encoding again, cannot read " + file + ": " + e);
+                    delete(file);
+                }
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+
+            File partial = File.createTempFile(key, PARTIAL_SUFFIX, directory);
+            try {
+                writeEncoded(partial, encoding, parameters, image, encoder);
+            } catch (IOException | RuntimeException e) {
+                delete(partial);
+                throw e;
+            }
+            synchronized (this) {
+                if (!partial.renameTo(file)) {
+                    delete(partial);
+                    throw new IOException("Cannot store " + file);
+                }
+                evict(ENCODED_SUFFIX);
+            }
+            return readEncoded(file);
+        }
+    }
+
+    private static void writeEncoded(File file, int encoding, byte[] parameters, FirmwareSource image, Encoder encoder) throws IOException {
+        MessageDigest streamDigest = Digests.sha256();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            long imageCrc32 = encoder.encode(new DigestOutputStream(output, streamDigest));
+            output.writeByte(encoding);
+            output.writeInt(image.length());
+            output.writeInt((int) imageCrc32);
+            output.write(Digests.unhex(image.getSha256()));
+            output.write(streamDigest.digest());
+            output.write(parameters);
+            output.writeShort(parameters.length);
+            output.writeInt(ENCODED_MAGIC);
+        }
+    }
+
+    private static EncodedFirmware readEncoded(File file) throws IOException {
+        int encoding;
+        int imageLength;
+        long imageCrc32;
+        byte[] imageSha256 = new byte[32];
+        byte[] streamSha256 = new byte[32];
+        byte[] parameters;
+        long streamLength;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long length = input.length();
+            if (length < ENCODED_TRAILER_SIZE) {
+                throw new IOException("Truncated " + file);
+            }
+            input.seek(length - 2 - 4);
+            int parametersLength = input.readUnsignedShort();
+            if (input.readInt() != ENCODED_MAGIC) {
+                throw new IOException("No encoded firmware in " + file);
+            }
+            streamLength = length - ENCODED_TRAILER_SIZE - parametersLength;
+            if (streamLength < 0) {
+                throw new IOException("Truncated " + file);
+            }
+            input.seek(streamLength);
+            encoding = input.readUnsignedByte();
+            imageLength = input.readInt();
+            imageCrc32 = input.readInt() & 0xffffffffL;
+            input.readFully(imageSha256);
+            input.readFully(streamSha256);
+            parameters = new byte[parametersLength];
+            input.readFully(parameters);
+        }
+        return new EncodedFirmware(encoding, parameters, imageLength, imageCrc32, Digests.hex(imageSha256),
+                MappedFirmwareSource.map(file, streamLength, Digests.hex(streamSha256)));
+    }
+
+    // Streams the body to the file, returns its SHA-256
+    private static String download(URL url, File file) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        MessageDigest digest = Digests.sha256();
+        try (InputStream input = new DigestInputStream(connection.getInputStream(), digest);
+             OutputStream output = new FileOutputStream(file)) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        return Digests.hex(digest.digest());
+    }
+
+    private File find(String version, String sha256) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        String prefix = sanitize(version) + "_";
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            if (sha256 == null || name.equalsIgnoreCase(key(version, sha256) + SUFFIX)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void evict(String suffix) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+        if (files == null || files.length <= maxImages) {
+            return;
+        }
+        List<File> images = new ArrayList<>(Arrays.asList(files));
+        images.sort(Comparator.comparingLong(File::lastModified).reversed());
+        for (File file : images.subList(maxImages, images.size())) {
+            LOG.fine("evict: " + file);
+            delete(file);
+        }
+    }
+
+    private static String sha256(File file) {
+        String name = file.getName();
+        return name.substring(name.lastIndexOf('_') + 1, name.length() - SUFFIX.length());
+    }
+
+    private static String key(String version, String sha256) {
+        return sanitize(version) + "_" + sha256.toLowerCase();
+    }
+
+    private static String sanitize(String version) {
+        return version.replaceAll("[^A-Za-z0-9.-]", "-");
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warning("delete: cannot delete " + file);
+        }
+    }
+}
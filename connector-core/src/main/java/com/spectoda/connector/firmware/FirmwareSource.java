@@ -0,0 +1,34 @@
+package com.spectoda.connector.firmware;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Firmware image the OTA upload reads chunk by chunk, so the image does not have to be on the
+ * heap as a whole.
+ */
+public interface FirmwareSource {
+
+    int length();
+
+    /**
+     * Copies {@code length} bytes of the image starting at {@code offset} into {@code destination}.
+     */
+    void read(int offset, byte[] destination, int destinationOffset, int length) throws IOException;
+
+    /**
+     * @return Lower case hex SHA-256 of the image, sources of the same image are equal by it.
+     */
+    String getSha256();
+
+    static FirmwareSource of(byte[] firmware) {
+        return new ByteArrayFirmwareSource(firmware);
+    }
+
+    /**
+     * @return The file mapped into memory.
+     */
+    static FirmwareSource of(File file) throws IOException {
+        return MappedFirmwareSource.map(file, null);
+    }
+}
@@ -0,0 +1,63 @@
+package com.spectoda.connector.firmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Image file mapped read-only into memory, the pages are loaded as the upload reaches them and
+ * never count against the heap.
+ */
+final class MappedFirmwareSource implements FirmwareSource {
+    private final MappedByteBuffer image;
+    private final String sha256;
+
+    MappedFirmwareSource(MappedByteBuffer image, String sha256) {
+        this.image = image;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * @param sha256 Null to hash the content.
+     */
+    static MappedFirmwareSource map(File file, String sha256) throws IOException {
+        return map(file, file.length(), sha256);
+    }
+
+    /**
+     * @param length Of the image at the start of the file, what follows is not mapped.
+     * @param sha256 Null to hash the content.
+     */
+    static MappedFirmwareSource map(File file, long length, String sha256) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            if (length > Integer.MAX_VALUE || length > channel.size()) {
+                throw new IOException("Firmware of " + length + " B does not fit " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new MappedFirmwareSource(image, sha256 != null ? sha256 : Digests.sha256Hex(image.duplicate()));
+        }
+    }
+
+    @Override
+    public int length() {
+        return image.capacity();
+    }
+
+    @Override
+    public void read(int offset, byte[] destination, int destinationOffset, int length) {
+        // Absolute reads on a view, the source may be read from several threads
+        ByteBuffer view = image.duplicate();
+        view.position(offset);
+        view.get(destination, destinationOffset, length);
+    }
+
+    @Override
+    public String getSha256() {
+        return sha256;
+    }
+}
@@ -0,0 +1,127 @@
+package com.spectoda.connector.firmware;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+/**
+ * Payload the web page hands over in chunks, written to a file as the chunks arrive, so the heap
+ * holds one chunk at a time however large the payload is.
+ * <p>
+ * Chunks have to come in order, a chunk at another offset than {@link #getWritten()} is refused
+ * so a lost or repeated chunk cannot corrupt the payload unnoticed.
+ */
+public final class UploadSpool implements Closeable {
+    private static final Logger LOG = Logger.getLogger(UploadSpool.class.getName());
+
+    private final File file;
+    private final RandomAccessFile output;
+    private final int length;
+    private final MessageDigest digest = Digests.sha256();
+    private int written;
+    private boolean closed;
+
+    private UploadSpool(File file, int length) throws IOException {
+        this.file = file;
+        this.output = new RandomAccessFile(file, "rw");
+        this.length = length;
+    }
+
+    /**
+     * @param length Size of the whole payload in bytes.
+     */
+    public static UploadSpool create(File directory, int length) throws IOException {
+        if (length <= 0) {
+            throw new IOException("Invalid upload length " + length);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = File.createTempFile("upload", ".part", directory);
+        try {
+            return new UploadSpool(file, length);
+        } catch (IOException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public synchronized int getWritten() {
+        return written;
+    }
+
+    /**
+     * @param offset Offset of the chunk in the payload, has to be {@link #getWritten()}.
+     * @throws IOException When the chunk is out of order, overruns the payload or cannot be written.
+     */
+    public synchronized void append(int offset, byte[] chunk) throws IOException {
+        if (closed) {
+            throw new IOException("Upload closed");
+        }
+        if (offset != written) {
+            throw new IOException("Chunk at " + offset + ", expected " + written);
+        }
+        if (chunk.length > length - written) {
+            throw new IOException("Chunk of " + chunk.length + " B overruns the upload of " + length + " B at " + written);
+        }
+        output.write(chunk);
+        digest.update(chunk);
+        written += chunk.length;
+    }
+
+    /**
+     * Finishes the upload, the spool is closed after, whether the commit succeeds or not.
+     *
+     * @return The payload mapped from its file.
+     * @throws IOException When chunks are missing.
+     */
+    public synchronized FirmwareSource commit() throws IOException {
+        if (closed) {
+            throw new IOException("Upload closed");
+        }
+        if (written != length) {
+            close();
+            throw new IOException("Upload incomplete, " + written + " of " + length + " B");
+        }
+        try {
+            FileChannel channel = output.getChannel();
+            // The mapping outlives both the channel and the file, nothing is left to clean up
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new MappedFirmwareSource(image, Digests.hex(digest.digest()));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Aborts the upload and deletes what was written of it.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOG.warning("close: " + e);
+        }
+        delete(file);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warning("delete: cannot delete " + file);
+        }
+    }
+}
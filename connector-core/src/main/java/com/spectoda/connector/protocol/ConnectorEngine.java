@@ -0,0 +1,538 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * The connector protocol without Android: framing, lane scheduling, deliver batching, request
+ * correlation, notification reassembly, link governing and the OTA sequence. Commands come in
+ * through the public methods, GATT operations go out through a {@link GattTransport} and their
+ * results are fed back through the {@code on...} methods.
+ * <p>
+ * Not thread safe: everything must be called on the {@link EventLoop} thread except
+ * {@link #getMtu()}, {@link #getPayloadPerPacket()}, {@link #setMaxPacketSize(int)} and the
+ * statistics getters, which read fields the loop publishes as volatile or atomic.
+ */
+public final class ConnectorEngine {
+    private static final Logger LOG = Logger.getLogger(ConnectorEngine.class.getName());
+
+    public static final UUID SERVICE_UUID = UUID.fromString("cc540e31-80be-44af-b64a-5d2def886bf5");
+    public static final UUID TERMINAL_CHAR_UUID = UUID.fromString("33a0937e-0c61-41ea-b770-007ade2c79fa");
+    public static final UUID CLOCK_CHAR_UUID = UUID.fromString("7a1e0e3a-6b9b-49ef-b9b7-65c81b714a19");
+    public static final UUID DEVICE_CHAR_UUID = UUID.fromString("9ebe2e4b-10c7-4a81-ac83-49540d1135a5");
+
+    public static final int COMMUNICATION_TYPE_DELIVER = 0;
+    public static final int COMMUNICATION_TYPE_TRANSMIT = 1;
+    public static final int COMMUNICATION_TYPE_REQUEST = 2;
+    public static final int COMMUNICATION_TYPE_CLOCK = 3;
+    public static final int COMMUNICATION_TYPE_UPDATE_FIRMWARE = 4;
+
+    //=====// CHARACTERISTIC_COMMUNICATION_CONSTANTS //=====//
+    public static final int CLOCK_READ_RESOLVE = 0;
+    public static final int CLOCK_READ_REJECT = 1;
+    public static final int CLOCK_WROTE_RESOLVE = 2;
+    public static final int CLOCK_WROTE_REJECT = 3;
+
+    public static final int REQUEST_READ_RESOLVE = 4;
+    public static final int REQUEST_READ_REJECT = 5;
+    public static final int REQUEST_WROTE_RESOLVE = 6;
+    public static final int REQUEST_WROTE_REJECT = 7;
+
+    public static final int DELIVER_WROTE_RESOLVE = 8;
+    public static final int DELIVER_WROTE_REJECT = 9;
+
+    public static final int TRANSMIT_WROTE_RESOLVE = 10;
+    public static final int TRANSMIT_WROTE_REJECT = 11;
+
+    public static final int UPDATE_FIRMWARE_RESOLVE = 12;
+    public static final int UPDATE_FIRMWARE_REJECT = 13;
+
+    public static final int CHARACTERISTIC_NOTIFICATION = 14;
+
+    // The device received the whole firmware but rejected its digest
+    public static final int UPDATE_FIRMWARE_INTEGRITY_REJECT = 15;
+
+    public static final int NO_REQUEST_ID = -1;
+
+    public interface Listener {
+        void onMessage(byte[] bytes, int communicationType);
+
+        /**
+         * Outcome of a request made with an id, one of the REQUEST_ constants.
+         */
+        default void onRequestMessage(int requestId, byte[] bytes, int communicationType) {
+            onMessage(bytes, communicationType);
+        }
+
+        /**
+         * @param progress Percentage of the firmware written.
+         */
+        default void onOtaProgress(float progress) {
+        }
+
+        /**
+         * @param kilobytesPerSecond Effective firmware upload rate so far.
+         */
+        default void onOtaThroughput(float kilobytesPerSecond) {
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final GattTransport transport;
+    private final Listener listener;
+
+    private final GattOperationQueue operationQueue;
+    private final DeliverBatcher deliverBatcher;
+    private final RequestCorrelator requestCorrelator;
+    private final FrameReassembler notificationReassembler;
+    private final LinkGovernor linkGovernor;
+    private final OtaUploader otaUploader;
+    private final ProgressThrottle otaProgressThrottle;
+
+    private volatile int mtu = FrameSizing.DEFAULT_MTU;
+    private volatile int maxPacketSize = FrameSizing.MAX_PACKET_SIZE;
+
+    public ConnectorEngine(EventLoop eventLoop, GattTransport transport, Listener listener) {
+        this.eventLoop = eventLoop;
+        this.transport = transport;
+        this.listener = listener;
+
+        operationQueue = new GattOperationQueue(countingTransport, new FramePool(FrameSizing.MAX_PACKET_SIZE), FrameSizing.MAX_PACKET_SIZE);
+        requestCorrelator = new RequestCorrelator(operationQueue, DEVICE_CHAR_UUID, COMMUNICATION_TYPE_REQUEST, GattTransport.WRITE_TYPE_DEFAULT);
+        deliverBatcher = new DeliverBatcher(eventLoop, (payload, completion) ->
+                enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, COMMUNICATION_TYPE_DELIVER, TERMINAL_CHAR_UUID, payload, GattTransport.WRITE_TYPE_DEFAULT, completion)));
+        linkGovernor = new LinkGovernor(eventLoop, new LinkGovernor.Link() {
+            @Override
+            public void setConnectionPriority(int mode) {
+                transport.setConnectionPriority(mode);
+            }
+
+            @Override
+            public void setFastPhy(boolean fast) {
+                transport.setFastPhy(fast);
+            }
+        });
+        notificationReassembler = new FrameReassembler(eventLoop, message -> listener.onMessage(message, CHARACTERISTIC_NOTIFICATION));
+        otaProgressThrottle = new ProgressThrottle(eventLoop);
+        otaUploader = new OtaUploader(eventLoop, new OtaUploader.Link() {
+            @Override
+            public void write(byte[] payload, boolean streamed, OtaUploader.WriteCallback callback) {
+                enqueue(GattOperation.framedWrite(GattOperation.LANE_OTA, COMMUNICATION_TYPE_UPDATE_FIRMWARE, DEVICE_CHAR_UUID, payload, GattTransport.WRITE_TYPE_DEFAULT, (operation, success, value) ->
+                        callback.onWritten(success, operation.getStatus())).setStreamed(streamed));
+            }
+
+            @Override
+            public int getPayloadPerPacket() {
+                return ConnectorEngine.this.getPayloadPerPacket();
+            }
+        }, new OtaUploader.Listener() {
+            // Throughput follows right after progress, it goes through when its progress did
+            private boolean progressPassed;
+
+            @Override
+            public void onProgress(float progress) {
+                progressPassed = otaProgressThrottle.offer(progress);
+                if (progressPassed) {
+                    listener.onOtaProgress(progress);
+                }
+            }
+
+            @Override
+            public void onThroughput(float kilobytesPerSecond) {
+                if (progressPassed) {
+                    listener.onOtaThroughput(kilobytesPerSecond);
+                }
+            }
+
+            @Override
+            public void onFinished(boolean success) {
+                linkGovernor.onOtaFinished();
+                if (success) {
+                    listener.onMessage(new byte[0], UPDATE_FIRMWARE_RESOLVE);
+                } else if (otaUploader.getLastFailure() == OtaUploader.FAILURE_INTEGRITY) {
+                    listener.onMessage(new byte[0], UPDATE_FIRMWARE_INTEGRITY_REJECT);
+                } else {
+                    listener.onMessage(new byte[0], UPDATE_FIRMWARE_REJECT);
+                }
+            }
+        });
+    }
+
+    // Accounts the bytes written to the mode of the link governor
+    private final GattTransport countingTransport = new GattTransport() {
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+            if (!transport.writeCharacteristic(characteristic, value, writeType)) {
+                return false;
+            }
+            linkGovernor.onBytesWritten(value.length);
+            return true;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            return transport.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return transport.requestMtu(mtu);
+        }
+    };
+
+    // --- FRAME SIZING --- //
+
+    /**
+     * @return ATT MTU negotiated for the current connection.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Caps the size of a single GATT write regardless of the negotiated MTU.
+     *
+     * @param maxPacketSize Largest frame in bytes including the 12 byte header, at most 512.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * @return Number of payload bytes carried by one GATT write on the current connection.
+     */
+    public int getPayloadPerPacket() {
+        return FrameSizing.payloadPerPacket(mtu, maxPacketSize);
+    }
+
+    // --- CONFIGURATION --- //
+
+    /**
+     * @see GattOperationQueue#setLaneWeight(int, int)
+     */
+    public void setLaneWeight(int lane, int weight) {
+        operationQueue.setLaneWeight(lane, weight);
+    }
+
+    /**
+     * @see DeliverBatcher#configure(long, int)
+     */
+    public void setDeliverBatching(long windowMillis, int maxBatchBytes) {
+        deliverBatcher.configure(windowMillis, maxBatchBytes);
+    }
+
+    /**
+     * @see RequestCorrelator#setMaxInFlight(int)
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        requestCorrelator.setMaxInFlight(maxRequestsInFlight);
+    }
+
+    /**
+     * @see FrameReassembler#setLimits(int, long)
+     */
+    public void setNotificationReassemblyLimits(int memoryCap, long timeoutMillis) {
+        notificationReassembler.setLimits(memoryCap, timeoutMillis);
+    }
+
+    /**
+     * @see FrameReassembler#setStrictFraming(boolean)
+     */
+    public void setStrictNotificationFraming(boolean strictFraming) {
+        notificationReassembler.setStrictFraming(strictFraming);
+    }
+
+    /**
+     * @see LinkGovernor#setThresholds(int, long, long)
+     */
+    public void setLinkGovernorThresholds(int highQueueDepth, long balancedAfterMillis, long lowPowerAfterMillis) {
+        linkGovernor.setThresholds(highQueueDepth, balancedAfterMillis, lowPowerAfterMillis);
+    }
+
+    /**
+     * @see OtaUploader#setWindowedTransfer(boolean, int, int)
+     */
+    public void setOtaWindowedTransfer(boolean windowed, int initialWindow, int maxWindow) {
+        otaUploader.setWindowedTransfer(windowed, initialWindow, maxWindow);
+    }
+
+    /**
+     * @see OtaUploader#setCompressedTransfer(boolean)
+     */
+    public void setOtaCompressedTransfer(boolean compressed) {
+        otaUploader.setCompressedTransfer(compressed);
+    }
+
+    /**
+     * @see OtaUploader#setFirmwareCache(FirmwareCache)
+     */
+    public void setFirmwareCache(FirmwareCache firmwareCache) {
+        otaUploader.setFirmwareCache(firmwareCache);
+    }
+
+    /**
+     * @see OtaUploader#setEncodingExecutor(Executor)
+     */
+    public void setOtaEncodingExecutor(Executor encodingExecutor) {
+        otaUploader.setEncodingExecutor(encodingExecutor);
+    }
+
+    /**
+     * @see ProgressThrottle#setLimits(int, float)
+     */
+    public void setOtaProgressLimits(int maxEventsPerSecond, float minStepPercent) {
+        otaProgressThrottle.setLimits(maxEventsPerSecond, minStepPercent);
+    }
+
+    /**
+     * @see OtaUploader#setTimeouts(long, long, long, long)
+     */
+    public void setOtaTimeouts(long resetTimeoutMillis, long beginTimeoutMillis, long writeTimeoutMillis, long endTimeoutMillis) {
+        otaUploader.setTimeouts(resetTimeoutMillis, beginTimeoutMillis, writeTimeoutMillis, endTimeoutMillis);
+    }
+
+    // --- STATISTICS --- //
+
+    public List<LinkGovernor.Transition> getLinkTransitions() {
+        return linkGovernor.getTransitions();
+    }
+
+    public long getLinkThroughput(int mode) {
+        return linkGovernor.getThroughput(mode);
+    }
+
+    /**
+     * @return Duration of the last finished firmware update.
+     */
+    public long getLastOtaDurationMillis() {
+        return otaUploader.getLastDurationMillis();
+    }
+
+    public int getOtaWindow() {
+        return otaUploader.getWindow();
+    }
+
+    /**
+     * @see OtaUploader#getLastResumedFrom()
+     */
+    public int getLastOtaResumedFrom() {
+        return otaUploader.getLastResumedFrom();
+    }
+
+    public long getSuppressedOtaProgressCount() {
+        return otaProgressThrottle.getSuppressedCount();
+    }
+
+    public long getDroppedNotificationCount() {
+        return notificationReassembler.getDroppedMessages();
+    }
+
+    public long getRejectedNotificationFrameCount() {
+        return notificationReassembler.getRejectedFrames();
+    }
+
+    public long getUnframedNotificationCount() {
+        return notificationReassembler.getUnframedNotifications();
+    }
+
+    public long getSupersededTransmitCount() {
+        return operationQueue.getSupersededCount();
+    }
+
+    public long getDeliverFramesSaved() {
+        return deliverBatcher.getFramesSaved();
+    }
+
+    public long getDeliverAverageQueueWaitMillis() {
+        return deliverBatcher.getAverageQueueWaitMillis();
+    }
+
+    public long getDeliverMaxQueueWaitMillis() {
+        return deliverBatcher.getMaxQueueWaitMillis();
+    }
+
+    // --- TRANSPORT EVENTS --- //
+
+    /**
+     * The services were discovered, negotiates the MTU before anything else is written. Resumes
+     * what waited for the services after {@link #onServiceChanged()}.
+     */
+    public void onConnected() {
+        mtu = FrameSizing.DEFAULT_MTU;
+        operationQueue.enqueueFirst(GattOperation.requestMtu(FrameSizing.MAX_MTU, null));
+        operationQueue.resume();
+        requestCorrelator.resume();
+        linkGovernor.onConnected();
+    }
+
+    /**
+     * Rejects everything that is waiting or in flight.
+     */
+    public void onDisconnected() {
+        mtu = FrameSizing.DEFAULT_MTU;
+        deliverBatcher.failAll();
+        requestCorrelator.failWaiting();
+        // Before the queue fails the OTA write in flight, so a lost END is not taken for a rejected image
+        otaUploader.abort();
+        operationQueue.failAll();
+        notificationReassembler.clear();
+        linkGovernor.onDisconnected();
+    }
+
+    /**
+     * The peer changed its services; operations in flight will never see their callbacks, and an
+     * update or a notification cut off by the change will never be completed. Everything else
+     * waits, with commands issued meanwhile, until the services are discovered again and
+     * {@link #onConnected()} is called.
+     */
+    public void onServiceChanged() {
+        // Nothing can be written until then, a request failed below must not start the next one
+        operationQueue.pause();
+        requestCorrelator.pause();
+        // Before the queue fails the OTA write in flight, so a lost END is not taken for a rejected image
+        otaUploader.abort();
+        operationQueue.failInProgress();
+        notificationReassembler.clear();
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, boolean success) {
+        onCharacteristicWrite(characteristic, success ? GattTransport.STATUS_SUCCESS : GattTransport.STATUS_FAILURE);
+    }
+
+    /**
+     * @param status GATT status of the write, one of the firmware's application errors tells a
+     *               rejected OTA image from a failed write.
+     */
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        if (!operationQueue.onCharacteristicWrite(characteristic, status)) {
+            LOG.warning("onCharacteristicWrite: no write pending on " + characteristic);
+        }
+        linkGovernor.onQueueDepth(operationQueue.size());
+    }
+
+    public void onCharacteristicRead(UUID characteristic, boolean success, byte[] value) {
+        if (!operationQueue.onCharacteristicRead(characteristic, success, value)) {
+            LOG.warning("onCharacteristicRead: no read pending on " + characteristic);
+        }
+        linkGovernor.onQueueDepth(operationQueue.size());
+    }
+
+    /**
+     * A notification of the terminal characteristic.
+     */
+    public void onNotification(byte[] value) {
+        notificationReassembler.onFrame(value);
+    }
+
+    public void onMtuChanged(int mtu, boolean success) {
+        if (success) {
+            this.mtu = mtu;
+        }
+        operationQueue.onMtuChanged(mtu, success);
+    }
+
+    // --- COMMANDS --- //
+
+    public void deliver(byte[] command_payload) {
+        if (deliverBatcher.isEnabled()) {
+            deliverBatcher.add(command_payload, getPayloadPerPacket(), success ->
+                    listener.onMessage(new byte[0], success ? DELIVER_WROTE_RESOLVE : DELIVER_WROTE_REJECT));
+        } else {
+            enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, COMMUNICATION_TYPE_DELIVER, TERMINAL_CHAR_UUID, command_payload, GattTransport.WRITE_TYPE_DEFAULT, (operation, success, value) ->
+                    listener.onMessage(new byte[0], success ? DELIVER_WROTE_RESOLVE : DELIVER_WROTE_REJECT)));
+        }
+    }
+
+    /**
+     * Deliver of a payload too large for the heap, e.g. spooled to a file. Its frames are read
+     * from the source as they are sent; batched delivers waiting before it are written first.
+     */
+    public void deliver(FirmwareSource command_payload) {
+        deliverBatcher.flush();
+        enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, COMMUNICATION_TYPE_DELIVER, TERMINAL_CHAR_UUID, command_payload, GattTransport.WRITE_TYPE_DEFAULT, (operation, success, value) ->
+                listener.onMessage(new byte[0], success ? DELIVER_WROTE_RESOLVE : DELIVER_WROTE_REJECT)));
+    }
+
+    /**
+     * @param key Null, or identifies the value the payload updates so a waiting transmit with the same key is superseded.
+     */
+    public void transmit(byte[] command_payload, byte[] key) {
+        enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, COMMUNICATION_TYPE_TRANSMIT, TERMINAL_CHAR_UUID, command_payload, GattTransport.WRITE_TYPE_NO_RESPONSE, (operation, success, value) ->
+                listener.onMessage(new byte[0], success ? TRANSMIT_WROTE_RESOLVE : TRANSMIT_WROTE_REJECT)).setSupersessionKey(key));
+    }
+
+    /**
+     * @param requestId Reported back through {@link Listener#onRequestMessage(int, byte[], int)}, or {@link #NO_REQUEST_ID}.
+     */
+    public void request(byte[] command_payload, boolean read_response, int requestId) {
+        operationQueue.setPacketSize(FrameSizing.packetSize(mtu, maxPacketSize));
+        requestCorrelator.request(command_payload, read_response, new RequestCorrelator.Callback() {
+            @Override
+            public void onWritten(boolean success) {
+                sendRequestMessage(requestId, new byte[0], success ? REQUEST_WROTE_RESOLVE : REQUEST_WROTE_REJECT);
+            }
+
+            @Override
+            public void onResponse(boolean success, byte[] response) {
+                sendRequestMessage(requestId, response, success ? REQUEST_READ_RESOLVE : REQUEST_READ_REJECT);
+            }
+        });
+        linkGovernor.onQueueDepth(operationQueue.size());
+    }
+
+    private void sendRequestMessage(int requestId, byte[] bytes, int communicationType) {
+        if (requestId == NO_REQUEST_ID) {
+            listener.onMessage(bytes, communicationType);
+        } else {
+            listener.onRequestMessage(requestId, bytes, communicationType);
+        }
+    }
+
+    public void setClock(byte[] clock) {
+        enqueue(GattOperation.rawWrite(GattOperation.LANE_CLOCK, COMMUNICATION_TYPE_CLOCK, CLOCK_CHAR_UUID, clock, GattTransport.WRITE_TYPE_DEFAULT, (operation, success, value) ->
+                listener.onMessage(new byte[0], success ? CLOCK_WROTE_RESOLVE : CLOCK_WROTE_REJECT)));
+    }
+
+    public void getClock() {
+        enqueue(GattOperation.read(GattOperation.LANE_CLOCK, COMMUNICATION_TYPE_CLOCK, CLOCK_CHAR_UUID, (operation, success, value) ->
+                listener.onMessage(success ? value : new byte[0], success ? CLOCK_READ_RESOLVE : CLOCK_READ_REJECT)));
+    }
+
+    // --- OTA UPDATE --- //
+
+    public void updateFirmware(byte[] firmware) {
+        updateFirmware(FirmwareSource.of(firmware));
+    }
+
+    /**
+     * @param firmware Read chunk by chunk while the update runs.
+     */
+    public void updateFirmware(FirmwareSource firmware) {
+        updateFirmware(firmware, null);
+    }
+
+    /**
+     * @param base Image the device runs, to send only a patch against it; null to send the whole image.
+     */
+    public void updateFirmware(FirmwareSource firmware, FirmwareSource base) {
+        if (otaUploader.isRunning()) {
+            LOG.warning("updateFirmware: an update is already running");
+            listener.onMessage(new byte[0], UPDATE_FIRMWARE_REJECT);
+            return;
+        }
+        linkGovernor.onOtaStarted();
+        otaProgressThrottle.reset();
+        otaUploader.start(firmware, base);
+    }
+
+    private void enqueue(GattOperation operation) {
+        operationQueue.setPacketSize(FrameSizing.packetSize(mtu, maxPacketSize));
+        operationQueue.enqueue(operation);
+        linkGovernor.onQueueDepth(operationQueue.size());
+    }
+}
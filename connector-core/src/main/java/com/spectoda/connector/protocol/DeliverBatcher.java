@@ -0,0 +1,173 @@
+package com.spectoda.connector.protocol;
+
+import java.util.ArrayList;
+
+/**
+ * Packs consecutive small deliver payloads into one framed write. The first payload opens a
+ * window; everything added until the window closes, or until the batch would outgrow its limit,
+ * is concatenated and written at once. Each caller is still resolved on its own.
+ * <p>
+ * Concatenation relies on the terminal command stream being self-delimiting, which is why
+ * batching is opt-in. Not thread safe: used on the {@link EventLoop} thread only.
+ */
+public final class DeliverBatcher {
+
+    public interface Sink {
+        void write(byte[] payload, GattOperation.Completion completion);
+    }
+
+    public interface Callback {
+        void onDelivered(boolean success);
+    }
+
+    private static final class Entry {
+        final byte[] payload;
+        final long addedAt;
+        final int frames;
+        final Callback callback;
+
+        Entry(byte[] payload, long addedAt, int frames, Callback callback) {
+            this.payload = payload;
+            this.addedAt = addedAt;
+            this.frames = frames;
+            this.callback = callback;
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final Sink sink;
+    private final Runnable flushTask = this::flush;
+
+    private long windowMillis;
+    private int maxBatchBytes;
+
+    private ArrayList<Entry> batch = new ArrayList<>();
+    private int batchBytes;
+    private int payloadPerPacket = 1;
+
+    // Written on the loop, read from any thread
+    private volatile long batchedPayloads;
+    private volatile long writtenBatches;
+    private volatile long framesSaved;
+    private volatile long totalQueueWaitMillis;
+    private volatile long maxQueueWaitMillis;
+
+    public DeliverBatcher(EventLoop eventLoop, Sink sink) {
+        this.eventLoop = eventLoop;
+        this.sink = sink;
+    }
+
+    /**
+     * @param windowMillis  How long the first payload of a batch waits for others, 0 disables batching.
+     * @param maxBatchBytes Largest batch in bytes, 0 to fill exactly one frame.
+     */
+    public void configure(long windowMillis, int maxBatchBytes) {
+        flush();
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxBatchBytes = Math.max(0, maxBatchBytes);
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    public void add(byte[] payload, int payloadPerPacket, Callback callback) {
+        this.payloadPerPacket = payloadPerPacket;
+        int limit = maxBatchBytes > 0 ? maxBatchBytes : payloadPerPacket;
+
+        if (!batch.isEmpty() && batchBytes + payload.length > limit) {
+            flush();
+        }
+        batch.add(new Entry(payload, eventLoop.now(), frames(payload.length), callback));
+        batchBytes += payload.length;
+
+        if (batchBytes >= limit) {
+            flush();
+        } else if (batch.size() == 1) {
+            eventLoop.postDelayed(flushTask, windowMillis);
+        }
+    }
+
+    public void flush() {
+        eventLoop.cancel(flushTask);
+        if (batch.isEmpty()) {
+            return;
+        }
+        final ArrayList<Entry> entries = batch;
+        batch = new ArrayList<>();
+
+        byte[] payload;
+        if (entries.size() == 1) {
+            payload = entries.get(0).payload;
+        } else {
+            payload = new byte[batchBytes];
+            int offset = 0;
+            for (Entry entry : entries) {
+                System.arraycopy(entry.payload, 0, payload, offset, entry.payload.length);
+                offset += entry.payload.length;
+            }
+        }
+        batchBytes = 0;
+
+        long now = eventLoop.now();
+        int individualFrames = 0;
+        for (Entry entry : entries) {
+            long waited = now - entry.addedAt;
+            totalQueueWaitMillis += waited;
+            maxQueueWaitMillis = Math.max(maxQueueWaitMillis, waited);
+            individualFrames += entry.frames;
+        }
+        batchedPayloads += entries.size();
+        writtenBatches++;
+        framesSaved += individualFrames - frames(payload.length);
+
+        sink.write(payload, (operation, success, value) -> {
+            for (Entry entry : entries) {
+                entry.callback.onDelivered(success);
+            }
+        });
+    }
+
+    /**
+     * Rejects the payloads still waiting in the window, e.g. after the link dropped.
+     */
+    public void failAll() {
+        eventLoop.cancel(flushTask);
+        ArrayList<Entry> entries = batch;
+        batch = new ArrayList<>();
+        batchBytes = 0;
+        for (Entry entry : entries) {
+            entry.callback.onDelivered(false);
+        }
+    }
+
+    private int frames(int length) {
+        return Math.max(1, (length + payloadPerPacket - 1) / payloadPerPacket);
+    }
+
+    public long getBatchedPayloads() {
+        return batchedPayloads;
+    }
+
+    public long getWrittenBatches() {
+        return writtenBatches;
+    }
+
+    /**
+     * @return Frames that would have been written without batching minus frames actually written.
+     */
+    public long getFramesSaved() {
+        return framesSaved;
+    }
+
+    /**
+     * @return Average time a payload spent waiting in the batching window.
+     */
+    public long getAverageQueueWaitMillis() {
+        return batchedPayloads > 0 ? totalQueueWaitMillis / batchedPayloads : 0;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+}
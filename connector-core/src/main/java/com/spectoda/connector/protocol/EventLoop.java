@@ -0,0 +1,14 @@
+package com.spectoda.connector.protocol;
+
+/**
+ * Single thread the protocol classes run on, with a monotonic millisecond clock.
+ */
+public interface EventLoop {
+    long now();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void cancel(Runnable task);
+}
@@ -0,0 +1,260 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Updates a list of devices with one firmware image over several connections at once. At most
+ * {@link #setMaxConcurrent(int)} updates run at a time, the strongest signals go first so the
+ * quick updates free their connection early, and a failed device is queued again after the
+ * devices not tried yet until it ran out of attempts.
+ * <p>
+ * Runs on the event loop, the {@link DeviceUpdater} has to report on it too.
+ */
+public final class FleetOtaOrchestrator {
+    private static final Logger LOG = Logger.getLogger(FleetOtaOrchestrator.class.getName());
+
+    // Phones hold up to about seven links, OTA saturates the radio well before that
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 5_000;
+
+    public static final class Target {
+        public final String address;
+        public final int rssi;
+
+        /**
+         * @param rssi Signal strength of the last advertisement, in dBm.
+         */
+        public Target(String address, int rssi) {
+            this.address = address;
+            this.rssi = rssi;
+        }
+    }
+
+    public interface DeviceUpdater {
+        /**
+         * Connects to the device, updates its firmware and disconnects.
+         */
+        void update(String address, FirmwareSource firmware, UpdateCallback callback);
+    }
+
+    public interface UpdateCallback {
+        /**
+         * @param progress Percentage of the firmware written.
+         */
+        void onProgress(float progress);
+
+        void onFinished(boolean success);
+    }
+
+    public interface Listener {
+        void onDeviceProgress(String address, float progress);
+
+        /**
+         * @param attempts Updates the device needed, or took before it was given up.
+         */
+        void onDeviceFinished(String address, boolean success, int attempts);
+
+        /**
+         * @param progress Percentage of the whole rollout, a given up device counts as done.
+         */
+        void onProgress(float progress);
+
+        void onFinished(int updated, int failed);
+    }
+
+    private static final class DeviceState {
+        final Target target;
+        float progress;
+        int attempts;
+        boolean finished;
+
+        DeviceState(Target target) {
+            this.target = target;
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final DeviceUpdater updater;
+    private final Listener listener;
+
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+    private final Map<String, DeviceState> devices = new LinkedHashMap<>();
+    private final ArrayDeque<DeviceState> waiting = new ArrayDeque<>();
+    private FirmwareSource firmware;
+    // Updates holding a connection, those of a cancelled rollout included until they finish
+    private int running;
+    private int updated;
+    private int failed;
+    // Tells callbacks of a cancelled rollout from those of the current one
+    private int rollout;
+
+    public FleetOtaOrchestrator(EventLoop eventLoop, DeviceUpdater updater, Listener listener) {
+        this.eventLoop = eventLoop;
+        this.updater = updater;
+        this.listener = listener;
+    }
+
+    /**
+     * @param maxConcurrent Updates running at once, as many as the radio sustains at full throughput.
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("Invalid concurrency " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * @param maxAttempts      Updates tried per device before it is given up.
+     * @param retryDelayMillis Wait before a failed device is queued again.
+     */
+    public void setRetries(int maxAttempts, long retryDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid attempts " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public boolean isRunning() {
+        return firmware != null;
+    }
+
+    public void start(List<Target> targets, FirmwareSource firmware) {
+        if (isRunning()) {
+            throw new IllegalStateException("Rollout already running");
+        }
+        List<Target> sorted = new ArrayList<>(targets);
+        Collections.sort(sorted, (lhs, rhs) -> Integer.compare(rhs.rssi, lhs.rssi));
+
+        rollout++;
+        devices.clear();
+        waiting.clear();
+        updated = 0;
+        failed = 0;
+        for (Target target : sorted) {
+            if (!devices.containsKey(target.address)) {
+                DeviceState device = new DeviceState(target);
+                devices.put(target.address, device);
+                waiting.addLast(device);
+            }
+        }
+        LOG.fine("start: " + devices.size() + " devices, " + maxConcurrent + " at a time");
+        this.firmware = firmware;
+        if (devices.isEmpty()) {
+            finish();
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Stops starting updates, the ones running finish on their own and are not reported. Until
+     * they do, their connections count against the concurrency of the next rollout.
+     */
+    public void cancel() {
+        if (isRunning()) {
+            LOG.fine("cancel: " + waiting.size() + " devices not updated");
+            rollout++;
+            firmware = null;
+            waiting.clear();
+        }
+    }
+
+    private void schedule() {
+        while (running < maxConcurrent && !waiting.isEmpty()) {
+            DeviceState device = waiting.pollFirst();
+            device.attempts++;
+            device.progress = 0;
+            running++;
+            LOG.fine("schedule: " + device.target.address + ", attempt " + device.attempts);
+
+            final int started = rollout;
+            updater.update(device.target.address, firmware, new UpdateCallback() {
+                private boolean done;
+
+                @Override
+                public void onProgress(float progress) {
+                    if (started == rollout && !device.finished) {
+                        device.progress = Math.max(0, progress);
+                        listener.onDeviceProgress(device.target.address, device.progress);
+                        listener.onProgress(progress());
+                    }
+                }
+
+                @Override
+                public void onFinished(boolean success) {
+                    if (done) {
+                        return;
+                    }
+                    done = true;
+                    if (started == rollout) {
+                        onDeviceFinished(device, success);
+                    } else {
+                        running--;
+                        if (isRunning()) {
+                            schedule();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void onDeviceFinished(DeviceState device, boolean success) {
+        running--;
+        if (!success && device.attempts < maxAttempts) {
+            LOG.fine("onDeviceFinished: " + device.target.address + " failed, retrying");
+            device.progress = 0;
+            final int started = rollout;
+            eventLoop.postDelayed(() -> {
+                if (started == rollout) {
+                    waiting.addLast(device);
+                    schedule();
+                }
+            }, retryDelayMillis);
+        } else {
+            device.finished = true;
+            device.progress = 100;
+            if (success) {
+                updated++;
+            } else {
+                failed++;
+            }
+            listener.onDeviceFinished(device.target.address, success, device.attempts);
+        }
+        listener.onProgress(progress());
+
+        if (updated + failed == devices.size()) {
+            finish();
+        } else {
+            schedule();
+        }
+    }
+
+    private float progress() {
+        float sum = 0;
+        for (DeviceState device : devices.values()) {
+            sum += device.progress;
+        }
+        return sum / devices.size();
+    }
+
+    private void finish() {
+        LOG.fine("finish: " + updated + " updated, " + failed + " failed");
+        firmware = null;
+        listener.onFinished(updated, failed);
+    }
+}
@@ -0,0 +1,122 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a payload into GATT frames of the form
+ * {@code [payload id (4)][offset (4)][total length (4)][payload slice]}, all little-endian.
+ * <p>
+ * Frames are written straight into buffers taken from a {@link FramePool}; the caller returns
+ * each frame with {@link #release(ByteBuffer)} once it has been handed to the GATT stack. A
+ * payload given as a {@link FirmwareSource} is read slice by slice into the frames, it is never
+ * on the heap as a whole.
+ */
+public final class FrameFragmenter {
+    public static final int HEADER_SIZE = 12;
+
+    private final FramePool pool;
+    private int packetSize;
+
+    private long payloadId;
+    private byte[] payload;
+    private FirmwareSource source;
+    private int payloadOffset;
+    private int payloadLength;
+    private int offset;
+
+    public FrameFragmenter(FramePool pool, int packetSize) {
+        this.pool = pool;
+        setPacketSize(packetSize);
+    }
+
+    public void setPacketSize(int packetSize) {
+        if (packetSize <= HEADER_SIZE || packetSize > pool.getMaxFrameSize()) {
+            throw new IllegalArgumentException("Invalid packet size: " + packetSize);
+        }
+        this.packetSize = packetSize;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getPayloadPerPacket() {
+        return packetSize - HEADER_SIZE;
+    }
+
+    public void reset(long payloadId, byte[] payload) {
+        reset(payloadId, payload, 0, payload.length);
+    }
+
+    public void reset(long payloadId, byte[] payload, int payloadOffset, int payloadLength) {
+        this.payloadId = payloadId;
+        this.payload = payload;
+        this.source = null;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.offset = 0;
+    }
+
+    public void reset(long payloadId, FirmwareSource source) {
+        this.payloadId = payloadId;
+        this.payload = null;
+        this.source = source;
+        this.payloadOffset = 0;
+        this.payloadLength = source.length();
+        this.offset = 0;
+    }
+
+    public void clear() {
+        payload = null;
+        source = null;
+    }
+
+    public boolean hasNext() {
+        return (payload != null || source != null) && offset < payloadLength;
+    }
+
+    /**
+     * @return Offset inside the payload of the frame returned by the next call to {@link #next()}.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @throws UncheckedIOException When the slice cannot be read from the source.
+     */
+    public ByteBuffer next() {
+        int sliceLength = Math.min(getPayloadPerPacket(), payloadLength - offset);
+        ByteBuffer frame = pool.acquire(HEADER_SIZE + sliceLength);
+        frame.putInt((int) payloadId);
+        frame.putInt(offset);
+        frame.putInt(payloadLength);
+        if (source != null) {
+            try {
+                source.read(offset, frame.array(), frame.arrayOffset() + frame.position(), sliceLength);
+            } catch (IOException e) {
+                pool.release(frame);
+                throw new UncheckedIOException(e);
+            }
+            frame.position(frame.position() + sliceLength);
+        } else {
+            frame.put(payload, payloadOffset + offset, sliceLength);
+        }
+        frame.flip();
+
+        offset += sliceLength;
+        if (offset >= payloadLength) {
+            payload = null;
+            source = null;
+        }
+        return frame;
+    }
+
+    public void release(ByteBuffer frame) {
+        pool.release(frame);
+    }
+}
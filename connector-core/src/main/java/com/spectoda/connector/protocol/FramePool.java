@@ -0,0 +1,53 @@
+package com.spectoda.connector.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pool of little-endian frame buffers indexed by their exact length.
+ * <p>
+ * GATT writes take the whole backing array as the characteristic value, so every buffer is
+ * backed by an array of exactly the frame length. Once each length has been used it is served
+ * from the pool without allocating.
+ */
+public final class FramePool {
+    private static final int BUFFERS_PER_LENGTH = 4;
+
+    private final ByteBuffer[][] free;
+    private final int[] freeCount;
+
+    public FramePool(int maxFrameSize) {
+        free = new ByteBuffer[maxFrameSize + 1][];
+        freeCount = new int[maxFrameSize + 1];
+    }
+
+    public int getMaxFrameSize() {
+        return free.length - 1;
+    }
+
+    public ByteBuffer acquire(int frameLength) {
+        if (frameLength < 0 || frameLength >= free.length) {
+            throw new IllegalArgumentException("Frame length " + frameLength + " out of pool range");
+        }
+        if (freeCount[frameLength] > 0) {
+            ByteBuffer buffer = free[frameLength][--freeCount[frameLength]];
+            free[frameLength][freeCount[frameLength]] = null;
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.wrap(new byte[frameLength]).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void release(ByteBuffer buffer) {
+        int frameLength = buffer.capacity();
+        if (frameLength >= free.length) {
+            return;
+        }
+        if (free[frameLength] == null) {
+            free[frameLength] = new ByteBuffer[BUFFERS_PER_LENGTH];
+        }
+        if (freeCount[frameLength] < BUFFERS_PER_LENGTH) {
+            free[frameLength][freeCount[frameLength]++] = buffer;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.spectoda.connector.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds messages the device sends as {@code [id][offset][total][slice]} notifications, the
+ * same framing {@link FrameFragmenter} produces. Only whole messages reach the listener.
+ * <p>
+ * Every message in progress has its own buffer; together they never hold more than the memory
+ * cap, the oldest incomplete message is dropped to make room. A message that gets no frame for
+ * the timeout is dropped as well.
+ * <p>
+ * A notification shorter than the frame header cannot be a frame and is passed through unchanged,
+ * as is one whose header does not add up or whose message is larger than the memory cap: firmware
+ * that does not frame its output sends those. With {@link #setStrictFraming(boolean)} every
+ * notification is a frame, and one that fails these checks is rejected and never reaches the
+ * listener.
+ * <p>
+ * Not thread safe: used on the {@link EventLoop} thread only.
+ */
+public final class FrameReassembler {
+    private static final Logger LOG = Logger.getLogger(FrameReassembler.class.getName());
+
+    public static final int DEFAULT_MEMORY_CAP = 64 * 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    public interface Listener {
+        void onMessage(byte[] message);
+    }
+
+    private static final class Message {
+        final long id;
+        final byte[] data;
+        int received;
+        long lastFrameAt;
+
+        Message(long id, int total) {
+            this.id = id;
+            this.data = new byte[total];
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final Listener listener;
+    private final Runnable sweepTask = this::sweep;
+    private final ArrayList<Message> messages = new ArrayList<>();
+
+    private int memoryCap = DEFAULT_MEMORY_CAP;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    // Written on the loop, read from any thread
+    private volatile int bufferedBytes;
+
+    private volatile long completedMessages;
+    private volatile long droppedMessages;
+    private volatile long rejectedFrames;
+    private volatile long unframedNotifications;
+    private boolean strictFraming;
+
+    public FrameReassembler(EventLoop eventLoop, Listener listener) {
+        this.eventLoop = eventLoop;
+        this.listener = listener;
+    }
+
+    /**
+     * @param memoryCap     Bytes all incomplete messages may occupy together; also the largest message accepted.
+     * @param timeoutMillis How long an incomplete message waits for its next frame.
+     */
+    public void setLimits(int memoryCap, long timeoutMillis) {
+        this.memoryCap = memoryCap;
+        this.timeoutMillis = timeoutMillis;
+        while (bufferedBytes > memoryCap) {
+            drop(messages.get(0));
+        }
+    }
+
+    /**
+     * @param strictFraming The firmware frames every notification, one that is not a valid frame is rejected rather than passed through.
+     */
+    public void setStrictFraming(boolean strictFraming) {
+        this.strictFraming = strictFraming;
+    }
+
+    public void onFrame(byte[] frame) {
+        if (frame == null || frame.length < FrameFragmenter.HEADER_SIZE) {
+            // Unframed
+            unframedNotifications++;
+            listener.onMessage(frame != null ? frame : new byte[0]);
+            return;
+        }
+        long id = readInt(frame, 0);
+        long offset = readInt(frame, 4);
+        long total = readInt(frame, 8);
+        int sliceLength = frame.length - FrameFragmenter.HEADER_SIZE;
+
+        if (total == 0 || total > memoryCap || offset + sliceLength > total) {
+            if (!strictFraming) {
+                // Unframed, the first bytes only looked like a header
+                unframedNotifications++;
+                listener.onMessage(frame);
+                return;
+            }
+            rejectedFrames++;
+            LOG.warning("onFrame: rejected frame of message " + id + " at " + offset + " of " + total + " B, " + sliceLength + " B slice");
+            Message message = find(id);
+            if (message != null) {
+                drop(message);
+            }
+            return;
+        }
+        if (offset == 0 && sliceLength == total) {
+            completedMessages++;
+            listener.onMessage(Arrays.copyOfRange(frame, FrameFragmenter.HEADER_SIZE, frame.length));
+            return;
+        }
+
+        Message message = find(id);
+        if (message == null) {
+            if (offset != 0) {
+                // Its beginning was dropped already
+                return;
+            }
+            message = start(id, (int) total);
+        } else if (offset != message.received || total != message.data.length) {
+            // Frames of one message arrive in order, anything else means one got lost
+            drop(message);
+            return;
+        }
+
+        System.arraycopy(frame, FrameFragmenter.HEADER_SIZE, message.data, message.received, sliceLength);
+        message.received += sliceLength;
+        message.lastFrameAt = eventLoop.now();
+
+        if (message.received == message.data.length) {
+            remove(message);
+            completedMessages++;
+            listener.onMessage(message.data);
+        }
+    }
+
+    public int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public long getCompletedMessages() {
+        return completedMessages;
+    }
+
+    /**
+     * @return Incomplete messages dropped for lack of memory, a timeout or a lost frame.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return Frames rejected for a header that does not add up or a message over the memory cap, with strict framing.
+     */
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+
+    /**
+     * @return Notifications passed through unchanged as they are no valid frame, without strict framing.
+     */
+    public long getUnframedNotifications() {
+        return unframedNotifications;
+    }
+
+    /**
+     * Drops every incomplete message, e.g. after the link dropped.
+     */
+    public void clear() {
+        while (!messages.isEmpty()) {
+            remove(messages.get(0));
+        }
+    }
+
+    private Message start(long id, int total) {
+        while (!messages.isEmpty() && bufferedBytes + total > memoryCap) {
+            drop(messages.get(0));
+        }
+        Message message = new Message(id, total);
+        messages.add(message);
+        bufferedBytes += total;
+        if (messages.size() == 1) {
+            eventLoop.postDelayed(sweepTask, timeoutMillis);
+        }
+        return message;
+    }
+
+    private void sweep() {
+        long now = eventLoop.now();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (now - messages.get(i).lastFrameAt >= timeoutMillis) {
+                drop(messages.get(i));
+            }
+        }
+        if (!messages.isEmpty()) {
+            eventLoop.postDelayed(sweepTask, timeoutMillis);
+        }
+    }
+
+    private Message find(long id) {
+        for (Message message : messages) {
+            if (message.id == id) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void drop(Message message) {
+        droppedMessages++;
+        remove(message);
+    }
+
+    private void remove(Message message) {
+        messages.remove(message);
+        bufferedBytes -= message.data.length;
+        if (messages.isEmpty()) {
+            eventLoop.cancel(sweepTask);
+        }
+    }
+
+    private static long readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFFL) | (bytes[index + 1] & 0xFFL) << 8 | (bytes[index + 2] & 0xFFL) << 16 | (bytes[index + 3] & 0xFFL) << 24;
+    }
+}
@@ -0,0 +1,47 @@
+package com.spectoda.connector.protocol;
+
+/**
+ * Frame sizes derived from the negotiated ATT MTU.
+ */
+public final class FrameSizing {
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    // ATT opcode + attribute handle
+    public static final int ATT_WRITE_HEADER = 3;
+    // Longest attribute value the ATT protocol allows
+    public static final int MAX_PACKET_SIZE = 512;
+
+    public static final int OTA_HEADER_SIZE = 6;
+    // OTA data chunks must be aligned to 16 bytes for the flash writer
+    public static final int OTA_CHUNK_ALIGNMENT = 16;
+    public static final int OTA_PACKETS_PER_CHUNK = 10;
+
+    private FrameSizing() {
+    }
+
+    public static int packetSize(int mtu, int maxPacketSize) {
+        int packetSize = Math.min(mtu, MAX_MTU) - ATT_WRITE_HEADER;
+        return Math.max(FrameFragmenter.HEADER_SIZE + 1, Math.min(packetSize, Math.min(maxPacketSize, MAX_PACKET_SIZE)));
+    }
+
+    public static int payloadPerPacket(int mtu, int maxPacketSize) {
+        return packetSize(mtu, maxPacketSize) - FrameFragmenter.HEADER_SIZE;
+    }
+
+    /**
+     * @return Size of the firmware slice carried by one FLAG_OTA_WRITE payload, so that the payload
+     * together with its OTA header fills {@link #OTA_PACKETS_PER_CHUNK} frames.
+     */
+    public static int otaChunkSize(int payloadPerPacket) {
+        return otaChunkSize(payloadPerPacket, OTA_PACKETS_PER_CHUNK);
+    }
+
+    /**
+     * @return Size of the firmware slice of a FLAG_OTA_WRITE payload that fills {@code packets} frames.
+     */
+    public static int otaChunkSize(int payloadPerPacket, int packets) {
+        int chunkSize = payloadPerPacket * packets - OTA_HEADER_SIZE;
+        chunkSize -= chunkSize % OTA_CHUNK_ALIGNMENT;
+        return Math.max(OTA_CHUNK_ALIGNMENT, chunkSize);
+    }
+}
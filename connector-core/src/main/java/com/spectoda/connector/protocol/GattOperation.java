@@ -0,0 +1,215 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * One unit of work for {@link GattOperationQueue}. A framed write may span several GATT writes,
+ * the operation completes once all of its frames were acknowledged.
+ */
+public final class GattOperation {
+    public static final int TYPE_WRITE = 0;
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_MTU = 2;
+
+    // Scheduling lanes, see GattOperationQueue
+    public static final int LANE_TRANSMIT = 0;
+    public static final int LANE_DELIVER = 1;
+    public static final int LANE_REQUEST = 2;
+    public static final int LANE_CLOCK = 3;
+    public static final int LANE_OTA = 4;
+    public static final int LANE_COUNT = 5;
+
+    public interface Completion {
+        void onComplete(GattOperation operation, boolean success, byte[] value);
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private long id;
+    private final int lane;
+    private final int type;
+    private final int communicationType;
+    private final UUID characteristic;
+    private final byte[] payload;
+    private final FirmwareSource source;
+    private final long payloadId;
+    private final int writeType;
+    private final boolean framed;
+    private final int mtu;
+    private final Completion completion;
+    private byte[] supersessionKey;
+    private boolean superseded;
+    private boolean streamed;
+    private int status = GattTransport.STATUS_FAILURE;
+
+    private GattOperation(int lane, int type, int communicationType, UUID characteristic, byte[] payload, FirmwareSource source, int writeType, boolean framed, int mtu, Completion completion) {
+        this.lane = lane;
+        this.type = type;
+        this.communicationType = communicationType;
+        this.characteristic = characteristic;
+        this.payload = payload;
+        this.source = source;
+        this.payloadId = (long) (Math.random() * 0xffffffffL);
+        this.writeType = writeType;
+        this.framed = framed;
+        this.mtu = mtu;
+        this.completion = completion;
+    }
+
+    /**
+     * Write split into {@code [id][offset][total]} frames.
+     */
+    public static GattOperation framedWrite(int lane, int communicationType, UUID characteristic, byte[] payload, int writeType, Completion completion) {
+        return new GattOperation(lane, TYPE_WRITE, communicationType, characteristic, payload, null, writeType, true, 0, completion);
+    }
+
+    /**
+     * Framed write of a payload read slice by slice as its frames are sent.
+     */
+    public static GattOperation framedWrite(int lane, int communicationType, UUID characteristic, FirmwareSource source, int writeType, Completion completion) {
+        return new GattOperation(lane, TYPE_WRITE, communicationType, characteristic, EMPTY, source, writeType, true, 0, completion);
+    }
+
+    /**
+     * Write of the payload as the characteristic value, without framing.
+     */
+    public static GattOperation rawWrite(int lane, int communicationType, UUID characteristic, byte[] payload, int writeType, Completion completion) {
+        return new GattOperation(lane, TYPE_WRITE, communicationType, characteristic, payload, null, writeType, false, 0, completion);
+    }
+
+    public static GattOperation read(int lane, int communicationType, UUID characteristic, Completion completion) {
+        return new GattOperation(lane, TYPE_READ, communicationType, characteristic, EMPTY, null, 0, false, 0, completion);
+    }
+
+    public static GattOperation requestMtu(int mtu, Completion completion) {
+        return new GattOperation(-1, TYPE_MTU, -1, null, EMPTY, null, 0, false, mtu, completion);
+    }
+
+    /**
+     * A waiting operation is replaced by a newer one of the same lane with an equal key
+     * instead of being written. The replaced operation completes successfully with
+     * {@link #isSuperseded()} set.
+     */
+    public GattOperation setSupersessionKey(byte[] supersessionKey) {
+        this.supersessionKey = supersessionKey;
+        return this;
+    }
+
+    /**
+     * Frames of a framed write go out without response except the last one, so several frames are
+     * in flight and the acknowledgement of the last one confirms the whole payload.
+     */
+    public GattOperation setStreamed(boolean streamed) {
+        this.streamed = streamed;
+        return this;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    public byte[] getSupersessionKey() {
+        return supersessionKey;
+    }
+
+    boolean supersedes(GattOperation operation) {
+        return supersessionKey != null && operation.supersessionKey != null && lane == operation.lane && Arrays.equals(supersessionKey, operation.supersessionKey);
+    }
+
+    public boolean isSuperseded() {
+        return superseded;
+    }
+
+    void supersede() {
+        superseded = true;
+        complete(true, null);
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return One of the LANE_ constants, or -1 for link control operations that bypass the lanes.
+     */
+    public int getLane() {
+        return lane;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getCommunicationType() {
+        return communicationType;
+    }
+
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * @return The payload, empty when it is read from {@link #getSource()}.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return Source of a streamed framed write, null otherwise.
+     */
+    public FirmwareSource getSource() {
+        return source;
+    }
+
+    public int getLength() {
+        return source != null ? source.length() : payload.length;
+    }
+
+    public long getPayloadId() {
+        return payloadId;
+    }
+
+    public int getWriteType() {
+        return writeType;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return GATT status the operation completed with, {@link GattTransport#STATUS_FAILURE} when it
+     * failed without one, e.g. it timed out or the link dropped.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    void complete(boolean success, byte[] value) {
+        complete(success ? GattTransport.STATUS_SUCCESS : GattTransport.STATUS_FAILURE, value);
+    }
+
+    void complete(int status, byte[] value) {
+        this.status = status;
+        if (completion != null) {
+            completion.onComplete(this, status == GattTransport.STATUS_SUCCESS, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GattOperation{id=" + id + ", lane=" + lane + ", type=" + type + ", communicationType=" + communicationType + ", characteristic=" + characteristic + ", length=" + getLength() + "}";
+    }
+}
@@ -0,0 +1,457 @@
+package com.spectoda.connector.protocol;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Serializes GATT operations so that only one of them is outstanding at a time, as the Android
+ * GATT client requires. Every GATT callback completes exactly the operation that issued it.
+ * <p>
+ * Operations wait in lanes ({@link GattOperation#LANE_TRANSMIT} ... {@link GattOperation#LANE_OTA})
+ * that are served frame by frame with weighted round robin: every lane gets as many frames per
+ * round as its weight while it has work. Framed writes to different characteristics interleave
+ * between frames, so a long OTA chunk on the device characteristic does not hold back a transmit
+ * on the terminal characteristic. Writes to the same characteristic never interleave, the device
+ * reassembles one payload per characteristic at a time. Operations outside of the lanes, like the
+ * MTU request, go before every lane; a framed one sends all its frames first.
+ * <p>
+ * An operation with a supersession key replaces the waiting operation of its lane that has the
+ * same key, so a stream of updates to one value keeps at most one of them queued.
+ * <p>
+ * Not thread safe: all methods must be called from the thread that owns the queue.
+ */
+public final class GattOperationQueue {
+    private static final Logger LOG = Logger.getLogger(GattOperationQueue.class.getName());
+
+    private static final int[] DEFAULT_LANE_WEIGHTS = new int[GattOperation.LANE_COUNT];
+
+    static {
+        DEFAULT_LANE_WEIGHTS[GattOperation.LANE_TRANSMIT] = 8;
+        DEFAULT_LANE_WEIGHTS[GattOperation.LANE_DELIVER] = 4;
+        DEFAULT_LANE_WEIGHTS[GattOperation.LANE_REQUEST] = 4;
+        DEFAULT_LANE_WEIGHTS[GattOperation.LANE_CLOCK] = 4;
+        DEFAULT_LANE_WEIGHTS[GattOperation.LANE_OTA] = 1;
+    }
+
+    // Framed write that has started and still has frames to send
+    private static final class Transfer {
+        GattOperation operation;
+        final FrameFragmenter fragmenter;
+
+        Transfer(FrameFragmenter fragmenter) {
+            this.fragmenter = fragmenter;
+        }
+    }
+
+    private final GattTransport gatt;
+    private final FramePool pool;
+    private int packetSize;
+
+    private final ArrayDeque<GattOperation> urgent = new ArrayDeque<>();
+    private final ArrayList<ArrayDeque<GattOperation>> lanes = new ArrayList<>(GattOperation.LANE_COUNT);
+    private final int[] laneWeights = DEFAULT_LANE_WEIGHTS.clone();
+    private final int[] laneCredits = new int[GattOperation.LANE_COUNT];
+    private final Transfer[] laneTransfers = new Transfer[GattOperation.LANE_COUNT];
+    // Framed write outside of the lanes, its frames go before those of every lane
+    private Transfer urgentTransfer;
+    private final ArrayDeque<Transfer> idleTransfers = new ArrayDeque<>();
+    private int nextLane;
+
+    // Operation whose GATT request is outstanding
+    private GattOperation current;
+    private Transfer currentTransfer;
+    private long nextOperationId = 1;
+    // Written on the loop, read from any thread
+    private volatile long supersededCount;
+    private boolean paused;
+
+    public GattOperationQueue(GattTransport gatt, FramePool pool, int packetSize) {
+        this.gatt = gatt;
+        this.pool = pool;
+        this.packetSize = packetSize;
+        for (int lane = 0; lane < GattOperation.LANE_COUNT; lane++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Applies to transfers that start after the call.
+     */
+    public void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * @param weight Frames the lane may send per scheduling round while other lanes have work, at least 1.
+     */
+    public void setLaneWeight(int lane, int weight) {
+        laneWeights[lane] = Math.max(1, weight);
+    }
+
+    public long enqueue(GattOperation operation) {
+        operation.setId(nextOperationId++);
+        if (operation.getLane() < 0) {
+            urgent.addLast(operation);
+        } else if (!replaceSuperseded(lanes.get(operation.getLane()), operation)) {
+            lanes.get(operation.getLane()).addLast(operation);
+        }
+        drain();
+        return operation.getId();
+    }
+
+    // Swaps the operation in at the place of a waiting operation it supersedes
+    private boolean replaceSuperseded(ArrayDeque<GattOperation> lane, GattOperation operation) {
+        if (operation.getSupersessionKey() == null) {
+            return false;
+        }
+        GattOperation superseded = null;
+        int waiting = lane.size();
+        for (int i = 0; i < waiting; i++) {
+            GattOperation queued = lane.pollFirst();
+            if (superseded == null && operation.supersedes(queued)) {
+                superseded = queued;
+                lane.addLast(operation);
+            } else {
+                lane.addLast(queued);
+            }
+        }
+        if (superseded == null) {
+            return false;
+        }
+        supersededCount++;
+        superseded.supersede();
+        return true;
+    }
+
+    /**
+     * @return Number of waiting operations that were replaced by newer ones with the same key.
+     */
+    public long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /**
+     * Enqueue ahead of every waiting operation of every lane. Operations in progress are not
+     * interrupted, but no further frame of them is sent before this one.
+     */
+    public long enqueueFirst(GattOperation operation) {
+        operation.setId(nextOperationId++);
+        urgent.addFirst(operation);
+        drain();
+        return operation.getId();
+    }
+
+    public GattOperation getCurrent() {
+        return current;
+    }
+
+    public int size() {
+        int size = urgent.size() + (current != null && currentTransfer == null ? 1 : 0) + (urgentTransfer != null ? 1 : 0);
+        for (int lane = 0; lane < GattOperation.LANE_COUNT; lane++) {
+            size += size(lane);
+        }
+        return size;
+    }
+
+    /**
+     * @return Operations of the lane that are waiting or in progress.
+     */
+    public int size(int lane) {
+        return lanes.get(lane).size() + (laneTransfers[lane] != null ? 1 : 0);
+    }
+
+    public boolean isIdle() {
+        return size() == 0 && current == null;
+    }
+
+    /**
+     * @return False when no write on this characteristic was outstanding.
+     */
+    public boolean onCharacteristicWrite(UUID characteristic, boolean success) {
+        return onCharacteristicWrite(characteristic, success ? GattTransport.STATUS_SUCCESS : GattTransport.STATUS_FAILURE);
+    }
+
+    /**
+     * @param status GATT status of the write, the operation completes with it.
+     * @return False when no write on this characteristic was outstanding.
+     */
+    public boolean onCharacteristicWrite(UUID characteristic, int status) {
+        boolean success = status == GattTransport.STATUS_SUCCESS;
+        if (current == null || current.getType() != GattOperation.TYPE_WRITE || !current.getCharacteristic().equals(characteristic)) {
+            return false;
+        }
+        Transfer transfer = currentTransfer;
+        if (success && transfer != null && transfer.fragmenter.hasNext()) {
+            // More frames to go, the lanes decide which frame is sent next
+            current = null;
+            currentTransfer = null;
+            drain();
+        } else {
+            complete(status, null);
+        }
+        return true;
+    }
+
+    /**
+     * @return False when no read on this characteristic was outstanding.
+     */
+    public boolean onCharacteristicRead(UUID characteristic, boolean success, byte[] value) {
+        if (current == null || current.getType() != GattOperation.TYPE_READ || !current.getCharacteristic().equals(characteristic)) {
+            return false;
+        }
+        complete(success, value);
+        return true;
+    }
+
+    /**
+     * @return False when no MTU request was outstanding.
+     */
+    public boolean onMtuChanged(int mtu, boolean success) {
+        if (current == null || current.getType() != GattOperation.TYPE_MTU) {
+            return false;
+        }
+        complete(success, null);
+        return true;
+    }
+
+    /**
+     * Holds back every operation that has not started, e.g. while the services are discovered
+     * again. Operations are still queued and start once {@link #resume()} is called.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+        drain();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Fails the operations in progress and everything waiting, e.g. after the link dropped.
+     */
+    public void failAll() {
+        ArrayList<GattOperation> failed = new ArrayList<>();
+        takeInProgress(failed);
+        failed.addAll(urgent);
+        urgent.clear();
+        for (int lane = 0; lane < GattOperation.LANE_COUNT; lane++) {
+            failed.addAll(lanes.get(lane));
+            lanes.get(lane).clear();
+        }
+        for (GattOperation operation : failed) {
+            operation.complete(false, null);
+        }
+    }
+
+    /**
+     * Fails the operations in progress, framed writes that sent part of their frames included,
+     * e.g. after the services changed. Waiting operations stay queued.
+     */
+    public void failInProgress() {
+        ArrayList<GattOperation> failed = new ArrayList<>();
+        takeInProgress(failed);
+        for (GattOperation operation : failed) {
+            operation.complete(false, null);
+        }
+        drain();
+    }
+
+    private void takeInProgress(ArrayList<GattOperation> operations) {
+        if (current != null && currentTransfer == null) {
+            operations.add(current);
+        }
+        current = null;
+        currentTransfer = null;
+        if (urgentTransfer != null) {
+            operations.add(urgentTransfer.operation);
+            releaseTransfer(-1);
+        }
+        for (int lane = 0; lane < GattOperation.LANE_COUNT; lane++) {
+            if (laneTransfers[lane] != null) {
+                operations.add(laneTransfers[lane].operation);
+                releaseTransfer(lane);
+            }
+        }
+    }
+
+    private void drain() {
+        while (current == null && !paused) {
+            if (urgentTransfer != null) {
+                currentTransfer = urgentTransfer;
+                current = currentTransfer.operation;
+                writeNextFrame();
+                continue;
+            }
+            if (!urgent.isEmpty()) {
+                start(urgent.pollFirst());
+                continue;
+            }
+            int lane = nextEligibleLane();
+            if (lane < 0) {
+                return;
+            }
+            laneCredits[lane]--;
+            if (laneTransfers[lane] != null) {
+                currentTransfer = laneTransfers[lane];
+                current = currentTransfer.operation;
+                writeNextFrame();
+            } else {
+                start(lanes.get(lane).pollFirst());
+            }
+        }
+    }
+
+    // Weighted round robin over the lanes that can send a frame right now
+    private int nextEligibleLane() {
+        boolean eligible = false;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < GattOperation.LANE_COUNT; i++) {
+                int lane = (nextLane + i) % GattOperation.LANE_COUNT;
+                if (!canSend(lane)) {
+                    continue;
+                }
+                eligible = true;
+                if (laneCredits[lane] > 0) {
+                    // Stay on the lane until its credits are used up
+                    nextLane = lane;
+                    if (laneCredits[lane] == 1) {
+                        nextLane = (lane + 1) % GattOperation.LANE_COUNT;
+                    }
+                    return lane;
+                }
+            }
+            if (!eligible) {
+                return -1;
+            }
+            System.arraycopy(laneWeights, 0, laneCredits, 0, GattOperation.LANE_COUNT);
+        }
+        return -1;
+    }
+
+    private boolean canSend(int lane) {
+        if (laneTransfers[lane] != null) {
+            return true;
+        }
+        GattOperation head = lanes.get(lane).peekFirst();
+        return head != null && !isCharacteristicBusy(head.getCharacteristic());
+    }
+
+    private boolean isCharacteristicBusy(UUID characteristic) {
+        for (Transfer transfer : laneTransfers) {
+            if (transfer != null && transfer.operation.getCharacteristic().equals(characteristic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(GattOperation operation) {
+        current = operation;
+        switch (operation.getType()) {
+            case GattOperation.TYPE_WRITE:
+                if (operation.isFramed()) {
+                    if (operation.getLength() == 0) {
+                        complete(true, null);
+                        return;
+                    }
+                    currentTransfer = acquireTransfer(operation);
+                    if (operation.getLane() >= 0) {
+                        laneTransfers[operation.getLane()] = currentTransfer;
+                    } else {
+                        urgentTransfer = currentTransfer;
+                    }
+                    writeNextFrame();
+                } else if (!gatt.writeCharacteristic(operation.getCharacteristic(), operation.getPayload(), operation.getWriteType())) {
+                    complete(false, null);
+                }
+                break;
+            case GattOperation.TYPE_READ:
+                if (!gatt.readCharacteristic(operation.getCharacteristic())) {
+                    complete(false, null);
+                }
+                break;
+            case GattOperation.TYPE_MTU:
+                if (!gatt.requestMtu(operation.getMtu())) {
+                    complete(false, null);
+                }
+                break;
+        }
+    }
+
+    private void writeNextFrame() {
+        FrameFragmenter fragmenter = currentTransfer.fragmenter;
+        ByteBuffer frame;
+        try {
+            frame = fragmenter.next();
+        } catch (UncheckedIOException e) {
+            LOG.warning("writeNextFrame: cannot read the payload of " + current + ": " + e.getCause());
+            complete(false, null);
+            return;
+        }
+        int writeType = current.isStreamed() && fragmenter.hasNext() ? GattTransport.WRITE_TYPE_NO_RESPONSE : current.getWriteType();
+        boolean written;
+        try {
+            written = gatt.writeCharacteristic(current.getCharacteristic(), frame.array(), writeType);
+        } finally {
+            // The GATT stack copies the value before writeCharacteristic() returns
+            fragmenter.release(frame);
+        }
+        if (!written) {
+            complete(false, null);
+        }
+    }
+
+    private void complete(boolean success, byte[] value) {
+        complete(success ? GattTransport.STATUS_SUCCESS : GattTransport.STATUS_FAILURE, value);
+    }
+
+    private void complete(int status, byte[] value) {
+        GattOperation operation = current;
+        current = null;
+        if (currentTransfer != null) {
+            currentTransfer = null;
+            releaseTransfer(operation.getLane());
+        }
+        operation.complete(status, value);
+        drain();
+    }
+
+    private Transfer acquireTransfer(GattOperation operation) {
+        Transfer transfer = idleTransfers.pollFirst();
+        if (transfer == null) {
+            transfer = new Transfer(new FrameFragmenter(pool, packetSize));
+        }
+        transfer.operation = operation;
+        transfer.fragmenter.setPacketSize(packetSize);
+        if (operation.getSource() != null) {
+            transfer.fragmenter.reset(operation.getPayloadId(), operation.getSource());
+        } else {
+            transfer.fragmenter.reset(operation.getPayloadId(), operation.getPayload());
+        }
+        return transfer;
+    }
+
+    // -1 releases the urgent transfer
+    private void releaseTransfer(int lane) {
+        Transfer transfer;
+        if (lane < 0) {
+            transfer = urgentTransfer;
+            urgentTransfer = null;
+        } else {
+            transfer = laneTransfers[lane];
+            laneTransfers[lane] = null;
+        }
+        transfer.operation = null;
+        transfer.fragmenter.clear();
+        idleTransfers.addLast(transfer);
+    }
+}
@@ -0,0 +1,33 @@
+package com.spectoda.connector.protocol;
+
+import java.util.UUID;
+
+/**
+ * The GATT client the protocol runs on. Each method starts one asynchronous GATT operation and
+ * returns false when it could not be started; its outcome is reported back through the matching
+ * {@link ConnectorEngine} callback. Called on the {@link EventLoop} thread only.
+ */
+public interface GattTransport {
+    // Values of the Android BluetoothGattCharacteristic write types
+    int WRITE_TYPE_NO_RESPONSE = 1;
+    int WRITE_TYPE_DEFAULT = 2;
+
+    // Values of the Android BluetoothGatt statuses an operation completes with
+    int STATUS_SUCCESS = 0;
+    int STATUS_FAILURE = 0x101;
+
+    boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType);
+
+    boolean readCharacteristic(UUID characteristic);
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * @param mode One of the {@link LinkGovernor} MODE_ constants.
+     */
+    default void setConnectionPriority(int mode) {
+    }
+
+    default void setFastPhy(boolean fast) {
+    }
+}
@@ -0,0 +1,212 @@
+package com.spectoda.connector.protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Adapts the link to the workload. A write queue that builds up, or a running OTA, switches the
+ * link to high priority and the fast PHY; once the queue stays empty the link steps down to
+ * balanced and later to low power.
+ * <p>
+ * Every mode switch is recorded together with the reason, and the bytes written are accounted
+ * to the mode they were written in, so the throughput of each mode can be compared.
+ * <p>
+ * Not thread safe: used on the {@link EventLoop} thread only.
+ */
+public final class LinkGovernor {
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_HIGH = 2;
+    private static final int MODE_COUNT = 3;
+
+    public static final int DEFAULT_HIGH_QUEUE_DEPTH = 4;
+    public static final long DEFAULT_BALANCED_AFTER_MILLIS = 2000;
+    public static final long DEFAULT_LOW_POWER_AFTER_MILLIS = 30000;
+
+    private static final int MAX_TRANSITIONS = 64;
+
+    public interface Link {
+        /**
+         * @param mode One of the MODE_ constants.
+         */
+        void setConnectionPriority(int mode);
+
+        void setFastPhy(boolean fast);
+    }
+
+    public static final class Transition {
+        public final long at;
+        public final int from;
+        public final int to;
+        public final String reason;
+
+        Transition(long at, int from, int to, String reason) {
+            this.at = at;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "Transition{at=" + at + ", from=" + from + ", to=" + to + ", reason=" + reason + "}";
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final Link link;
+    private final Runnable stepDownTask = this::stepDown;
+
+    private int highQueueDepth = DEFAULT_HIGH_QUEUE_DEPTH;
+    private long balancedAfterMillis = DEFAULT_BALANCED_AFTER_MILLIS;
+    private long lowPowerAfterMillis = DEFAULT_LOW_POWER_AFTER_MILLIS;
+
+    // Read from any thread by getThroughput(int)
+    private volatile boolean connected;
+    private volatile int mode = MODE_BALANCED;
+    private volatile long modeEnteredAt;
+    private int queueDepth;
+    private boolean otaActive;
+
+    private final ArrayDeque<Transition> transitions = new ArrayDeque<>();
+    private final AtomicLongArray bytesInMode = new AtomicLongArray(MODE_COUNT);
+    private final AtomicLongArray millisInMode = new AtomicLongArray(MODE_COUNT);
+
+    public LinkGovernor(EventLoop eventLoop, Link link) {
+        this.eventLoop = eventLoop;
+        this.link = link;
+    }
+
+    /**
+     * @param highQueueDepth      Waiting operations that switch the link to high priority, at least 1.
+     * @param balancedAfterMillis Idle time after which high priority steps down to balanced.
+     * @param lowPowerAfterMillis Further idle time after which balanced steps down to low power.
+     */
+    public void setThresholds(int highQueueDepth, long balancedAfterMillis, long lowPowerAfterMillis) {
+        this.highQueueDepth = Math.max(1, highQueueDepth);
+        this.balancedAfterMillis = balancedAfterMillis;
+        this.lowPowerAfterMillis = lowPowerAfterMillis;
+    }
+
+    /**
+     * Starts governing a new connection, which the stack brings up in balanced mode.
+     */
+    public void onConnected() {
+        connected = true;
+        mode = MODE_BALANCED;
+        modeEnteredAt = eventLoop.now();
+        queueDepth = 0;
+        otaActive = false;
+        scheduleStepDown();
+    }
+
+    public void onDisconnected() {
+        if (connected) {
+            account();
+        }
+        connected = false;
+        eventLoop.cancel(stepDownTask);
+    }
+
+    /**
+     * @param depth Operations waiting or in progress in the write queue.
+     */
+    public void onQueueDepth(int depth) {
+        boolean idleChanged = (queueDepth == 0) != (depth == 0);
+        queueDepth = depth;
+        evaluate(idleChanged);
+    }
+
+    public void onOtaStarted() {
+        otaActive = true;
+        evaluate(true);
+    }
+
+    public void onOtaFinished() {
+        otaActive = false;
+        evaluate(true);
+    }
+
+    public void onBytesWritten(int bytes) {
+        bytesInMode.addAndGet(mode, bytes);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return The most recent mode switches, oldest first. Safe to call from any thread.
+     */
+    public List<Transition> getTransitions() {
+        synchronized (transitions) {
+            return new ArrayList<>(transitions);
+        }
+    }
+
+    /**
+     * @return Bytes written per second while the link was in the mode, 0 if it never was. Safe to
+     * call from any thread, a switch of mode at the same time may skew it by a few milliseconds.
+     */
+    public long getThroughput(int mode) {
+        long millis = millisInMode.get(mode) + (connected && this.mode == mode ? eventLoop.now() - modeEnteredAt : 0);
+        return millis > 0 ? bytesInMode.get(mode) * 1000 / millis : 0;
+    }
+
+    // Called for every queue depth change, so the step down timer is only touched when needed
+    private void evaluate(boolean idleChanged) {
+        if (!connected) {
+            return;
+        }
+        int previous = mode;
+        if (otaActive) {
+            switchTo(MODE_HIGH, "ota");
+        } else if (queueDepth >= highQueueDepth && mode != MODE_HIGH) {
+            switchTo(MODE_HIGH, "queue depth " + queueDepth);
+        } else if (queueDepth > 0 && mode == MODE_LOW_POWER) {
+            switchTo(MODE_BALANCED, "traffic");
+        }
+        if (idleChanged || mode != previous) {
+            scheduleStepDown();
+        }
+    }
+
+    private void scheduleStepDown() {
+        eventLoop.cancel(stepDownTask);
+        if (!connected || otaActive || queueDepth > 0 || mode == MODE_LOW_POWER) {
+            return;
+        }
+        eventLoop.postDelayed(stepDownTask, mode == MODE_HIGH ? balancedAfterMillis : lowPowerAfterMillis);
+    }
+
+    private void stepDown() {
+        switchTo(mode == MODE_HIGH ? MODE_BALANCED : MODE_LOW_POWER, "idle");
+        scheduleStepDown();
+    }
+
+    private void switchTo(int mode, String reason) {
+        if (this.mode == mode) {
+            return;
+        }
+        account();
+        synchronized (transitions) {
+            if (transitions.size() == MAX_TRANSITIONS) {
+                transitions.pollFirst();
+            }
+            transitions.addLast(new Transition(modeEnteredAt, this.mode, mode, reason));
+        }
+        if ((this.mode == MODE_HIGH) != (mode == MODE_HIGH)) {
+            link.setFastPhy(mode == MODE_HIGH);
+        }
+        link.setConnectionPriority(mode);
+        this.mode = mode;
+    }
+
+    private void account() {
+        long now = eventLoop.now();
+        millisInMode.addAndGet(mode, now - modeEnteredAt);
+        modeEnteredAt = now;
+    }
+}
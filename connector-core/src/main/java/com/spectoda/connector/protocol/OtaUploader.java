@@ -0,0 +1,624 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.Digests;
+import com.spectoda.connector.firmware.EncodedFirmware;
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Firmware upload as a state machine: RESET, BEGIN, one WRITE per chunk and END, each phase
+ * entered as soon as the device acknowledged the write of the previous one. Chunks are read from
+ * the {@link FirmwareSource} as they are sent, the image is never copied as a whole.
+ * <p>
+ * The firmware answers the BEGIN write once the flash is erased, so no fixed delays are needed.
+ * Every write of a phase has to be acknowledged within that phase's timeout, otherwise the
+ * upload fails; completions arriving after a failure are ignored.
+ * <p>
+ * An upload that fails while writing keeps the last acknowledged offset. Starting the same image
+ * again first sends RESUME with that offset, which the device acknowledges only if it still holds
+ * the interrupted image up to there; otherwise the upload starts over from RESET.
+ * <p>
+ * In windowed mode each WRITE payload is streamed: its frames go out without response and only
+ * the last one is acknowledged, so a whole window of frames is in flight. The window grows by a
+ * frame per chunk as long as the measured goodput does not drop. When a chunk fails the window
+ * halves, never grows back to the size that failed, and the chunk is sent again.
+ * <p>
+ * A CRC32 and a SHA-256 of the image are computed from the chunks as the device acknowledges
+ * them and sent with END. The firmware rejects END with {@link #STATUS_DIGEST_REJECTED} when they
+ * do not match what it wrote, which is reported as {@link #FAILURE_INTEGRITY}. Any other failure
+ * of END, a timeout, a dropped link or another GATT error, is a transport failure.
+ * <p>
+ * In compressed mode the WRITE phase sends the image as a raw deflate stream, BEGIN carries the
+ * encoding and the compressed length after the image length, and WRITE offsets count compressed
+ * bytes. The END digest stays that of the uncompressed image; progress and throughput are
+ * reported in uncompressed bytes.
+ * <p>
+ * Given the image the device runs, the WRITE phase sends a patch against it instead when it is
+ * shorter than the full transfer, see {@link FirmwareCache#patch(FirmwareSource, FirmwareSource)}. BEGIN then also carries the base, and a device running another
+ * image rejects it, upon which the full image is sent.
+ * <p>
+ * Encoding an image takes seconds, so it runs on a worker thread in {@link #STATE_ENCODING}
+ * and the state machine continues on the event loop once it is done. The encoded streams are
+ * written to the {@link FirmwareCache}, where retries and the devices of a rollout find them.
+ * Telling whether a new upload continues an interrupted one takes hashing both transfers, which
+ * runs on the worker thread too.
+ */
+public final class OtaUploader {
+    private static final Logger LOG = Logger.getLogger(OtaUploader.class.getName());
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_RESET = 1;
+    public static final int STATE_BEGIN = 2;
+    public static final int STATE_WRITE = 3;
+    public static final int STATE_END = 4;
+    public static final int STATE_DONE = 5;
+    public static final int STATE_FAILED = 6;
+    public static final int STATE_RESUME = 7;
+    public static final int STATE_ENCODING = 8;
+
+    static final int FLAG_OTA_BEGIN = 255;
+    static final int FLAG_OTA_WRITE = 0;
+    static final int FLAG_OTA_END = 254;
+    static final int FLAG_OTA_RESET = 253;
+    static final int FLAG_OTA_RESUME = 252;
+
+    public static final int FAILURE_NONE = 0;
+    public static final int FAILURE_TRANSPORT = 1;
+    // The device received the whole image but its digest did not match
+    public static final int FAILURE_INTEGRITY = 2;
+
+    // ATT application error the firmware answers END with when the image digest does not match
+    public static final int STATUS_DIGEST_REJECTED = 0x80;
+
+    // [CRC32 (4)][SHA-256 (32)] after the END header
+    static final int END_DIGEST_SIZE = 4 + 32;
+
+    // [encoding (1)][encoded length (4)][parameters of the encoding] after the BEGIN header
+    static final int BEGIN_ENCODING_SIZE = 1 + 4;
+
+    public static final long DEFAULT_RESET_TIMEOUT_MILLIS = 5_000;
+    // Erasing a few megabytes of flash takes seconds
+    public static final long DEFAULT_BEGIN_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 5_000;
+    // The firmware verifies the image before answering END
+    public static final long DEFAULT_END_TIMEOUT_MILLIS = 15_000;
+
+    // The encoding thread ends once it was idle this long
+    private static final long ENCODER_KEEP_ALIVE_SECONDS = 30;
+
+    public static final int DEFAULT_MAX_WINDOW = 16;
+    // A failed chunk is sent again this many times with a smaller window before the upload fails
+    public static final int MAX_CHUNK_RETRIES = 3;
+    // The window stops growing once its goodput falls this far below the best one seen
+    private static final float GOODPUT_TOLERANCE = 0.95f;
+
+    public interface Link {
+        /**
+         * Writes an OTA payload to the device characteristic, calls back once it was acknowledged or failed.
+         *
+         * @param streamed Only the last frame of the payload is written with response, see {@link GattOperation#setStreamed(boolean)}.
+         */
+        void write(byte[] payload, boolean streamed, WriteCallback callback);
+
+        int getPayloadPerPacket();
+    }
+
+    public interface WriteCallback {
+        /**
+         * @param status GATT status of the write, see {@link GattOperation#getStatus()}.
+         */
+        void onWritten(boolean success, int status);
+    }
+
+    public interface Listener {
+        /**
+         * @param progress Percentage of the firmware written.
+         */
+        void onProgress(float progress);
+
+        /**
+         * @param kilobytesPerSecond Firmware bytes acknowledged per millisecond since the WRITE phase started.
+         */
+        void onThroughput(float kilobytesPerSecond);
+
+        void onFinished(boolean success);
+    }
+
+    private final EventLoop eventLoop;
+    private final Link link;
+    private final Listener listener;
+
+    private long resetTimeoutMillis = DEFAULT_RESET_TIMEOUT_MILLIS;
+    private long beginTimeoutMillis = DEFAULT_BEGIN_TIMEOUT_MILLIS;
+    private long writeTimeoutMillis = DEFAULT_WRITE_TIMEOUT_MILLIS;
+    private long endTimeoutMillis = DEFAULT_END_TIMEOUT_MILLIS;
+    private boolean windowed;
+    private int initialWindow = FrameSizing.OTA_PACKETS_PER_CHUNK;
+    private int maxWindow = DEFAULT_MAX_WINDOW;
+    private boolean compressed;
+    private FirmwareCache firmwareCache;
+    private Executor encodingExecutor;
+
+    private int state = STATE_IDLE;
+    private FirmwareSource firmware;
+    // What the WRITE phase sends, the image or an encoding of it, and what it falls back to
+    private FirmwareSource transfer;
+    private FirmwareSource fullTransfer;
+    private int chunkSize;
+    private int written;
+    // Identifies the write or encoding the state machine waits for, older completions are stale
+    private int writeSequence;
+    // Statistics, read from any thread
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private int lastFailure = FAILURE_NONE;
+
+    // Digests of the acknowledged part of the image, and the chunk in flight
+    private CRC32 crc32;
+    private MessageDigest sha256;
+    private byte[] chunkPayload;
+
+    // Frames per WRITE payload in windowed mode
+    private volatile int window;
+    private int windowLimit;
+    private int chunkRetries;
+    private long chunkStartedAt;
+    private float bestGoodput;
+    private int writeStartOffset;
+    private long writeStartedAt;
+
+    // Image of the interrupted upload and how much of it the device acknowledged
+    // Of the transfer, a resumed upload has to send the same stream
+    private FirmwareSource resumableTransfer;
+    private int resumableOffset;
+    private CRC32 resumableCrc32;
+    private MessageDigest resumableDigest;
+    private volatile int lastResumedFrom = -1;
+
+    private final Runnable timeoutTask = this::onTimeout;
+
+    public OtaUploader(EventLoop eventLoop, Link link, Listener listener) {
+        this.eventLoop = eventLoop;
+        this.link = link;
+        this.listener = listener;
+    }
+
+    /**
+     * Longest wait for the acknowledgement of a single write in each phase.
+     */
+    public void setTimeouts(long resetTimeoutMillis, long beginTimeoutMillis, long writeTimeoutMillis, long endTimeoutMillis) {
+        this.resetTimeoutMillis = resetTimeoutMillis;
+        this.beginTimeoutMillis = beginTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.endTimeoutMillis = endTimeoutMillis;
+    }
+
+    /**
+     * @param initialWindow Frames per WRITE payload at the start of the WRITE phase.
+     * @param maxWindow     Largest window, bounded by the payload the device can buffer.
+     */
+    public void setWindowedTransfer(boolean windowed, int initialWindow, int maxWindow) {
+        if (initialWindow < 1 || maxWindow < initialWindow) {
+            throw new IllegalArgumentException("Invalid window " + initialWindow + "/" + maxWindow);
+        }
+        this.windowed = windowed;
+        this.initialWindow = initialWindow;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Sends the image deflated; it is compressed into the firmware cache when the update starts,
+     * unless it is there already. The firmware has to support the encoding, an image it does not
+     * inflate fails its END check.
+     */
+    public void setCompressedTransfer(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Where encoded streams are written and looked up; without one, the image is sent raw.
+     */
+    public void setFirmwareCache(FirmwareCache firmwareCache) {
+        this.firmwareCache = firmwareCache;
+    }
+
+    /**
+     * @param encodingExecutor Runs the encoding off the event loop, by default a thread of its own.
+     */
+    public void setEncodingExecutor(Executor encodingExecutor) {
+        this.encodingExecutor = encodingExecutor;
+    }
+
+    /**
+     * @return Frames per WRITE payload of the running or last upload.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return state != STATE_IDLE && state != STATE_DONE && state != STATE_FAILED;
+    }
+
+    /**
+     * @return Offset the last upload resumed from, or -1 when it was uploaded from the start.
+     */
+    public int getLastResumedFrom() {
+        return lastResumedFrom;
+    }
+
+    /**
+     * @return Why the last upload failed, one of the FAILURE_ constants.
+     */
+    public int getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return Duration of the last finished upload, successful or not.
+     */
+    public long getLastDurationMillis() {
+        return finishedAt - startedAt;
+    }
+
+    public void start(FirmwareSource firmware) {
+        start(firmware, null);
+    }
+
+    /**
+     * @param base Image the device runs, null when unknown.
+     */
+    public void start(FirmwareSource firmware, FirmwareSource base) {
+        if (isRunning()) {
+            throw new IllegalStateException("OTA already running");
+        }
+        this.firmware = firmware;
+        this.startedAt = eventLoop.now();
+        this.lastResumedFrom = -1;
+        this.lastFailure = FAILURE_NONE;
+        if ((compressed || base != null) && firmwareCache == null) {
+            LOG.warning("updateFirmware: no firmware cache to encode into, sending the raw image");
+        }
+        final boolean encode = (compressed || base != null) && firmwareCache != null;
+        final FirmwareSource resumable = resumableTransfer;
+        if (!encode && (resumable == null || resumable == firmware)) {
+            // Nothing to encode or hash, the interrupted upload sent this very source
+            this.fullTransfer = firmware;
+            this.transfer = firmware;
+            begin(resumable != null);
+            return;
+        }
+        state = STATE_ENCODING;
+        final int sequence = ++writeSequence;
+        final boolean deflate = encode && compressed;
+        final FirmwareCache cache = firmwareCache;
+        encodingExecutor().execute(() -> {
+            FirmwareSource full;
+            FirmwareSource transfer;
+            boolean resumes;
+            try {
+                full = deflate ? cache.deflate(firmware) : firmware;
+                transfer = full;
+                if (encode && base != null) {
+                    FirmwareSource patch = cache.patch(base, firmware);
+                    LOG.fine("updateFirmware: patch of " + patch.length() + " B, full transfer " + full.length() + " B");
+                    if (patch.length() < full.length()) {
+                        transfer = patch;
+                    }
+                }
+                resumes = resumable != null && resumable.getSha256().equals(transfer.getSha256());
+            } catch (IOException | RuntimeException e) {
+                LOG.warning("updateFirmware: cannot encode the firmware: " + e);
+                eventLoop.post(() -> onEncoded(sequence, null, null, false));
+                return;
+            }
+            final FirmwareSource chosen = transfer;
+            eventLoop.post(() -> onEncoded(sequence, full, chosen, resumes));
+        });
+    }
+
+    // Back on the event loop, a null full transfer when encoding failed
+    private void onEncoded(int sequence, FirmwareSource full, FirmwareSource transfer, boolean resumes) {
+        if (sequence != writeSequence || state != STATE_ENCODING) {
+            return;
+        }
+        if (full == null) {
+            fail(FAILURE_TRANSPORT);
+            return;
+        }
+        this.fullTransfer = full;
+        this.transfer = transfer;
+        begin(resumes);
+    }
+
+    private Executor encodingExecutor() {
+        if (encodingExecutor == null) {
+            encodingExecutor = new ThreadPoolExecutor(0, 1, ENCODER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "ota-encoder");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return encodingExecutor;
+    }
+
+    /**
+     * @param resumes Whether the transfer is the stream of the interrupted upload.
+     */
+    private void begin(boolean resumes) {
+        if (resumes) {
+            // The digests continue from the acknowledged offset, the sent part is not read again
+            this.written = resumableOffset;
+            this.crc32 = resumableCrc32;
+            this.sha256 = resumableDigest;
+            clearResumable();
+            enter(STATE_RESUME);
+        } else {
+            clearResumable();
+            startOver();
+        }
+    }
+
+    private void startOver() {
+        written = 0;
+        crc32 = new CRC32();
+        sha256 = Digests.sha256();
+        enter(STATE_RESET);
+    }
+
+    private void clearResumable() {
+        resumableTransfer = null;
+        resumableCrc32 = null;
+        resumableDigest = null;
+    }
+
+    /**
+     * Fails a running upload, e.g. when the link dropped between two writes.
+     */
+    public void abort() {
+        if (isRunning()) {
+            LOG.warning("updateFirmware: aborted in state " + state);
+            fail(FAILURE_TRANSPORT);
+        }
+    }
+
+    private void enter(int state) {
+        this.state = state;
+        switch (state) {
+            case STATE_RESET:
+                LOG.fine("writeFirmware: OTA RESET");
+                write(otaPayload(FLAG_OTA_RESET, 0x00000000, 0), resetTimeoutMillis);
+                break;
+            case STATE_RESUME:
+                LOG.fine("writeFirmware: OTA RESUME at " + written);
+                write(otaPayload(FLAG_OTA_RESUME, written, 0), writeTimeoutMillis);
+                break;
+            case STATE_BEGIN:
+                LOG.fine("writeFirmware: OTA BEGIN");
+                write(beginPayload(), beginTimeoutMillis);
+                break;
+            case STATE_WRITE:
+                LOG.fine("writeFirmware: OTA WRITE");
+                window = windowed ? initialWindow : FrameSizing.OTA_PACKETS_PER_CHUNK;
+                windowLimit = maxWindow;
+                chunkRetries = 0;
+                bestGoodput = 0;
+                writeStartOffset = written;
+                writeStartedAt = eventLoop.now();
+                writeChunk();
+                break;
+            case STATE_END:
+                LOG.fine("writeFirmware: OTA END");
+                write(endPayload(), endTimeoutMillis);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The chunk is sized from the current MTU, it changes between chunks only after a reconnect
+    private void writeChunk() {
+        chunkSize = FrameSizing.otaChunkSize(link.getPayloadPerPacket(), window); // must by modulo 16
+        int length = Math.min(chunkSize, transfer.length() - written);
+        byte[] payload = otaPayload(FLAG_OTA_WRITE, written, length);
+        try {
+            transfer.read(written, payload, FrameSizing.OTA_HEADER_SIZE, length);
+        } catch (IOException e) {
+            LOG.warning("updateFirmware: cannot read the firmware at " + written + ": " + e);
+            fail(FAILURE_TRANSPORT);
+            return;
+        }
+        chunkPayload = payload;
+        chunkStartedAt = eventLoop.now();
+        write(payload, windowed, writeTimeoutMillis);
+    }
+
+    private void write(byte[] payload, long timeoutMillis) {
+        write(payload, false, timeoutMillis);
+    }
+
+    private void write(byte[] payload, boolean streamed, long timeoutMillis) {
+        final int sequence = ++writeSequence;
+        eventLoop.cancel(timeoutTask);
+        eventLoop.postDelayed(timeoutTask, timeoutMillis);
+        link.write(payload, streamed, (success, status) -> {
+            if (sequence == writeSequence && isRunning()) {
+                onWritten(success, status);
+            }
+        });
+    }
+
+    private void onWritten(boolean success, int status) {
+        eventLoop.cancel(timeoutTask);
+        if (!success && state == STATE_RESUME) {
+            LOG.fine("updateFirmware: device cannot resume, starting over");
+            startOver();
+            return;
+        }
+        if (!success && state == STATE_BEGIN && transfer != fullTransfer) {
+            LOG.fine("updateFirmware: device does not run the base of the patch, sending the full image");
+            transfer = fullTransfer;
+            enter(STATE_BEGIN);
+            return;
+        }
+        if (!success && state == STATE_WRITE && windowed && chunkRetries < MAX_CHUNK_RETRIES) {
+            chunkRetries++;
+            windowLimit = Math.max(1, window - 1);
+            window = Math.max(1, window / 2);
+            bestGoodput = 0;
+            LOG.fine("updateFirmware: chunk at " + written + " failed, window " + window);
+            writeChunk();
+            return;
+        }
+        if (!success && state == STATE_END && status == STATUS_DIGEST_REJECTED) {
+            LOG.warning("updateFirmware: device rejected the image digest");
+            fail(FAILURE_INTEGRITY);
+            return;
+        }
+        if (!success) {
+            LOG.warning("updateFirmware: write failed in state " + state + ", status " + status);
+            fail(FAILURE_TRANSPORT);
+            return;
+        }
+        switch (state) {
+            case STATE_RESET:
+                enter(STATE_BEGIN);
+                break;
+            case STATE_RESUME:
+                lastResumedFrom = written;
+                enter(STATE_WRITE);
+                break;
+            case STATE_BEGIN:
+                enter(STATE_WRITE);
+                break;
+            case STATE_WRITE:
+                int chunk = Math.min(chunkSize, transfer.length() - written);
+                if (transfer == firmware) {
+                    crc32.update(chunkPayload, FrameSizing.OTA_HEADER_SIZE, chunk);
+                    sha256.update(chunkPayload, FrameSizing.OTA_HEADER_SIZE, chunk);
+                }
+                chunkPayload = null;
+                written += chunk;
+                chunkRetries = 0;
+                if (windowed) {
+                    adaptWindow((float) chunk / Math.max(1, eventLoop.now() - chunkStartedAt));
+                }
+                listener.onProgress((((float) written) / transfer.length()) * 100);
+                // In uncompressed bytes, so compressed and raw uploads compare
+                float uncompressed = (float) (written - writeStartOffset) * firmware.length() / transfer.length();
+                listener.onThroughput(uncompressed / Math.max(1, eventLoop.now() - writeStartedAt));
+                if (written < transfer.length()) {
+                    writeChunk();
+                } else {
+                    enter(STATE_END);
+                }
+                break;
+            case STATE_END:
+                finish(STATE_DONE, true);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Additive increase while a larger window does not hurt, the decrease happens on failures
+    private void adaptWindow(float goodput) {
+        bestGoodput = Math.max(bestGoodput, goodput);
+        if (goodput >= bestGoodput * GOODPUT_TOLERANCE) {
+            window = Math.min(windowLimit, window + 1);
+        }
+    }
+
+    private void onTimeout() {
+        if (isRunning()) {
+            LOG.warning("updateFirmware: no acknowledgement in state " + state);
+            fail(FAILURE_TRANSPORT);
+        }
+    }
+
+    private void fail(int failure) {
+        if ((state == STATE_WRITE || state == STATE_RESUME) && written > 0) {
+            resumableTransfer = transfer;
+            resumableOffset = written;
+            resumableCrc32 = crc32;
+            resumableDigest = sha256;
+        }
+        lastFailure = failure;
+        finish(STATE_FAILED, false);
+    }
+
+    private void finish(int state, boolean success) {
+        eventLoop.cancel(timeoutTask);
+        this.state = state;
+        this.firmware = null;
+        this.transfer = null;
+        this.fullTransfer = null;
+        this.chunkPayload = null;
+        this.finishedAt = eventLoop.now();
+        listener.onFinished(success);
+    }
+
+    // [BEGIN header][encoding (1)][encoded length (4)][parameters], the plain BEGIN for a raw image
+    private byte[] beginPayload() {
+        if (!(transfer instanceof EncodedFirmware)) {
+            return otaPayload(FLAG_OTA_BEGIN, firmware.length(), 0);
+        }
+        EncodedFirmware encoded = (EncodedFirmware) transfer;
+        byte[] parameters = encoded.getBeginParameters();
+        byte[] payload = otaPayload(FLAG_OTA_BEGIN, firmware.length(), BEGIN_ENCODING_SIZE + parameters.length);
+        payload[FrameSizing.OTA_HEADER_SIZE] = (byte) encoded.getEncoding();
+        System.arraycopy(parameters, 0, payload, FrameSizing.OTA_HEADER_SIZE + BEGIN_ENCODING_SIZE, parameters.length);
+        int length = transfer.length();
+        payload[FrameSizing.OTA_HEADER_SIZE + 1] = (byte) length;
+        payload[FrameSizing.OTA_HEADER_SIZE + 2] = (byte) (length >> 8);
+        payload[FrameSizing.OTA_HEADER_SIZE + 3] = (byte) (length >> 16);
+        payload[FrameSizing.OTA_HEADER_SIZE + 4] = (byte) (length >> 24);
+        return payload;
+    }
+
+    // [END header][CRC32 (4)][SHA-256 (32)] of the whole uncompressed image
+    private byte[] endPayload() {
+        byte[] payload = otaPayload(FLAG_OTA_END, firmware.length(), END_DIGEST_SIZE);
+        long crc;
+        byte[] digest;
+        if (transfer instanceof EncodedFirmware) {
+            crc = ((EncodedFirmware) transfer).getImageCrc32();
+            digest = ((EncodedFirmware) transfer).getImageSha256();
+        } else {
+            crc = crc32.getValue();
+            digest = sha256.digest();
+        }
+        payload[FrameSizing.OTA_HEADER_SIZE] = (byte) crc;
+        payload[FrameSizing.OTA_HEADER_SIZE + 1] = (byte) (crc >> 8);
+        payload[FrameSizing.OTA_HEADER_SIZE + 2] = (byte) (crc >> 16);
+        payload[FrameSizing.OTA_HEADER_SIZE + 3] = (byte) (crc >> 24);
+        System.arraycopy(digest, 0, payload, FrameSizing.OTA_HEADER_SIZE + 4, digest.length);
+        return payload;
+    }
+
+    // [flag][0x00][value (4)][room for the firmware slice]
+    static byte[] otaPayload(int flag, int value, int sliceLength) {
+        byte[] bytes = new byte[FrameSizing.OTA_HEADER_SIZE + sliceLength];
+        bytes[0] = (byte) flag;
+        bytes[1] = 0x00;
+        bytes[2] = (byte) value;
+        bytes[3] = (byte) (value >> 8);
+        bytes[4] = (byte) (value >> 16);
+        bytes[5] = (byte) (value >> 24);
+        return bytes;
+    }
+}
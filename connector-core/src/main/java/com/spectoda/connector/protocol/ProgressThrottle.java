@@ -0,0 +1,65 @@
+package com.spectoda.connector.protocol;
+
+/**
+ * Thins out progress events: an event passes once both enough time and enough progress went by
+ * since the last one that passed. The first event and 100% always pass.
+ */
+public final class ProgressThrottle {
+    public static final int DEFAULT_MAX_EVENTS_PER_SECOND = 10;
+    public static final float DEFAULT_MIN_STEP_PERCENT = 1f;
+
+    private final EventLoop eventLoop;
+    private long minIntervalMillis;
+    private float minStepPercent;
+
+    private boolean emitted;
+    private float lastProgress;
+    private long lastEmittedAt;
+    private volatile long suppressed;
+
+    public ProgressThrottle(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+        setLimits(DEFAULT_MAX_EVENTS_PER_SECOND, DEFAULT_MIN_STEP_PERCENT);
+    }
+
+    /**
+     * @param maxEventsPerSecond 0 for no limit in time.
+     * @param minStepPercent     0 for no limit in progress.
+     */
+    public void setLimits(int maxEventsPerSecond, float minStepPercent) {
+        this.minIntervalMillis = maxEventsPerSecond > 0 ? 1000 / maxEventsPerSecond : 0;
+        this.minStepPercent = minStepPercent;
+    }
+
+    /**
+     * Starts over for the next run, the suppressed count is kept.
+     */
+    public void reset() {
+        emitted = false;
+    }
+
+    /**
+     * @return Whether the event should be passed on.
+     */
+    public boolean offer(float progress) {
+        long now = eventLoop.now();
+        boolean pass = !emitted
+                || progress >= 100
+                || (progress - lastProgress >= minStepPercent && now - lastEmittedAt >= minIntervalMillis);
+        if (!pass) {
+            suppressed++;
+            return false;
+        }
+        emitted = true;
+        lastProgress = progress;
+        lastEmittedAt = now;
+        return true;
+    }
+
+    /**
+     * @return Events suppressed since the throttle was made.
+     */
+    public long getSuppressedCount() {
+        return suppressed;
+    }
+}
@@ -0,0 +1,150 @@
+package com.spectoda.connector.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Pipelines request/response exchanges on one characteristic. Up to
+ * {@link #setMaxInFlight(int)} requests are written before their responses are read back; each
+ * read response goes to the request whose payload id it carries in a {@code [id][offset][total]}
+ * header, or to the oldest request still waiting for a response when it carries none.
+ * <p>
+ * Not thread safe: used on the {@link EventLoop} thread only.
+ */
+public final class RequestCorrelator {
+
+    public interface Callback {
+        void onWritten(boolean success);
+
+        void onResponse(boolean success, byte[] response);
+    }
+
+    private static final class Request {
+        final byte[] payload;
+        final boolean readResponse;
+        final Callback callback;
+        long payloadId;
+
+        Request(byte[] payload, boolean readResponse, Callback callback) {
+            this.payload = payload;
+            this.readResponse = readResponse;
+            this.callback = callback;
+        }
+    }
+
+    private final GattOperationQueue queue;
+    private final UUID characteristic;
+    private final int communicationType;
+    private final int writeType;
+
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    private final ArrayDeque<Request> awaitingResponse = new ArrayDeque<>();
+    private int inFlight;
+    private int maxInFlight = 1;
+    private boolean paused;
+
+    public RequestCorrelator(GattOperationQueue queue, UUID characteristic, int communicationType, int writeType) {
+        this.queue = queue;
+        this.characteristic = characteristic;
+        this.communicationType = communicationType;
+        this.writeType = writeType;
+    }
+
+    /**
+     * @param maxInFlight Requests written before the oldest response was read, at least 1. The
+     *                    default of 1 suits devices that keep a single response.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        startWaiting();
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public void request(byte[] payload, boolean readResponse, Callback callback) {
+        waiting.addLast(new Request(payload, readResponse, callback));
+        startWaiting();
+    }
+
+    /**
+     * Fails requests that are waiting for their turn, e.g. after the link dropped. Requests in
+     * flight fail through their GATT operations.
+     */
+    public void failWaiting() {
+        while (!waiting.isEmpty()) {
+            waiting.pollFirst().callback.onWritten(false);
+        }
+    }
+
+    /**
+     * Holds back requests that have not been written, e.g. while the services are discovered
+     * again. They are written once {@link #resume()} is called.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        while (!paused && inFlight < maxInFlight && !waiting.isEmpty()) {
+            start(waiting.pollFirst());
+        }
+    }
+
+    private void start(Request request) {
+        inFlight++;
+        GattOperation write = GattOperation.framedWrite(GattOperation.LANE_REQUEST, communicationType, characteristic, request.payload, writeType, (operation, success, value) -> {
+            if (!success || !request.readResponse) {
+                finish();
+                request.callback.onWritten(success);
+                return;
+            }
+            awaitingResponse.addLast(request);
+            GattOperation read = GattOperation.read(GattOperation.LANE_REQUEST, communicationType, characteristic, this::onRead);
+            if (maxInFlight == 1) {
+                // Without pipelining the response is read before anything else reaches the characteristic
+                queue.enqueueFirst(read);
+            } else {
+                queue.enqueue(read);
+            }
+        });
+        request.payloadId = write.getPayloadId();
+        queue.enqueue(write);
+    }
+
+    private void onRead(GattOperation operation, boolean success, byte[] response) {
+        Request request = success ? match(response) : awaitingResponse.pollFirst();
+        if (request == null) {
+            return;
+        }
+        finish();
+        request.callback.onResponse(success, success ? response : new byte[0]);
+    }
+
+    private Request match(byte[] response) {
+        if (response != null && response.length >= FrameFragmenter.HEADER_SIZE) {
+            long payloadId = (response[0] & 0xFFL) | (response[1] & 0xFFL) << 8 | (response[2] & 0xFFL) << 16 | (response[3] & 0xFFL) << 24;
+            Iterator<Request> iterator = awaitingResponse.iterator();
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+                if ((request.payloadId & 0xFFFFFFFFL) == payloadId) {
+                    iterator.remove();
+                    return request;
+                }
+            }
+        }
+        return awaitingResponse.pollFirst();
+    }
+
+    private void finish() {
+        inFlight--;
+        startWaiting();
+    }
+}
@@ -0,0 +1,44 @@
+package com.spectoda.connector.codec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.Random;
+
+public class Base64CodecTest {
+
+    @Test
+    public void encode_matchesTheStandardEncoding() {
+        Random random = new Random(5);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String expected = Base64.getEncoder().encodeToString(bytes);
+            Assert.assertEquals(expected, Base64Codec.encode(bytes));
+            Assert.assertEquals(expected.length(), Base64Codec.encodedLength(length));
+        }
+    }
+
+    @Test
+    public void decode_returnsTheEncodedBytes() {
+        Random random = new Random(6);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            Assert.assertArrayEquals(bytes, Base64Codec.decode(Base64.getEncoder().encodeToString(bytes)));
+        }
+    }
+
+    @Test
+    public void decode_rejectsMalformedText() {
+        for (String text : new String[]{"AAH", "AA=A", "A===", "AA\nA", "AAH/AA==AAAA"}) {
+            try {
+                Base64Codec.decode(text);
+                Assert.fail(text);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+}
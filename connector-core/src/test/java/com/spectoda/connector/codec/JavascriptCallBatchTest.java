@@ -0,0 +1,49 @@
+package com.spectoda.connector.codec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JavascriptCallBatchTest {
+    private static final String PREFIX = "})(window.tangleConnect,";
+
+    private final JavascriptCallBatch batch = new JavascriptCallBatch("window.tangleConnect");
+
+    private static String calls(String script) {
+        Assert.assertTrue(script, script.startsWith("(function(t,c){") && script.endsWith(");"));
+        return script.substring(script.indexOf(PREFIX) + PREFIX.length(), script.length() - 2);
+    }
+
+    @Test
+    public void drain_runsTheCallsInOrderInOneScript() {
+        Assert.assertTrue(batch.add("emit", "#connected"));
+        Assert.assertFalse(batch.add("resolve"));
+        Assert.assertFalse(batch.add("resolveRequest", 7, new byte[]{0, 1, (byte) 0xFF}));
+
+        Assert.assertEquals("[[\"emit\",\"#connected\"],[\"resolve\"],[\"resolveRequest\",7,{\"b\":\"AAH/\"}]]", calls(batch.drain()));
+        Assert.assertNull(batch.drain());
+        Assert.assertTrue(batch.add("resolve"));
+    }
+
+    @Test
+    public void arguments_areEncodedAsJson() {
+        batch.add("reject", "it's \"quoted\"\\\n\u2028\u0001");
+        batch.add("emit", "ota_progress", 12.5f);
+        batch.add("emit", "ota_progress", Float.NaN);
+        batch.add("resolve", (Object) null);
+        batch.add("resolve", true);
+
+        Assert.assertEquals("[[\"reject\",\"it's \\\"quoted\\\"\\\\\\n\\u2028\\u0001\"],"
+                + "[\"emit\",\"ota_progress\",12.5],"
+                + "[\"emit\",\"ota_progress\",null],"
+                + "[\"resolve\",null],"
+                + "[\"resolve\",true]]", calls(batch.drain()));
+    }
+
+    @Test
+    public void clear_dropsTheQueuedCalls() {
+        batch.add("resolve");
+        batch.clear();
+        Assert.assertEquals(0, batch.size());
+        Assert.assertNull(batch.drain());
+    }
+}
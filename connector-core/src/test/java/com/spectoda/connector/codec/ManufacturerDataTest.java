@@ -0,0 +1,68 @@
+package com.spectoda.connector.codec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ManufacturerDataTest {
+    private static final String OWNER = "00112233445566778899aabbccddeeff";
+
+    private static byte[] advertisement(int versionCode, int productCode, String owner, boolean adopting) {
+        byte[] data = new byte[ManufacturerData.LENGTH];
+        System.arraycopy(ByteEncoders.integerToBytes(versionCode, 2), 0, data, 0, 2);
+        System.arraycopy(ByteEncoders.integerToBytes(productCode, 2), 0, data, 2, 2);
+        for (int i = 0; i < 16; i++) {
+            data[4 + i] = (byte) Integer.parseInt(owner.substring(i * 2, i * 2 + 2), 16);
+        }
+        data[20] = (byte) (adopting ? 1 : 0);
+        return data;
+    }
+
+    private static boolean matches(ManufacturerData.Filter filter, byte[] data) {
+        for (int i = 0; i < filter.data.length; i++) {
+            if ((filter.data[i] & filter.mask[i]) != (data[i] & filter.mask[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyMatches(List<ManufacturerData.Filter> filters, byte[] data) {
+        for (ManufacturerData.Filter filter : filters) {
+            if (matches(filter, data)) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void parse_readsEveryField() {
+        ManufacturerData parsed = ManufacturerData.parse(advertisement(32, 0x1234, OWNER, true));
+
+        Assert.assertEquals("0.0.32", parsed.fwVersion);
+        Assert.assertEquals(0x1234, parsed.productCode);
+        Assert.assertEquals(OWNER, parsed.ownerSignature);
+        Assert.assertTrue(parsed.adoptionFlag);
+    }
+
+    @Test
+    public void compileFilters_matchesOnlyTheDescribedDevice() {
+        List<ManufacturerData.Filter> filters = ManufacturerData.compileFilters("0.8.12", 7, OWNER, false);
+
+        Assert.assertEquals(1, filters.size());
+        Assert.assertTrue(matches(filters.get(0), advertisement(812, 7, OWNER, false)));
+        Assert.assertFalse(matches(filters.get(0), advertisement(813, 7, OWNER, false)));
+        Assert.assertFalse(matches(filters.get(0), advertisement(812, 8, OWNER, false)));
+        Assert.assertFalse(matches(filters.get(0), advertisement(812, 7, OWNER, true)));
+    }
+
+    @Test
+    public void compileFilters_negatedVersionGetsOneFilterPerBit() {
+        List<ManufacturerData.Filter> filters = ManufacturerData.compileFilters("!0.8.12", -1, "", true);
+
+        Assert.assertEquals(16, filters.size());
+        Assert.assertFalse(anyMatches(filters, advertisement(812, 3, OWNER, true)));
+        Assert.assertTrue(anyMatches(filters, advertisement(813, 3, OWNER, true)));
+        Assert.assertTrue(anyMatches(filters, advertisement(812 | 0x8000, 3, OWNER, true)));
+    }
+}
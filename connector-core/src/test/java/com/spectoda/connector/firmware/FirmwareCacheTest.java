@@ -0,0 +1,233 @@
+package com.spectoda.connector.firmware;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class FirmwareCacheTest {
+    private File directory;
+    private File server;
+    private FirmwareCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("firmware-cache").toFile();
+        server = Files.createTempDirectory("firmware-server").toFile();
+        cache = new FirmwareCache(directory, 2);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(directory);
+        deleteRecursively(server);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Publishes an image on the fake server, returns its URL
+    private URL publish(String name, byte[] image) throws IOException {
+        File file = new File(server, name);
+        Files.write(file.toPath(), image);
+        return file.toURI().toURL();
+    }
+
+    private static byte[] image(int length, int seed) {
+        byte[] image = new byte[length];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private static byte[] readAll(FirmwareSource source) throws IOException {
+        byte[] bytes = new byte[source.length()];
+        // In odd slices, as the OTA upload reads it
+        for (int offset = 0; offset < bytes.length; offset += 4992) {
+            source.read(offset, bytes, offset, Math.min(4992, bytes.length - offset));
+        }
+        return bytes;
+    }
+
+    @Test
+    public void fetch_downloadsOnceAndServesTheCopyOnDisk() throws IOException {
+        byte[] image = image(100_000, 1);
+        String sha256 = Digests.sha256Hex(image);
+        URL url = publish("fw.bin", image);
+
+        FirmwareSource downloaded = cache.fetch(url, "0.9.1", sha256);
+        Assert.assertArrayEquals(image, readAll(downloaded));
+        Assert.assertEquals(sha256, downloaded.getSha256());
+
+        // The server is gone, the second rollout still gets the image
+        Assert.assertTrue(new File(server, "fw.bin").delete());
+        FirmwareSource cached = cache.fetch(url, "0.9.1", sha256);
+        Assert.assertArrayEquals(image, readAll(cached));
+        Assert.assertEquals(sha256, cache.get("0.9.1", null).getSha256());
+    }
+
+    @Test
+    public void fetch_rejectsAnImageWithTheWrongHash() throws IOException {
+        URL url = publish("fw.bin", image(1000, 2));
+        try {
+            cache.fetch(url, "0.9.1", Digests.sha256Hex(image(1000, 3)));
+            Assert.fail("corrupted image accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+        Assert.assertNull(cache.get("0.9.1", null));
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void fetch_evictsTheLeastRecentlyUsedImage() throws IOException {
+        cache.fetch(publish("a", image(100, 4)), "1.0.0", null);
+        cache.fetch(publish("b", image(100, 5)), "1.0.1", null);
+        Assert.assertTrue(new File(directory, directory.list()[0]).setLastModified(0));
+        Assert.assertTrue(new File(directory, directory.list()[1]).setLastModified(0));
+        cache.get("1.0.0", null);
+        cache.fetch(publish("c", image(100, 6)), "1.0.2", null);
+
+        Assert.assertNotNull(cache.get("1.0.0", null));
+        Assert.assertNull(cache.get("1.0.1", null));
+        Assert.assertNotNull(cache.get("1.0.2", null));
+    }
+
+    // Counts the bytes read from the image
+    private static final class CountingSource implements FirmwareSource {
+        private final FirmwareSource source;
+        private long read;
+
+        CountingSource(FirmwareSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int length() {
+            return source.length();
+        }
+
+        @Override
+        public void read(int offset, byte[] destination, int destinationOffset, int length) throws IOException {
+            read += length;
+            source.read(offset, destination, destinationOffset, length);
+        }
+
+        @Override
+        public String getSha256() {
+            return source.getSha256();
+        }
+    }
+
+    @Test
+    public void deflate_compressesIntoAFileOnceAndInflatesToTheImage() throws IOException, DataFormatException {
+        byte[] image = new byte[200_000];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i % 251 < 100 ? i % 7 : 0xff);
+        }
+        CountingSource source = new CountingSource(FirmwareSource.of(image));
+        EncodedFirmware deflated = cache.deflate(source);
+        Assert.assertEquals(image.length, source.read);
+        Assert.assertTrue(deflated.length() < image.length / 10);
+
+        byte[] stream = readAll(deflated);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(stream);
+        byte[] inflated = new byte[image.length];
+        Assert.assertEquals(image.length, inflater.inflate(inflated));
+        inflater.end();
+        Assert.assertArrayEquals(image, inflated);
+        Assert.assertEquals(Digests.sha256Hex(stream), deflated.getSha256());
+        CRC32 crc32 = new CRC32();
+        crc32.update(image, 0, image.length);
+        Assert.assertEquals(crc32.getValue(), deflated.getImageCrc32());
+        Assert.assertArrayEquals(Digests.unhex(Digests.sha256Hex(image)), deflated.getImageSha256());
+        Assert.assertEquals(0, deflated.getBeginParameters().length);
+
+        // Another connection of the rollout finds the stream on disk
+        CountingSource again = new CountingSource(FirmwareSource.of(image));
+        EncodedFirmware cached = new FirmwareCache(directory, 2).deflate(again);
+        Assert.assertEquals(0, again.read);
+        Assert.assertEquals(deflated.getSha256(), cached.getSha256());
+        Assert.assertEquals(deflated.getImageCrc32(), cached.getImageCrc32());
+        Assert.assertEquals(1, directory.list().length);
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xff) | (bytes[index + 1] & 0xff) << 8 | (bytes[index + 2] & 0xff) << 16 | (bytes[index + 3] & 0xff) << 24;
+    }
+
+    // Applies the operations as the device does
+    private static byte[] apply(byte[] base, byte[] patch) {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < patch.length) {
+            if (patch[position] == DeltaPatch.OP_COPY) {
+                image.write(base, readInt(patch, position + 1), readInt(patch, position + 5));
+                position += 9;
+            } else {
+                Assert.assertEquals(DeltaPatch.OP_INSERT, patch[position]);
+                int length = readInt(patch, position + 1);
+                image.write(patch, position + 5, length);
+                position += 5 + length;
+            }
+        }
+        return image.toByteArray();
+    }
+
+    @Test
+    public void patch_diffsIntoAFileKeyedByBaseAndImage() throws IOException {
+        byte[] base = image(300_000, 8);
+        // A function grew and a constant changed, everything after moved
+        byte[] image = new byte[base.length + 700];
+        System.arraycopy(base, 0, image, 0, 100_000);
+        System.arraycopy(image(700, 9), 0, image, 100_000, 700);
+        System.arraycopy(base, 100_000, image, 100_700, base.length - 100_000);
+        image[250_000] ^= 0x55;
+
+        EncodedFirmware patch = cache.patch(FirmwareSource.of(base), FirmwareSource.of(image));
+        byte[] stream = readAll(patch);
+        Assert.assertArrayEquals(image, apply(base, stream));
+        Assert.assertTrue("patch of " + stream.length + " B", stream.length < 2000);
+        Assert.assertEquals(EncodedFirmware.ENCODING_DELTA, patch.getEncoding());
+        Assert.assertArrayEquals(DeltaPatch.beginParameters(base.length, Digests.sha256Hex(base)), patch.getBeginParameters());
+        Assert.assertArrayEquals(Digests.unhex(Digests.sha256Hex(image)), patch.getImageSha256());
+
+        CountingSource again = new CountingSource(FirmwareSource.of(image));
+        EncodedFirmware cached = new FirmwareCache(directory, 2).patch(FirmwareSource.of(base), again);
+        Assert.assertEquals(0, again.read);
+        Assert.assertEquals(patch.getSha256(), cached.getSha256());
+
+        // Against another base it is another patch
+        byte[] otherBase = image(300_000, 10);
+        EncodedFirmware other = cache.patch(FirmwareSource.of(otherBase), FirmwareSource.of(image));
+        Assert.assertArrayEquals(image, apply(otherBase, readAll(other)));
+        Assert.assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void sources_ofTheSameImageHaveTheSameHash() throws IOException {
+        byte[] image = image(5000, 7);
+        File file = new File(server, "local.bin");
+        Files.write(file.toPath(), image);
+
+        Assert.assertEquals(FirmwareSource.of(image).getSha256(), FirmwareSource.of(file).getSha256());
+        Assert.assertArrayEquals(image, readAll(FirmwareSource.of(file)));
+    }
+}
@@ -0,0 +1,90 @@
+package com.spectoda.connector.firmware;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class UploadSpoolTest {
+    private File directory;
+    private byte[] payload;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("uploads").toFile();
+        payload = new byte[70_000];
+        new Random(8).nextBytes(payload);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void appendAll(UploadSpool spool, int chunkSize) throws IOException {
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+            spool.append(offset, Arrays.copyOfRange(payload, offset, Math.min(offset + chunkSize, payload.length)));
+        }
+    }
+
+    @Test
+    public void commit_returnsThePayloadAppendedInChunks() throws IOException {
+        UploadSpool spool = UploadSpool.create(directory, payload.length);
+        appendAll(spool, 16 * 1024);
+        Assert.assertEquals(payload.length, spool.getWritten());
+
+        FirmwareSource source = spool.commit();
+        byte[] read = new byte[source.length()];
+        source.read(0, read, 0, read.length);
+        Assert.assertArrayEquals(payload, read);
+        Assert.assertEquals(FirmwareSource.of(payload).getSha256(), source.getSha256());
+        // The spool file is gone, the mapping stays readable
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void append_refusesAChunkOutOfOrder() throws IOException {
+        UploadSpool spool = UploadSpool.create(directory, payload.length);
+        spool.append(0, Arrays.copyOfRange(payload, 0, 1000));
+        try {
+            spool.append(2000, Arrays.copyOfRange(payload, 2000, 3000));
+            Assert.fail("chunk out of order accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+        try {
+            spool.append(1000, new byte[payload.length]);
+            Assert.fail("chunk past the end accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+        Assert.assertEquals(1000, spool.getWritten());
+        spool.close();
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void commit_failsWhenChunksAreMissing() throws IOException {
+        UploadSpool spool = UploadSpool.create(directory, payload.length);
+        spool.append(0, Arrays.copyOfRange(payload, 0, 1000));
+        try {
+            spool.commit();
+            Assert.fail("incomplete upload committed");
+        } catch (IOException expected) {
+            // expected
+        }
+        Assert.assertEquals(0, directory.list().length);
+    }
+}
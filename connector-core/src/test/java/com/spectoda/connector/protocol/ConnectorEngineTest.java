@@ -0,0 +1,246 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class ConnectorEngineTest {
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final List<String> issued = new ArrayList<>();
+    private final List<byte[]> writes = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private final List<Float> progress = new ArrayList<>();
+    private ConnectorEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ConnectorEngine(eventLoop, new GattTransport() {
+            @Override
+            public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+                issued.add("write " + name(characteristic));
+                writes.add(value.clone());
+                return true;
+            }
+
+            @Override
+            public boolean readCharacteristic(UUID characteristic) {
+                issued.add("read " + name(characteristic));
+                return true;
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                issued.add("mtu " + mtu);
+                return true;
+            }
+        }, new ConnectorEngine.Listener() {
+            @Override
+            public void onMessage(byte[] bytes, int communicationType) {
+                messages.add(communicationType + ":" + bytes.length);
+            }
+
+            @Override
+            public void onOtaProgress(float value) {
+                progress.add(value);
+            }
+        });
+        engine.onConnected();
+        engine.onMtuChanged(FrameSizing.MAX_MTU, true);
+        issued.clear();
+    }
+
+    private static String name(UUID characteristic) {
+        if (characteristic.equals(ConnectorEngine.TERMINAL_CHAR_UUID)) return "terminal";
+        if (characteristic.equals(ConnectorEngine.CLOCK_CHAR_UUID)) return "clock";
+        return "device";
+    }
+
+    @Test
+    public void connect_negotiatesMtuBeforeAnyWrite() {
+        engine.onDisconnected();
+        engine.onConnected();
+        engine.deliver(new byte[10]);
+        Assert.assertEquals(List.of("mtu " + FrameSizing.MAX_MTU), issued);
+        Assert.assertEquals(FrameSizing.DEFAULT_MTU, engine.getMtu());
+
+        engine.onMtuChanged(247, true);
+        Assert.assertEquals(List.of("mtu " + FrameSizing.MAX_MTU, "write terminal"), issued);
+        Assert.assertEquals(247, engine.getMtu());
+    }
+
+    @Test
+    public void deliver_isResolvedOnceAllFramesAreAcknowledged() {
+        engine.deliver(new byte[1000]);
+        engine.onCharacteristicWrite(ConnectorEngine.TERMINAL_CHAR_UUID, true);
+        Assert.assertTrue(messages.isEmpty());
+        engine.onCharacteristicWrite(ConnectorEngine.TERMINAL_CHAR_UUID, true);
+        Assert.assertEquals(List.of("write terminal", "write terminal"), issued);
+        Assert.assertEquals(List.of(ConnectorEngine.DELIVER_WROTE_RESOLVE + ":0"), messages);
+    }
+
+    @Test
+    public void getClock_resolvesWithTheReadValue() {
+        engine.getClock();
+        engine.onCharacteristicRead(ConnectorEngine.CLOCK_CHAR_UUID, true, new byte[4]);
+        Assert.assertEquals(List.of("read clock"), issued);
+        Assert.assertEquals(List.of(ConnectorEngine.CLOCK_READ_RESOLVE + ":4"), messages);
+    }
+
+    @Test
+    public void disconnect_rejectsEverythingInFlight() {
+        engine.deliver(new byte[10]);
+        engine.transmit(new byte[10], null);
+        engine.onDisconnected();
+        Assert.assertEquals(2, messages.size());
+        Assert.assertTrue(messages.contains(ConnectorEngine.DELIVER_WROTE_REJECT + ":0"));
+        Assert.assertTrue(messages.contains(ConnectorEngine.TRANSMIT_WROTE_REJECT + ":0"));
+    }
+
+    // [id (4)][offset (4)][total (4)][slice] of a notification message with id 1
+    private static byte[] notificationFrame(int offset, int total, int sliceLength) {
+        byte[] frame = new byte[FrameFragmenter.HEADER_SIZE + sliceLength];
+        frame[0] = 1;
+        frame[4] = (byte) offset;
+        frame[8] = (byte) total;
+        return frame;
+    }
+
+    @Test
+    public void serviceChanged_abortsTheUpdateAndDropsPartialNotifications() {
+        engine.updateFirmware(new byte[12000]);
+        engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, true);
+        engine.onNotification(notificationFrame(0, 100, 50));
+
+        engine.onServiceChanged();
+        Assert.assertEquals(List.of(ConnectorEngine.UPDATE_FIRMWARE_REJECT + ":0"), messages);
+
+        // The rest of the notification does not complete what was sent before the change
+        engine.onNotification(notificationFrame(50, 100, 50));
+        Assert.assertEquals(1, messages.size());
+
+        // The next update starts over instead of being refused as already running
+        engine.onConnected();
+        engine.onMtuChanged(FrameSizing.MAX_MTU, true);
+        engine.updateFirmware(new byte[1000]);
+        byte[] reset = writes.get(writes.size() - 1);
+        Assert.assertEquals(253, reset[FrameFragmenter.HEADER_SIZE] & 0xff);
+        Assert.assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void serviceChanged_holdsWaitingRequestsUntilTheServicesAreBack() {
+        engine.request(new byte[10], false, ConnectorEngine.NO_REQUEST_ID);
+        engine.request(new byte[10], false, ConnectorEngine.NO_REQUEST_ID);
+        engine.request(new byte[10], false, ConnectorEngine.NO_REQUEST_ID);
+        Assert.assertEquals(List.of("write device"), issued);
+
+        // Only the request in flight is lost, nothing is written to the stale handles
+        engine.onServiceChanged();
+        Assert.assertEquals(List.of(ConnectorEngine.REQUEST_WROTE_REJECT + ":0"), messages);
+        engine.deliver(new byte[10]);
+        eventLoop.advance(1000);
+        Assert.assertEquals(List.of("write device"), issued);
+
+        engine.onConnected();
+        Assert.assertEquals(List.of("write device", "mtu " + FrameSizing.MAX_MTU), issued);
+        engine.onMtuChanged(FrameSizing.MAX_MTU, true);
+        for (int i = 0; i < 3; i++) {
+            engine.onCharacteristicWrite(issued.get(issued.size() - 1).equals("write device") ? ConnectorEngine.DEVICE_CHAR_UUID : ConnectorEngine.TERMINAL_CHAR_UUID, true);
+        }
+        Assert.assertEquals(2, count(ConnectorEngine.REQUEST_WROTE_RESOLVE));
+        Assert.assertEquals(1, count(ConnectorEngine.DELIVER_WROTE_RESOLVE));
+        Assert.assertEquals(1, count(ConnectorEngine.REQUEST_WROTE_REJECT));
+    }
+
+    private int count(int communicationType) {
+        int count = 0;
+        for (String message : messages) {
+            if (message.equals(communicationType + ":0")) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void updateFirmware_runsResetBeginWriteEnd() {
+        byte[] firmware = new byte[12000];
+        engine.updateFirmware(firmware);
+
+        List<Integer> flags = new ArrayList<>();
+        int acknowledged = 0;
+        while (!messages.contains(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE + ":0")) {
+            if (acknowledged < writes.size()) {
+                byte[] frame = writes.get(acknowledged++);
+                if ((frame[4] | frame[5] | frame[6] | frame[7]) == 0) {
+                    // First frame of an OTA payload, the flag follows the frame header
+                    flags.add(frame[FrameFragmenter.HEADER_SIZE] & 0xff);
+                }
+                engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, true);
+            } else {
+                Assert.fail("the update waits for something else than an acknowledgement");
+            }
+        }
+        Assert.assertEquals(List.of(253, 255, 0, 0, 0, 254), flags);
+        Assert.assertEquals(100f, progress.get(progress.size() - 1), 0f);
+        Assert.assertEquals(0, engine.getLastOtaDurationMillis());
+    }
+
+    // Acknowledges every write until END went out
+    private void acknowledgeUntilEnd() {
+        int acknowledged = 0;
+        while (true) {
+            Assert.assertTrue("the update waits for something else than an acknowledgement", acknowledged < writes.size());
+            byte[] frame = writes.get(acknowledged++);
+            if ((frame[4] | frame[5] | frame[6] | frame[7]) == 0 && (frame[FrameFragmenter.HEADER_SIZE] & 0xff) == 254) {
+                return;
+            }
+            engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, true);
+        }
+    }
+
+    @Test
+    public void updateFirmware_reportsARejectedDigestAsAnIntegrityFailure() {
+        engine.updateFirmware(new byte[12000]);
+        acknowledgeUntilEnd();
+        engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, OtaUploader.STATUS_DIGEST_REJECTED);
+        Assert.assertEquals(List.of(ConnectorEngine.UPDATE_FIRMWARE_INTEGRITY_REJECT + ":0"), messages);
+    }
+
+    @Test
+    public void updateFirmware_reportsATransportErrorOnEndAsATransportFailure() {
+        engine.updateFirmware(new byte[12000]);
+        acknowledgeUntilEnd();
+        engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, GattTransport.STATUS_FAILURE);
+        Assert.assertEquals(List.of(ConnectorEngine.UPDATE_FIRMWARE_REJECT + ":0"), messages);
+    }
+
+    @Test
+    public void updateFirmware_reportsALostEndAsATransportFailure() {
+        engine.setOtaTimeouts(1000, 1000, 1000, 1000);
+        engine.updateFirmware(new byte[12000]);
+        acknowledgeUntilEnd();
+        eventLoop.advance(1000);
+        Assert.assertEquals(List.of(ConnectorEngine.UPDATE_FIRMWARE_REJECT + ":0"), messages);
+    }
+
+    @Test
+    public void updateFirmware_failsWhenBeginIsNeverAcknowledged() {
+        engine.setOtaTimeouts(1000, 3000, 1000, 1000);
+        engine.updateFirmware(new byte[1000]);
+        engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, true);
+        Assert.assertEquals(2, writes.size());
+
+        eventLoop.advance(2999);
+        Assert.assertTrue(messages.isEmpty());
+        eventLoop.advance(1);
+        Assert.assertEquals(List.of(ConnectorEngine.UPDATE_FIRMWARE_REJECT + ":0"), messages);
+
+        // A late acknowledgement does not revive the update
+        engine.onCharacteristicWrite(ConnectorEngine.DEVICE_CHAR_UUID, true);
+        Assert.assertEquals(2, writes.size());
+        Assert.assertEquals(1, messages.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeliverBatcherTest {
+    private static final int PAYLOAD_PER_PACKET = 500;
+
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<GattOperation.Completion> completions = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+    private DeliverBatcher batcher;
+
+    @Before
+    public void setUp() {
+        batcher = new DeliverBatcher(eventLoop, (payload, completion) -> {
+            written.add(payload);
+            completions.add(completion);
+        });
+        batcher.configure(20, 0);
+    }
+
+    private void add(int length, String name) {
+        byte[] payload = new byte[length];
+        payload[0] = (byte) name.charAt(0);
+        batcher.add(payload, PAYLOAD_PER_PACKET, success -> delivered.add(name + (success ? " ok" : " failed")));
+    }
+
+    @Test
+    public void payloadsWithinWindow_areWrittenAsOneBatch() {
+        add(30, "a");
+        eventLoop.advance(5);
+        add(40, "b");
+        eventLoop.advance(5);
+        add(50, "c");
+        Assert.assertTrue(written.isEmpty());
+
+        eventLoop.advance(10);
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(120, written.get(0).length);
+        Assert.assertEquals('a', written.get(0)[0]);
+        Assert.assertEquals('b', written.get(0)[30]);
+        Assert.assertEquals('c', written.get(0)[70]);
+
+        completions.get(0).onComplete(null, true, null);
+        Assert.assertEquals(3, delivered.size());
+        Assert.assertEquals("b ok", delivered.get(1));
+        Assert.assertEquals(2, batcher.getFramesSaved());
+        Assert.assertEquals(20, batcher.getMaxQueueWaitMillis());
+        Assert.assertEquals(15, batcher.getAverageQueueWaitMillis());
+    }
+
+    @Test
+    public void batch_isFlushedBeforeOutgrowingOneFrame() {
+        add(300, "a");
+        add(300, "b");
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(300, written.get(0).length);
+
+        eventLoop.advance(20);
+        Assert.assertEquals(2, written.size());
+        Assert.assertFalse(eventLoop.hasPendingTasks());
+    }
+
+    @Test
+    public void failedBatch_rejectsEveryCaller() {
+        add(10, "a");
+        add(10, "b");
+        eventLoop.advance(20);
+        completions.get(0).onComplete(null, false, null);
+        Assert.assertEquals("a failed", delivered.get(0));
+        Assert.assertEquals("b failed", delivered.get(1));
+    }
+
+    @Test
+    public void failAll_rejectsPayloadsInWindow() {
+        add(10, "a");
+        batcher.failAll();
+        Assert.assertEquals("a failed", delivered.get(0));
+        Assert.assertTrue(written.isEmpty());
+        Assert.assertFalse(eventLoop.hasPendingTasks());
+    }
+}
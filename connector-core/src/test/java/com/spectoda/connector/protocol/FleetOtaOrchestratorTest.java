@@ -0,0 +1,183 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rollouts to fleets of {@link SimulatedTangleDevice}s, each updated by its own
+ * {@link ConnectorEngine} over its own {@link SimulatedLink}.
+ */
+public class FleetOtaOrchestratorTest {
+    private static final long TIME_LIMIT = 600_000;
+    private static final long CONNECT_MILLIS = 300;
+
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final Map<String, SimulatedTangleDevice> devices = new HashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final List<String> started = new ArrayList<>();
+    private final List<Float> progress = new ArrayList<>();
+    private int maxRunning;
+    private int running;
+    private int[] result;
+    private long finishedAt;
+
+    // Connects, updates and disconnects like the Android updater does
+    private final FleetOtaOrchestrator.DeviceUpdater updater = (address, firmware, callback) -> {
+        started.add(address);
+        running++;
+        maxRunning = Math.max(maxRunning, running);
+        SimulatedTangleDevice device = devices.get(address);
+        SimulatedLink link = new SimulatedLink(eventLoop, device, new SimulatedLink.Parameters());
+        ConnectorEngine[] engine = new ConnectorEngine[1];
+        engine[0] = new ConnectorEngine(eventLoop, link, new ConnectorEngine.Listener() {
+            @Override
+            public void onMessage(byte[] bytes, int communicationType) {
+                if (communicationType == ConnectorEngine.UPDATE_FIRMWARE_RESOLVE
+                        || communicationType == ConnectorEngine.UPDATE_FIRMWARE_REJECT
+                        || communicationType == ConnectorEngine.UPDATE_FIRMWARE_INTEGRITY_REJECT) {
+                    running--;
+                    link.disconnect();
+                    callback.onFinished(communicationType == ConnectorEngine.UPDATE_FIRMWARE_RESOLVE);
+                }
+            }
+
+            @Override
+            public void onOtaProgress(float progress) {
+                callback.onProgress(progress);
+            }
+        });
+        link.attach(engine[0]);
+        eventLoop.postDelayed(() -> {
+            engine[0].onConnected();
+            engine[0].updateFirmware(firmware);
+        }, CONNECT_MILLIS);
+    };
+
+    private final FleetOtaOrchestrator orchestrator = new FleetOtaOrchestrator(eventLoop, updater, new FleetOtaOrchestrator.Listener() {
+        @Override
+        public void onDeviceProgress(String address, float progress) {
+        }
+
+        @Override
+        public void onDeviceFinished(String address, boolean success, int attempts) {
+            FleetOtaOrchestratorTest.this.attempts.put(address, success ? attempts : -attempts);
+        }
+
+        @Override
+        public void onProgress(float progress) {
+            FleetOtaOrchestratorTest.this.progress.add(progress);
+        }
+
+        @Override
+        public void onFinished(int updated, int failed) {
+            result = new int[]{updated, failed};
+            finishedAt = eventLoop.now();
+        }
+    });
+
+    private List<FleetOtaOrchestrator.Target> fleet(int size) {
+        List<FleetOtaOrchestrator.Target> targets = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String address = "00:00:00:00:00:" + (10 + i);
+            devices.put(address, new SimulatedTangleDevice());
+            targets.add(new FleetOtaOrchestrator.Target(address, -90 + i * 3));
+        }
+        return targets;
+    }
+
+    private static byte[] firmware() {
+        byte[] firmware = new byte[32 * 1024];
+        for (int i = 0; i < firmware.length; i++) {
+            firmware[i] = (byte) (i * 7 + 3);
+        }
+        return firmware;
+    }
+
+    private long rollout(int size, int concurrency) {
+        orchestrator.setMaxConcurrent(concurrency);
+        long startedAt = eventLoop.now();
+        orchestrator.start(fleet(size), FirmwareSource.of(firmware()));
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+        Assert.assertNotNull("rollout did not finish", result);
+        return finishedAt - startedAt;
+    }
+
+    @Test
+    public void rollout_scalesWithConcurrencyNotDeviceCount() {
+        long sequential = rollout(8, 1);
+        Assert.assertArrayEquals(new int[]{8, 0}, result);
+
+        devices.clear();
+        result = null;
+        maxRunning = 0;
+        long parallel = rollout(8, 4);
+        Assert.assertArrayEquals(new int[]{8, 0}, result);
+        Assert.assertEquals(4, maxRunning);
+        Assert.assertTrue("sequential " + sequential + " ms, parallel " + parallel + " ms", parallel < sequential * 3 / 10);
+        for (SimulatedTangleDevice device : devices.values()) {
+            Assert.assertTrue(device.isOtaComplete());
+            Assert.assertArrayEquals(firmware(), device.getOtaImage());
+        }
+        Assert.assertEquals(100, progress.get(progress.size() - 1), 0.001);
+    }
+
+    @Test
+    public void rollout_startsWithTheStrongestSignal() {
+        rollout(5, 1);
+
+        List<String> strongestFirst = new ArrayList<>(Arrays.asList(
+                "00:00:00:00:00:14", "00:00:00:00:00:13", "00:00:00:00:00:12", "00:00:00:00:00:11", "00:00:00:00:00:10"));
+        Assert.assertEquals(strongestFirst, started);
+    }
+
+    @Test
+    public void failedDevice_isRetriedUntilItRunsOutOfAttempts() {
+        orchestrator.setMaxConcurrent(2);
+        orchestrator.setRetries(3, 1000);
+        List<FleetOtaOrchestrator.Target> targets = fleet(4);
+        // Writes a bad image on every attempt
+        devices.get("00:00:00:00:00:10").setOtaCorruptOffset(1000);
+        orchestrator.start(targets, FirmwareSource.of(firmware()));
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertArrayEquals(new int[]{3, 1}, result);
+        Assert.assertEquals(-3, (int) attempts.get("00:00:00:00:00:10"));
+        Assert.assertEquals(1, (int) attempts.get("00:00:00:00:00:11"));
+        Assert.assertFalse(orchestrator.isRunning());
+    }
+
+    @Test
+    public void cancel_startsNoFurtherUpdates() {
+        orchestrator.setMaxConcurrent(2);
+        orchestrator.start(fleet(6), FirmwareSource.of(firmware()));
+        eventLoop.advance(CONNECT_MILLIS + 100);
+        orchestrator.cancel();
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(2, started.size());
+        Assert.assertNull(result);
+        Assert.assertFalse(orchestrator.isRunning());
+    }
+
+    @Test
+    public void cancelledUpdates_holdTheirConnectionsAgainstTheNextRollout() {
+        orchestrator.setMaxConcurrent(2);
+        orchestrator.start(fleet(6), FirmwareSource.of(firmware()));
+        eventLoop.advance(CONNECT_MILLIS + 100);
+        orchestrator.cancel();
+        orchestrator.start(fleet(4), FirmwareSource.of(firmware()));
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(2, maxRunning);
+        Assert.assertEquals(6, started.size());
+        Assert.assertArrayEquals(new int[]{4, 0}, result);
+    }
+}
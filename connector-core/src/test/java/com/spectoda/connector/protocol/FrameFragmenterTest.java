@@ -0,0 +1,118 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class FrameFragmenterTest {
+    private static final int PACKET_SIZE = 512;
+
+    @Test
+    public void frames_matchLegacyWriteBytesOutput() throws IOException {
+        Random random = new Random(42);
+        int[] payloadSizes = {1, 11, 499, 500, 501, 999, 1000, 1001, 4998, 20000};
+        FrameFragmenter fragmenter = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+
+        for (int payloadSize : payloadSizes) {
+            byte[] payload = new byte[payloadSize];
+            random.nextBytes(payload);
+            long payloadId = (long) (random.nextDouble() * 0xffffffffL);
+
+            List<byte[]> expected = legacyFrames(payloadId, payload);
+            List<byte[]> actual = new ArrayList<>();
+            fragmenter.reset(payloadId, payload);
+            while (fragmenter.hasNext()) {
+                ByteBuffer frame = fragmenter.next();
+                actual.add(Arrays.copyOf(frame.array(), frame.limit()));
+                Assert.assertEquals(frame.limit(), frame.array().length);
+                fragmenter.release(frame);
+            }
+
+            Assert.assertEquals("frame count for " + payloadSize, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertArrayEquals("frame " + i + " of " + payloadSize, expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void sourcePayload_producesTheFramesOfTheSameArray() {
+        byte[] payload = new byte[5000];
+        new Random(3).nextBytes(payload);
+        FrameFragmenter fromArray = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+        FrameFragmenter fromSource = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+        fromArray.reset(9, payload);
+        fromSource.reset(9, FirmwareSource.of(payload));
+
+        while (fromArray.hasNext()) {
+            Assert.assertTrue(fromSource.hasNext());
+            ByteBuffer expected = fromArray.next();
+            ByteBuffer actual = fromSource.next();
+            Assert.assertArrayEquals(expected.array(), actual.array());
+            fromArray.release(expected);
+            fromSource.release(actual);
+        }
+        Assert.assertFalse(fromSource.hasNext());
+    }
+
+    @Test
+    public void emptyPayload_producesNoFrames() {
+        FrameFragmenter fragmenter = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+        fragmenter.reset(1, new byte[0]);
+        Assert.assertFalse(fragmenter.hasNext());
+    }
+
+    @Test
+    public void releasedFrames_areReused() {
+        FrameFragmenter fragmenter = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+        byte[] payload = new byte[2000];
+
+        fragmenter.reset(7, payload);
+        ByteBuffer first = fragmenter.next();
+        fragmenter.release(first);
+        ByteBuffer second = fragmenter.next();
+        Assert.assertSame(first, second);
+    }
+
+    // Framing exactly as SpectodaBluetoothServices.writeBytes() built it before the pooled fragmenter
+    private static List<byte[]> legacyFrames(long payloadUuid, byte[] payload) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        int bytesSize = PACKET_SIZE - 12;
+        int indexFrom = 0;
+        int indexTo = bytesSize;
+
+        while (indexFrom < payload.length) {
+            if (indexTo > payload.length) {
+                indexTo = payload.length;
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            outputStream.write(longToBytes(payloadUuid, 4));
+            outputStream.write(longToBytes(indexFrom, 4));
+            outputStream.write(longToBytes(payload.length, 4));
+            outputStream.write(Arrays.copyOfRange(payload, indexFrom, indexTo));
+            frames.add(outputStream.toByteArray());
+
+            indexFrom += bytesSize;
+            indexTo = indexFrom + bytesSize;
+        }
+        return frames;
+    }
+
+    private static byte[] longToBytes(long value, int byteCount) {
+        byte[] result = new byte[byteCount];
+        for (int i = 0; i < byteCount; i++) {
+            result[i] = (byte) (value & 0xFF);
+            value >>= Byte.SIZE;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FrameReassemblerTest {
+    private static final int PACKET_SIZE = 32;
+
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final List<byte[]> messages = new ArrayList<>();
+    private FrameReassembler reassembler;
+
+    @Before
+    public void setUp() {
+        reassembler = new FrameReassembler(eventLoop, messages::add);
+        reassembler.setLimits(1024, 100);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private static List<byte[]> frames(long id, byte[] payload) {
+        FrameFragmenter fragmenter = new FrameFragmenter(new FramePool(PACKET_SIZE), PACKET_SIZE);
+        fragmenter.reset(id, payload);
+        List<byte[]> frames = new ArrayList<>();
+        while (fragmenter.hasNext()) {
+            ByteBuffer frame = fragmenter.next();
+            frames.add(frame.array().clone());
+            fragmenter.release(frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void fragmentedMessage_isDeliveredOnceComplete() {
+        byte[] payload = payload(70, 1);
+        List<byte[]> frames = frames(7, payload);
+        Assert.assertEquals(4, frames.size());
+
+        for (int i = 0; i < frames.size() - 1; i++) {
+            reassembler.onFrame(frames.get(i));
+        }
+        Assert.assertTrue(messages.isEmpty());
+        Assert.assertEquals(70, reassembler.getBufferedBytes());
+
+        reassembler.onFrame(frames.get(frames.size() - 1));
+        Assert.assertEquals(1, messages.size());
+        Assert.assertArrayEquals(payload, messages.get(0));
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void singleFrameMessage_isDeliveredWithoutHeader() {
+        byte[] payload = payload(10, 3);
+        reassembler.onFrame(frames(1, payload).get(0));
+        Assert.assertArrayEquals(payload, messages.get(0));
+    }
+
+    @Test
+    public void interleavedMessages_areReassembledSeparately() {
+        byte[] first = payload(50, 1);
+        byte[] second = payload(45, 100);
+        List<byte[]> firstFrames = frames(1, first);
+        List<byte[]> secondFrames = frames(2, second);
+        for (int i = 0; i < Math.max(firstFrames.size(), secondFrames.size()); i++) {
+            if (i < secondFrames.size()) reassembler.onFrame(secondFrames.get(i));
+            if (i < firstFrames.size()) reassembler.onFrame(firstFrames.get(i));
+        }
+        Assert.assertEquals(2, messages.size());
+        Assert.assertArrayEquals(second, messages.get(0));
+        Assert.assertArrayEquals(first, messages.get(1));
+    }
+
+    @Test
+    public void notificationShorterThanAHeader_passesThroughUnframed() {
+        byte[] raw = new byte[]{1, 2, 3};
+        reassembler.onFrame(raw);
+        Assert.assertArrayEquals(raw, messages.get(0));
+        Assert.assertEquals(0, reassembler.getRejectedFrames());
+    }
+
+    @Test
+    public void unframedNotificationOfAHeaderOrMore_passesThroughUnchanged() {
+        byte[] text = "hello from firmware!".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        byte[] empty = new byte[FrameFragmenter.HEADER_SIZE + 4];
+        reassembler.onFrame(text);
+        reassembler.onFrame(empty);
+
+        Assert.assertEquals(2, messages.size());
+        Assert.assertArrayEquals(text, messages.get(0));
+        Assert.assertArrayEquals(empty, messages.get(1));
+        Assert.assertEquals(2, reassembler.getUnframedNotifications());
+        Assert.assertEquals(0, reassembler.getRejectedFrames());
+    }
+
+    @Test
+    public void messageOverTheMemoryCap_isNeverDeliveredWithStrictFraming() {
+        reassembler.setStrictFraming(true);
+        List<byte[]> frames = frames(3, payload(2000, 1));
+        for (byte[] frame : frames) {
+            reassembler.onFrame(frame);
+        }
+        Assert.assertTrue(messages.isEmpty());
+        Assert.assertEquals(frames.size(), reassembler.getRejectedFrames());
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void frameWithInconsistentHeader_isRejectedWithStrictFraming() {
+        reassembler.setStrictFraming(true);
+        List<byte[]> frames = frames(4, payload(70, 1));
+        reassembler.onFrame(frames.get(0));
+        // Slice runs past the total
+        byte[] malformed = frames.get(1).clone();
+        malformed[8] = 30;
+        reassembler.onFrame(malformed);
+        // Empty message
+        byte[] empty = new byte[FrameFragmenter.HEADER_SIZE + 4];
+        reassembler.onFrame(empty);
+
+        Assert.assertTrue(messages.isEmpty());
+        Assert.assertEquals(2, reassembler.getRejectedFrames());
+        // The message the malformed frame belonged to is dropped with it
+        Assert.assertEquals(1, reassembler.getDroppedMessages());
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void incompleteMessage_isDroppedAfterTimeout() {
+        List<byte[]> frames = frames(5, payload(70, 1));
+        reassembler.onFrame(frames.get(0));
+        eventLoop.advance(100);
+        Assert.assertEquals(1, reassembler.getDroppedMessages());
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+
+        // The rest of the message is ignored rather than delivered partially
+        for (int i = 1; i < frames.size(); i++) {
+            reassembler.onFrame(frames.get(i));
+        }
+        Assert.assertTrue(messages.isEmpty());
+        Assert.assertFalse(eventLoop.hasPendingTasks());
+    }
+
+    @Test
+    public void memoryCap_dropsOldestIncompleteMessage() {
+        reassembler.setLimits(150, 100);
+        List<byte[]> first = frames(1, payload(100, 1));
+        List<byte[]> second = frames(2, payload(100, 2));
+        reassembler.onFrame(first.get(0));
+        reassembler.onFrame(second.get(0));
+        Assert.assertEquals(1, reassembler.getDroppedMessages());
+        Assert.assertEquals(100, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void lostFrame_dropsMessage() {
+        List<byte[]> frames = frames(9, payload(70, 1));
+        reassembler.onFrame(frames.get(0));
+        reassembler.onFrame(frames.get(2));
+        reassembler.onFrame(frames.get(3));
+        Assert.assertTrue(messages.isEmpty());
+        Assert.assertEquals(1, reassembler.getDroppedMessages());
+    }
+}
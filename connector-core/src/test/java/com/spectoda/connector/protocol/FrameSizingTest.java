@@ -0,0 +1,30 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrameSizingTest {
+
+    @Test
+    public void packetSize_followsMtuUpToCeiling() {
+        Assert.assertEquals(20, FrameSizing.packetSize(FrameSizing.DEFAULT_MTU, FrameSizing.MAX_PACKET_SIZE));
+        Assert.assertEquals(244, FrameSizing.packetSize(247, FrameSizing.MAX_PACKET_SIZE));
+        Assert.assertEquals(512, FrameSizing.packetSize(517, FrameSizing.MAX_PACKET_SIZE));
+        Assert.assertEquals(256, FrameSizing.packetSize(517, 256));
+    }
+
+    @Test
+    public void otaChunkSize_matchesLegacyChunkAtFullMtu() {
+        Assert.assertEquals(4992, FrameSizing.otaChunkSize(FrameSizing.payloadPerPacket(517, FrameSizing.MAX_PACKET_SIZE)));
+    }
+
+    @Test
+    public void otaChunkSize_isAlignedAndFitsItsFrames() {
+        for (int mtu = FrameSizing.DEFAULT_MTU; mtu <= FrameSizing.MAX_MTU; mtu++) {
+            int payloadPerPacket = FrameSizing.payloadPerPacket(mtu, FrameSizing.MAX_PACKET_SIZE);
+            int chunkSize = FrameSizing.otaChunkSize(payloadPerPacket);
+            Assert.assertEquals(0, chunkSize % FrameSizing.OTA_CHUNK_ALIGNMENT);
+            Assert.assertTrue(chunkSize + FrameSizing.OTA_HEADER_SIZE <= payloadPerPacket * FrameSizing.OTA_PACKETS_PER_CHUNK);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class GattOperationQueueTest {
+    private static final UUID TERMINAL = UUID.randomUUID();
+    private static final UUID DEVICE = UUID.randomUUID();
+
+    private final List<String> issued = new ArrayList<>();
+    private final List<String> completed = new ArrayList<>();
+    private final List<Integer> writeTypes = new ArrayList<>();
+    private GattOperationQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new GattOperationQueue(new GattTransport() {
+            @Override
+            public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+                issued.add("write " + characteristic + " " + value.length);
+                writeTypes.add(writeType);
+                return true;
+            }
+
+            @Override
+            public boolean readCharacteristic(UUID characteristic) {
+                issued.add("read " + characteristic);
+                return true;
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                issued.add("mtu " + mtu);
+                return true;
+            }
+        }, new FramePool(FrameSizing.MAX_PACKET_SIZE), FrameSizing.MAX_PACKET_SIZE);
+    }
+
+    private GattOperation.Completion record(String name) {
+        return (operation, success, value) -> completed.add(name + (success ? " ok" : " failed"));
+    }
+
+    @Test
+    public void framedWrite_issuesOneFrameAtATimeAndCompletesOnce() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[1200], 2, record("deliver")));
+        Assert.assertEquals(1, issued.size());
+
+        Assert.assertTrue(queue.onCharacteristicWrite(TERMINAL, true));
+        Assert.assertTrue(queue.onCharacteristicWrite(TERMINAL, true));
+        Assert.assertEquals(3, issued.size());
+        Assert.assertTrue(completed.isEmpty());
+
+        Assert.assertTrue(queue.onCharacteristicWrite(TERMINAL, true));
+        Assert.assertEquals(1, completed.size());
+        Assert.assertEquals("deliver ok", completed.get(0));
+        Assert.assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void streamedWrite_acknowledgesOnlyTheLastFrame() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_OTA, 4, DEVICE, new byte[1200], GattTransport.WRITE_TYPE_DEFAULT, record("ota")).setStreamed(true));
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onCharacteristicWrite(DEVICE, true);
+
+        Assert.assertEquals(List.of(GattTransport.WRITE_TYPE_NO_RESPONSE, GattTransport.WRITE_TYPE_NO_RESPONSE, GattTransport.WRITE_TYPE_DEFAULT), writeTypes);
+        Assert.assertEquals(List.of("ota ok"), completed);
+    }
+
+    @Test
+    public void callbacks_completeOnlyTheMatchingOperation() {
+        queue.enqueue(GattOperation.rawWrite(GattOperation.LANE_CLOCK, 3, DEVICE, new byte[4], 2, record("clock")));
+        queue.enqueue(GattOperation.read(GattOperation.LANE_REQUEST, 2, DEVICE, record("read")));
+
+        Assert.assertFalse(queue.onCharacteristicWrite(TERMINAL, true));
+        Assert.assertFalse(queue.onCharacteristicRead(DEVICE, true, new byte[1]));
+        Assert.assertTrue(completed.isEmpty());
+
+        Assert.assertTrue(queue.onCharacteristicWrite(DEVICE, true));
+        Assert.assertTrue(queue.onCharacteristicRead(DEVICE, true, new byte[1]));
+        Assert.assertEquals("clock ok", completed.get(0));
+        Assert.assertEquals("read ok", completed.get(1));
+    }
+
+    @Test
+    public void failedFrame_failsItsOperationAndStartsTheNext() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[1200], 2, record("first")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[10], 2, record("second")));
+
+        queue.onCharacteristicWrite(TERMINAL, false);
+        Assert.assertEquals("first failed", completed.get(0));
+        Assert.assertEquals("write " + TERMINAL + " 22", issued.get(1));
+
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("second ok", completed.get(1));
+    }
+
+    @Test
+    public void unreadableSource_failsItsOperationAndStartsTheNext() {
+        FirmwareSource source = new FirmwareSource() {
+            @Override
+            public int length() {
+                return 1200;
+            }
+
+            @Override
+            public void read(int offset, byte[] destination, int destinationOffset, int length) throws IOException {
+                if (offset > 0) {
+                    throw new IOException("gone");
+                }
+            }
+
+            @Override
+            public String getSha256() {
+                return "";
+            }
+        };
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, source, 2, record("spooled")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[10], 2, record("deliver")));
+        queue.onCharacteristicWrite(TERMINAL, true);
+
+        Assert.assertEquals(List.of("spooled failed"), completed);
+        Assert.assertEquals(2, issued.size());
+    }
+
+    @Test
+    public void enqueueFirst_overtakesWaitingOperations() {
+        queue.enqueue(GattOperation.requestMtu(517, record("mtu")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("transmit")));
+        queue.enqueueFirst(GattOperation.read(GattOperation.LANE_REQUEST, 2, DEVICE, record("read")));
+
+        queue.onMtuChanged(517, true);
+        queue.onCharacteristicRead(DEVICE, true, new byte[1]);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("mtu ok", completed.get(0));
+        Assert.assertEquals("read ok", completed.get(1));
+        Assert.assertEquals("transmit ok", completed.get(2));
+    }
+
+    @Test
+    public void urgentOperations_releaseTheirTransferBeforeNormalTraffic() {
+        queue.enqueue(GattOperation.framedWrite(-1, 0, DEVICE, new byte[1200], 2, record("urgent")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("transmit")));
+        queue.enqueue(GattOperation.requestMtu(517, record("mtu")));
+        Assert.assertEquals(3, queue.size());
+
+        // Every frame of the urgent write goes before the lanes
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onCharacteristicWrite(DEVICE, true);
+        Assert.assertEquals(3, issued.size());
+        Assert.assertTrue(issued.get(2).startsWith("write " + DEVICE));
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onMtuChanged(517, true);
+        Assert.assertEquals(List.of("urgent ok", "mtu ok"), completed);
+        Assert.assertEquals(1, queue.size());
+
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals(List.of("urgent ok", "mtu ok", "transmit ok"), completed);
+        Assert.assertTrue(queue.isIdle());
+
+        // The released transfer serves the next framed write
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[1200], 2, record("deliver")));
+        queue.onCharacteristicWrite(TERMINAL, true);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("deliver ok", completed.get(3));
+        Assert.assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void transmit_preemptsOtaTransferBetweenFrames() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_OTA, 4, DEVICE, new byte[4998], 2, record("ota")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("transmit")));
+        Assert.assertEquals("write " + DEVICE + " 512", issued.get(0));
+
+        queue.onCharacteristicWrite(DEVICE, true);
+        Assert.assertEquals("write " + TERMINAL + " 22", issued.get(1));
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("transmit ok", completed.get(0));
+        Assert.assertEquals("write " + DEVICE + " 512", issued.get(2));
+
+        for (int frame = 1; frame < 10; frame++) {
+            queue.onCharacteristicWrite(DEVICE, true);
+        }
+        Assert.assertEquals("ota ok", completed.get(1));
+        Assert.assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void framesOfOneCharacteristic_doNotInterleave() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[1200], 2, record("deliver")));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("transmit")));
+
+        queue.onCharacteristicWrite(TERMINAL, true);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertTrue(completed.isEmpty());
+        Assert.assertEquals("write " + TERMINAL + " 212", issued.get(2));
+
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("deliver ok", completed.get(0));
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("transmit ok", completed.get(1));
+    }
+
+    @Test
+    public void lanes_shareFramesByWeight() {
+        for (int i = 0; i < 24; i++) {
+            queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("transmit")));
+        }
+        for (int i = 0; i < 12; i++) {
+            queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[10], 2, record("deliver")));
+        }
+        for (int i = 0; i < 36; i++) {
+            queue.onCharacteristicWrite(TERMINAL, true);
+        }
+
+        int delivers = 0;
+        for (int i = 0; i < 12; i++) {
+            if (completed.get(i).startsWith("deliver")) {
+                delivers++;
+            }
+        }
+        Assert.assertEquals(4, delivers);
+        Assert.assertEquals(36, completed.size());
+    }
+
+    @Test
+    public void keyedTransmit_replacesWaitingTransmitWithSameKey() {
+        byte[] slider = {'s', 'l', 'i', 'd', 'e'};
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[10], 1, record("first")).setSupersessionKey(slider));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[11], 1, record("second")).setSupersessionKey(slider));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[12], 1, record("other")).setSupersessionKey(new byte[]{'o'}));
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_TRANSMIT, 1, TERMINAL, new byte[13], 1, record("third")).setSupersessionKey(slider.clone()));
+
+        // "first" was already being written, "second" waited and got replaced by "third" in its place
+        Assert.assertEquals("second ok", completed.get(0));
+        Assert.assertEquals(1, queue.getSupersededCount());
+        Assert.assertEquals(3, queue.size(GattOperation.LANE_TRANSMIT));
+
+        queue.onCharacteristicWrite(TERMINAL, true);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals("first ok", completed.get(1));
+        Assert.assertEquals("third ok", completed.get(2));
+        Assert.assertEquals("other ok", completed.get(3));
+        Assert.assertEquals("write " + TERMINAL + " 25", issued.get(1));
+    }
+
+    @Test
+    public void failAll_failsCurrentAndPending() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[10], 2, record("a")));
+        queue.enqueue(GattOperation.read(GattOperation.LANE_REQUEST, 2, DEVICE, record("b")));
+
+        queue.failAll();
+        Assert.assertEquals(2, completed.size());
+        Assert.assertEquals("a failed", completed.get(0));
+        Assert.assertEquals("b failed", completed.get(1));
+        Assert.assertTrue(queue.isIdle());
+        Assert.assertFalse(queue.onCharacteristicWrite(TERMINAL, true));
+    }
+
+    @Test
+    public void failInProgress_keepsWaitingOperationsForResume() {
+        queue.enqueue(GattOperation.framedWrite(GattOperation.LANE_DELIVER, 0, TERMINAL, new byte[1200], 2, record("a")));
+        queue.enqueue(GattOperation.read(GattOperation.LANE_REQUEST, 2, DEVICE, record("b")));
+        queue.onCharacteristicWrite(TERMINAL, true);
+        Assert.assertEquals(2, issued.size());
+
+        queue.pause();
+        queue.failInProgress();
+        Assert.assertEquals(List.of("a failed"), completed);
+        Assert.assertEquals(2, issued.size());
+        Assert.assertEquals(1, queue.size());
+
+        queue.resume();
+        Assert.assertEquals("read " + DEVICE, issued.get(2));
+        Assert.assertTrue(queue.onCharacteristicRead(DEVICE, true, new byte[1]));
+        Assert.assertEquals(List.of("a failed", "b ok"), completed);
+        Assert.assertTrue(queue.isIdle());
+    }
+}
@@ -0,0 +1,100 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LinkGovernorTest {
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final List<String> applied = new ArrayList<>();
+    private LinkGovernor governor;
+
+    @Before
+    public void setUp() {
+        governor = new LinkGovernor(eventLoop, new LinkGovernor.Link() {
+            @Override
+            public void setConnectionPriority(int mode) {
+                applied.add("priority " + mode);
+            }
+
+            @Override
+            public void setFastPhy(boolean fast) {
+                applied.add(fast ? "2M" : "1M");
+            }
+        });
+        governor.setThresholds(4, 100, 1000);
+        governor.onConnected();
+    }
+
+    @Test
+    public void queueBuildUp_switchesToHighPriorityAndFastPhy() {
+        for (int depth = 1; depth < 4; depth++) {
+            governor.onQueueDepth(depth);
+        }
+        Assert.assertEquals(LinkGovernor.MODE_BALANCED, governor.getMode());
+
+        governor.onQueueDepth(4);
+        Assert.assertEquals(LinkGovernor.MODE_HIGH, governor.getMode());
+        Assert.assertEquals(List.of("2M", "priority " + LinkGovernor.MODE_HIGH), applied);
+
+        // Staying busy does not apply the mode again
+        governor.onQueueDepth(8);
+        governor.onQueueDepth(2);
+        eventLoop.advance(500);
+        Assert.assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void idleLink_stepsDownToBalancedAndThenLowPower() {
+        governor.onOtaStarted();
+        governor.onOtaFinished();
+        Assert.assertEquals(LinkGovernor.MODE_HIGH, governor.getMode());
+
+        eventLoop.advance(100);
+        Assert.assertEquals(LinkGovernor.MODE_BALANCED, governor.getMode());
+        eventLoop.advance(1000);
+        Assert.assertEquals(LinkGovernor.MODE_LOW_POWER, governor.getMode());
+        Assert.assertFalse(eventLoop.hasPendingTasks());
+
+        governor.onQueueDepth(1);
+        Assert.assertEquals(LinkGovernor.MODE_BALANCED, governor.getMode());
+
+        List<LinkGovernor.Transition> transitions = governor.getTransitions();
+        Assert.assertEquals(4, transitions.size());
+        Assert.assertEquals("ota", transitions.get(0).reason);
+        Assert.assertEquals(100, transitions.get(1).at);
+        Assert.assertEquals(LinkGovernor.MODE_LOW_POWER, transitions.get(2).to);
+    }
+
+    @Test
+    public void runningOta_holdsHighPriorityWhileQueueIsEmpty() {
+        governor.onOtaStarted();
+        governor.onQueueDepth(0);
+        eventLoop.advance(5000);
+        Assert.assertEquals(LinkGovernor.MODE_HIGH, governor.getMode());
+    }
+
+    @Test
+    public void throughput_isAccountedPerMode() {
+        governor.onBytesWritten(100);
+        eventLoop.advance(1000);
+        governor.onOtaStarted();
+        governor.onBytesWritten(5000);
+        eventLoop.advance(500);
+
+        Assert.assertEquals(100, governor.getThroughput(LinkGovernor.MODE_BALANCED));
+        Assert.assertEquals(10000, governor.getThroughput(LinkGovernor.MODE_HIGH));
+        Assert.assertEquals(0, governor.getThroughput(LinkGovernor.MODE_LOW_POWER));
+    }
+
+    @Test
+    public void disconnect_stopsGoverning() {
+        governor.onDisconnected();
+        governor.onQueueDepth(10);
+        Assert.assertTrue(applied.isEmpty());
+        Assert.assertFalse(eventLoop.hasPendingTasks());
+    }
+}
@@ -0,0 +1,86 @@
+package com.spectoda.connector.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link EventLoop} on a virtual clock that only moves when a test advances it.
+ */
+public class ManualEventLoop implements EventLoop {
+
+    private static final class Task {
+        final Runnable runnable;
+        final long dueAt;
+        final long sequence;
+
+        Task(Runnable runnable, long dueAt, long sequence) {
+            this.runnable = runnable;
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private long now;
+    private long sequence;
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        tasks.add(new Task(task, now + Math.max(0, delayMillis), sequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        tasks.removeIf(scheduled -> scheduled.runnable == task);
+    }
+
+    public boolean hasPendingTasks() {
+        return !tasks.isEmpty();
+    }
+
+    /**
+     * Runs every task due up to {@code now + millis}, moving the clock to each task's time.
+     */
+    public void advance(long millis) {
+        long until = now + millis;
+        Task next;
+        while ((next = nextTask()) != null && next.dueAt <= until) {
+            tasks.remove(next);
+            now = Math.max(now, next.dueAt);
+            next.runnable.run();
+        }
+        now = until;
+    }
+
+    /**
+     * Runs tasks until none is left, or the clock passes {@code limitMillis}.
+     */
+    public void runUntilIdle(long limitMillis) {
+        Task next;
+        while ((next = nextTask()) != null && next.dueAt <= limitMillis) {
+            tasks.remove(next);
+            now = Math.max(now, next.dueAt);
+            next.runnable.run();
+        }
+    }
+
+    private Task nextTask() {
+        Task next = null;
+        for (Task task : tasks) {
+            if (next == null || task.dueAt < next.dueAt || (task.dueAt == next.dueAt && task.sequence < next.sequence)) {
+                next = task;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,59 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgressThrottleTest {
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private ProgressThrottle throttle;
+
+    @Before
+    public void setUp() {
+        throttle = new ProgressThrottle(eventLoop);
+        throttle.setLimits(10, 1f);
+    }
+
+    @Test
+    public void firstAndFinalEvents_alwaysPass() {
+        Assert.assertTrue(throttle.offer(0.1f));
+        Assert.assertFalse(throttle.offer(0.2f));
+        Assert.assertTrue(throttle.offer(100));
+        Assert.assertEquals(1, throttle.getSuppressedCount());
+    }
+
+    @Test
+    public void eventsWithinTheInterval_areSuppressed() {
+        Assert.assertTrue(throttle.offer(0));
+        eventLoop.advance(50);
+        Assert.assertFalse(throttle.offer(5));
+        eventLoop.advance(50);
+        Assert.assertTrue(throttle.offer(6));
+        Assert.assertEquals(1, throttle.getSuppressedCount());
+    }
+
+    @Test
+    public void stepsBelowTheMinimum_areSuppressed() {
+        Assert.assertTrue(throttle.offer(10));
+        eventLoop.advance(1000);
+        Assert.assertFalse(throttle.offer(10.5f));
+        eventLoop.advance(1000);
+        Assert.assertTrue(throttle.offer(11));
+    }
+
+    @Test
+    public void reset_letsTheNextRunStartReporting() {
+        Assert.assertTrue(throttle.offer(50));
+        throttle.reset();
+        Assert.assertTrue(throttle.offer(0));
+    }
+
+    @Test
+    public void disabledLimits_passEveryEvent() {
+        throttle.setLimits(0, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(throttle.offer(i * 0.1f));
+        }
+        Assert.assertEquals(0, throttle.getSuppressedCount());
+    }
+}
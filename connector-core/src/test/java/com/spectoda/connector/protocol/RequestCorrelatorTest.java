@@ -0,0 +1,125 @@
+package com.spectoda.connector.protocol;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class RequestCorrelatorTest {
+    private static final UUID DEVICE = UUID.randomUUID();
+
+    private final List<String> issued = new ArrayList<>();
+    private final List<byte[]> writtenFrames = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+    private GattOperationQueue queue;
+    private RequestCorrelator correlator;
+
+    @Before
+    public void setUp() {
+        queue = new GattOperationQueue(new GattTransport() {
+            @Override
+            public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+                issued.add("write");
+                writtenFrames.add(value.clone());
+                return true;
+            }
+
+            @Override
+            public boolean readCharacteristic(UUID characteristic) {
+                issued.add("read");
+                return true;
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                return true;
+            }
+        }, new FramePool(FrameSizing.MAX_PACKET_SIZE), FrameSizing.MAX_PACKET_SIZE);
+        correlator = new RequestCorrelator(queue, DEVICE, 2, 2);
+    }
+
+    private RequestCorrelator.Callback record(String name) {
+        return new RequestCorrelator.Callback() {
+            @Override
+            public void onWritten(boolean success) {
+                results.add(name + " written " + success);
+            }
+
+            @Override
+            public void onResponse(boolean success, byte[] response) {
+                results.add(name + " response " + (success ? response[12] : "failed"));
+            }
+        };
+    }
+
+    // Response framed like the request it answers, carrying one byte of data
+    private byte[] responseTo(int writeIndex, int data) {
+        byte[] response = new byte[13];
+        System.arraycopy(writtenFrames.get(writeIndex), 0, response, 0, 4);
+        response[8] = 1;
+        response[12] = (byte) data;
+        return response;
+    }
+
+    @Test
+    public void singleInFlight_readsEachResponseBeforeNextRequest() {
+        correlator.request(new byte[]{1}, true, record("a"));
+        correlator.request(new byte[]{2}, true, record("b"));
+        Assert.assertEquals(1, issued.size());
+
+        queue.onCharacteristicWrite(DEVICE, true);
+        Assert.assertEquals("read", issued.get(1));
+        queue.onCharacteristicRead(DEVICE, true, responseTo(0, 10));
+        Assert.assertEquals("a response 10", results.get(0));
+        Assert.assertEquals("write", issued.get(2));
+    }
+
+    @Test
+    public void pipelinedRequests_areMatchedByPayloadId() {
+        correlator.setMaxInFlight(3);
+        correlator.request(new byte[]{1}, true, record("a"));
+        correlator.request(new byte[]{2}, true, record("b"));
+        correlator.request(new byte[]{3}, false, record("c"));
+
+        queue.onCharacteristicWrite(DEVICE, true);
+        // Second request is written before the first response is read
+        Assert.assertEquals("write", issued.get(1));
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onCharacteristicWrite(DEVICE, true);
+        Assert.assertEquals("c written true", results.get(0));
+
+        // Responses come back in the opposite order
+        queue.onCharacteristicRead(DEVICE, true, responseTo(1, 20));
+        queue.onCharacteristicRead(DEVICE, true, responseTo(0, 10));
+        Assert.assertEquals("b response 20", results.get(1));
+        Assert.assertEquals("a response 10", results.get(2));
+        Assert.assertEquals(0, correlator.getInFlight());
+    }
+
+    @Test
+    public void unframedResponse_goesToOldestRequest() {
+        correlator.setMaxInFlight(2);
+        correlator.request(new byte[]{1}, true, record("a"));
+        correlator.request(new byte[]{2}, true, record("b"));
+        queue.onCharacteristicWrite(DEVICE, true);
+        queue.onCharacteristicWrite(DEVICE, true);
+
+        byte[] raw = new byte[13];
+        raw[12] = 7;
+        queue.onCharacteristicRead(DEVICE, true, raw);
+        Assert.assertEquals("a response 7", results.get(0));
+    }
+
+    @Test
+    public void failedWrite_rejectsAndStartsNextRequest() {
+        correlator.request(new byte[]{1}, true, record("a"));
+        correlator.request(new byte[]{2}, false, record("b"));
+        queue.onCharacteristicWrite(DEVICE, false);
+        Assert.assertEquals("a written false", results.get(0));
+        queue.onCharacteristicWrite(DEVICE, true);
+        Assert.assertEquals("b written true", results.get(1));
+    }
+}
@@ -0,0 +1,212 @@
+package com.spectoda.connector.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} that connects a {@link ConnectorEngine} to a {@link SimulatedTangleDevice}
+ * over a modelled radio link on a {@link ManualEventLoop}. Packets are serialized on the air at
+ * the configured bandwidth, take the one-way latency to arrive, and a lost packet costs a
+ * retransmission one round trip later. Runs are deterministic for a given seed.
+ */
+public class SimulatedLink implements GattTransport {
+
+    public static final class Parameters {
+        long latencyMillis = 15;
+        long bytesPerSecond = 50_000;
+        int maxMtu = 247;
+        double lossRate;
+        long seed = 1;
+        int streamLimit = Integer.MAX_VALUE;
+
+        /**
+         * @param latencyMillis One-way latency, roughly one connection interval.
+         */
+        public Parameters latency(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        public Parameters bandwidth(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param maxMtu Largest ATT MTU the device accepts.
+         */
+        public Parameters mtu(int maxMtu) {
+            this.maxMtu = maxMtu;
+            return this;
+        }
+
+        /**
+         * @param lossRate Probability that a single packet is lost and retransmitted.
+         */
+        public Parameters loss(double lossRate, long seed) {
+            this.lossRate = lossRate;
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param streamLimit Writes without response in a row the device buffers, further ones are dropped.
+         */
+        public Parameters streamLimit(int streamLimit) {
+            this.streamLimit = streamLimit;
+            return this;
+        }
+    }
+
+    private final ManualEventLoop eventLoop;
+    private final SimulatedTangleDevice device;
+    private final Parameters parameters;
+    private final Random random;
+    private ConnectorEngine engine;
+
+    private int mtu = FrameSizing.DEFAULT_MTU;
+    // The radio sends one packet at a time, in microseconds to keep small packets exact
+    private long airFreeAtMicros;
+    // The link layer delivers in order, a retransmission holds back the packets behind it
+    private long lastArrivalMillis;
+    private long packets;
+    private long retransmissions;
+    // Packets and callbacks of an earlier connection are lost
+    private int connection;
+    private int streamed;
+    private long droppedStreamedWrites;
+
+    public SimulatedLink(ManualEventLoop eventLoop, SimulatedTangleDevice device, Parameters parameters) {
+        this.eventLoop = eventLoop;
+        this.device = device;
+        this.parameters = parameters;
+        this.random = new Random(parameters.seed);
+    }
+
+    public void attach(ConnectorEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+        if (value.length > mtu - FrameSizing.ATT_WRITE_HEADER) {
+            return false;
+        }
+        // The GATT stack copies the value, the caller reuses its buffer
+        final byte[] copy = value.clone();
+        long arrival = send(copy.length + FrameSizing.ATT_WRITE_HEADER);
+        if (writeType == WRITE_TYPE_NO_RESPONSE) {
+            // Acknowledged locally once the packet left the radio
+            at(airFreeAtMicros / 1000, () -> engine.onCharacteristicWrite(characteristic, true));
+            if (++streamed > parameters.streamLimit) {
+                droppedStreamedWrites++;
+            } else {
+                at(arrival, () -> device.onWrite(characteristic, copy));
+            }
+        } else {
+            streamed = 0;
+            at(arrival, () -> {
+                boolean accepted = device.onWrite(characteristic, copy);
+                // The firmware answers once it handled the write, e.g. after erasing the flash
+                at(eventLoop.now() + device.takeProcessingMillis(), () -> {
+                    long responseArrival = send(FrameSizing.ATT_WRITE_HEADER);
+                    int status = accepted ? STATUS_SUCCESS : device.takeRejectStatus();
+                    at(responseArrival, () -> engine.onCharacteristicWrite(characteristic, status));
+                });
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic) {
+        at(send(FrameSizing.ATT_WRITE_HEADER), () -> {
+            byte[] value = device.onRead(characteristic);
+            int length = Math.min(value.length, mtu - 1);
+            byte[] truncated = length < value.length ? Arrays.copyOf(value, length) : value;
+            at(send(truncated.length + 1), () -> engine.onCharacteristicRead(characteristic, true, truncated));
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        int negotiated = Math.min(mtu, parameters.maxMtu);
+        at(eventLoop.now() + 2 * parameters.latencyMillis, () -> {
+            this.mtu = negotiated;
+            engine.onMtuChanged(negotiated, true);
+        });
+        return true;
+    }
+
+    /**
+     * Sends a payload from the device as framed notifications on the terminal characteristic.
+     */
+    public void notifyFromDevice(long payloadId, byte[] payload) {
+        FrameFragmenter fragmenter = new FrameFragmenter(new FramePool(FrameSizing.MAX_PACKET_SIZE), FrameSizing.packetSize(mtu, FrameSizing.MAX_PACKET_SIZE));
+        fragmenter.reset(payloadId, payload);
+        while (fragmenter.hasNext()) {
+            ByteBuffer frame = fragmenter.next();
+            final byte[] value = Arrays.copyOf(frame.array(), frame.limit());
+            fragmenter.release(frame);
+            at(send(value.length + FrameSizing.ATT_WRITE_HEADER), () -> engine.onNotification(value));
+        }
+    }
+
+    /**
+     * Drops the link: whatever is on the air is lost and the engine sees the disconnect.
+     */
+    public void disconnect() {
+        connection++;
+        mtu = FrameSizing.DEFAULT_MTU;
+        engine.onDisconnected();
+    }
+
+    /**
+     * Connects again after {@link #disconnect()}, the engine negotiates the MTU anew.
+     */
+    public void reconnect() {
+        engine.onConnected();
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public long getDroppedStreamedWrites() {
+        return droppedStreamedWrites;
+    }
+
+    // Puts a packet on the air, returns when it arrives at the other side
+    private long send(int bytes) {
+        long startMicros = Math.max(eventLoop.now() * 1000, airFreeAtMicros);
+        airFreeAtMicros = startMicros + bytes * 1_000_000L / parameters.bytesPerSecond;
+        packets++;
+        long arrivalMillis = airFreeAtMicros / 1000 + parameters.latencyMillis;
+        while (parameters.lossRate > 0 && random.nextDouble() < parameters.lossRate) {
+            retransmissions++;
+            arrivalMillis += 2 * parameters.latencyMillis;
+        }
+        lastArrivalMillis = Math.max(lastArrivalMillis, arrivalMillis);
+        return lastArrivalMillis;
+    }
+
+    private void at(long timeMillis, Runnable task) {
+        final int scheduledOn = connection;
+        eventLoop.postDelayed(() -> {
+            if (scheduledOn == connection) {
+                task.run();
+            }
+        }, timeMillis - eventLoop.now());
+    }
+}
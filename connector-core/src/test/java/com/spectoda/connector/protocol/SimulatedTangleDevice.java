@@ -0,0 +1,442 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.EncodedFirmware;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * GATT server side of a Tangle device as the firmware implements it: framed payloads are
+ * reassembled per characteristic, the terminal collects commands, the clock characteristic
+ * holds the clock and the device characteristic runs the OTA flags and answers requests.
+ * A deflated OTA image is inflated into flash as its chunks arrive, a delta patch is applied to
+ * the running image once complete.
+ * <p>
+ * Requests are told apart from OTA payloads by their first two bytes, so requests in tests
+ * must not start with an OTA flag followed by 0x00.
+ */
+public class SimulatedTangleDevice {
+    static final int FLAG_OTA_BEGIN = 255;
+    static final int FLAG_OTA_WRITE = 0;
+    static final int FLAG_OTA_END = 254;
+    static final int FLAG_OTA_RESET = 253;
+    static final int FLAG_OTA_RESUME = 252;
+
+    private static final byte[] REJECTED = new byte[0];
+
+    public interface Responder {
+        byte[] respond(byte[] request);
+    }
+
+    // Payload being reassembled on one characteristic, the firmware keeps one at a time
+    private static final class Reassembly {
+        long id = -1;
+        byte[] data;
+        int received;
+    }
+
+    private final Map<UUID, Reassembly> reassemblies = new HashMap<>();
+    private final List<byte[]> terminalPayloads = new ArrayList<>();
+    private final List<byte[]> requests = new ArrayList<>();
+    private final ArrayDeque<byte[]> responses = new ArrayDeque<>();
+    private Responder responder = request -> request;
+    private byte[] clock = new byte[0];
+
+    private byte[] otaImage;
+    private int otaWritten;
+    private boolean otaComplete;
+    private int otaResets;
+    private int otaCorruptOffset = -1;
+    // Image the device boots, the base of a delta patch
+    private byte[] runningImage;
+    // Encoding of the OTA in progress, 0 for a raw image; WRITE offsets then count encoded bytes
+    private int otaEncoding;
+    private Inflater otaInflater;
+    private byte[] otaPatch;
+    private int otaEncodedWritten;
+    private byte[] otaEndDigest;
+
+    private int rejectedWrites;
+    private long receivedBytes;
+
+    private long eraseMillisPerKilobyte;
+    private long processingMillis;
+    // Status the firmware answers the last rejected write with
+    private int rejectStatus = GattTransport.STATUS_FAILURE;
+
+    public void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * @param eraseMillisPerKilobyte Time the firmware spends erasing flash on BEGIN before it answers.
+     */
+    public void setEraseMillisPerKilobyte(long eraseMillisPerKilobyte) {
+        this.eraseMillisPerKilobyte = eraseMillisPerKilobyte;
+    }
+
+    /**
+     * @param runningImage Firmware the device runs, a completed OTA replaces it.
+     */
+    public void setRunningImage(byte[] runningImage) {
+        this.runningImage = runningImage;
+    }
+
+    /**
+     * Flips a bit of the image byte at the offset as it is written, as a bad flash write would.
+     */
+    public void setOtaCorruptOffset(int offset) {
+        this.otaCorruptOffset = offset;
+    }
+
+    /**
+     * @return How long the firmware worked on the last write before answering it, then resets it.
+     */
+    public long takeProcessingMillis() {
+        long millis = processingMillis;
+        processingMillis = 0;
+        return millis;
+    }
+
+    /**
+     * @return Status of the last write {@link #onWrite(UUID, byte[])} rejected, then resets it.
+     */
+    public int takeRejectStatus() {
+        int status = rejectStatus;
+        rejectStatus = GattTransport.STATUS_FAILURE;
+        return status;
+    }
+
+    /**
+     * @return False when the firmware rejects the write, which the client sees as a failed GATT write.
+     */
+    public boolean onWrite(UUID characteristic, byte[] value) {
+        receivedBytes += value.length;
+        if (characteristic.equals(ConnectorEngine.CLOCK_CHAR_UUID)) {
+            clock = value;
+            return true;
+        }
+        byte[] payload = reassemble(characteristic, value);
+        if (payload == REJECTED) {
+            rejectedWrites++;
+            return false;
+        }
+        if (payload == null) {
+            return true;
+        }
+        if (characteristic.equals(ConnectorEngine.TERMINAL_CHAR_UUID)) {
+            terminalPayloads.add(payload);
+            return true;
+        }
+        if (isOta(payload)) {
+            return onOta(payload);
+        }
+        requests.add(payload);
+        responses.addLast(respond(value, payload));
+        return true;
+    }
+
+    /**
+     * @return Value of the characteristic, the oldest unread response on the device characteristic.
+     */
+    public byte[] onRead(UUID characteristic) {
+        if (characteristic.equals(ConnectorEngine.CLOCK_CHAR_UUID)) {
+            return clock;
+        }
+        if (characteristic.equals(ConnectorEngine.DEVICE_CHAR_UUID)) {
+            byte[] response = responses.pollFirst();
+            return response != null ? response : new byte[0];
+        }
+        return new byte[0];
+    }
+
+    // Returns the payload once complete, null while frames are missing
+    private byte[] reassemble(UUID characteristic, byte[] frame) {
+        if (frame.length < FrameFragmenter.HEADER_SIZE) {
+            return REJECTED;
+        }
+        long id = readInt(frame, 0);
+        int offset = (int) readInt(frame, 4);
+        int total = (int) readInt(frame, 8);
+        int length = frame.length - FrameFragmenter.HEADER_SIZE;
+
+        Reassembly reassembly = reassemblies.computeIfAbsent(characteristic, key -> new Reassembly());
+        if (offset == 0) {
+            reassembly.id = id;
+            reassembly.data = new byte[total];
+            reassembly.received = 0;
+        } else if (id != reassembly.id || offset != reassembly.received || total != reassembly.data.length) {
+            reassembly.id = -1;
+            return REJECTED;
+        }
+        if (offset + length > total) {
+            reassembly.id = -1;
+            return REJECTED;
+        }
+        System.arraycopy(frame, FrameFragmenter.HEADER_SIZE, reassembly.data, offset, length);
+        reassembly.received += length;
+        if (reassembly.received < total) {
+            return null;
+        }
+        reassembly.id = -1;
+        return reassembly.data;
+    }
+
+    // The response carries the [id][offset][total] header of the request so the client can match it
+    private byte[] respond(byte[] frame, byte[] request) {
+        byte[] body = responder.respond(request);
+        byte[] response = new byte[FrameFragmenter.HEADER_SIZE + body.length];
+        System.arraycopy(frame, 0, response, 0, 4);
+        writeInt(response, 8, body.length);
+        System.arraycopy(body, 0, response, FrameFragmenter.HEADER_SIZE, body.length);
+        return response;
+    }
+
+    private static boolean isOta(byte[] payload) {
+        if (payload.length < FrameSizing.OTA_HEADER_SIZE || payload[1] != 0) {
+            return false;
+        }
+        int flag = payload[0] & 0xff;
+        return flag == FLAG_OTA_BEGIN || flag == FLAG_OTA_WRITE || flag == FLAG_OTA_END || flag == FLAG_OTA_RESET || flag == FLAG_OTA_RESUME;
+    }
+
+    private boolean onOta(byte[] payload) {
+        int value = (int) readInt(payload, 2);
+        switch (payload[0] & 0xff) {
+            case FLAG_OTA_RESET:
+                otaResets++;
+                clearOta();
+                return true;
+            case FLAG_OTA_BEGIN:
+                processingMillis = (value + 1023L) / 1024 * eraseMillisPerKilobyte;
+                clearOta();
+                otaImage = new byte[value];
+                // [encoding (1)][encoded length (4)][parameters] after the header
+                if (payload.length > FrameSizing.OTA_HEADER_SIZE) {
+                    return onEncodedOtaBegin(payload);
+                }
+                return true;
+            case FLAG_OTA_RESUME:
+                // Only an image still in flash up to the offset the client saw acknowledged
+                return otaImage != null && !otaComplete && value == (otaEncoding != 0 ? otaEncodedWritten : otaWritten);
+            case FLAG_OTA_WRITE:
+                int length = payload.length - FrameSizing.OTA_HEADER_SIZE;
+                if (otaEncoding == EncodedFirmware.ENCODING_DEFLATE) {
+                    return onCompressedOtaWrite(payload, value, length);
+                }
+                if (otaEncoding == EncodedFirmware.ENCODING_DELTA) {
+                    if (value != otaEncodedWritten || value + length > otaPatch.length) {
+                        return false;
+                    }
+                    System.arraycopy(payload, FrameSizing.OTA_HEADER_SIZE, otaPatch, value, length);
+                    otaEncodedWritten += length;
+                    return true;
+                }
+                if (otaImage == null || value != otaWritten || value + length > otaImage.length) {
+                    return false;
+                }
+                System.arraycopy(payload, FrameSizing.OTA_HEADER_SIZE, otaImage, value, length);
+                corrupt(value, length);
+                otaWritten += length;
+                return true;
+            case FLAG_OTA_END:
+                if (otaEncoding == EncodedFirmware.ENCODING_DELTA && !applyPatch()) {
+                    return false;
+                }
+                if (otaImage == null || value != otaImage.length || otaWritten != otaImage.length) {
+                    return false;
+                }
+                // [CRC32 (4)][SHA-256 (32)] of the image, checked against what was written
+                if (payload.length > FrameSizing.OTA_HEADER_SIZE) {
+                    otaEndDigest = Arrays.copyOfRange(payload, FrameSizing.OTA_HEADER_SIZE, payload.length);
+                    if (!Arrays.equals(otaEndDigest, digest(otaImage))) {
+                        rejectStatus = OtaUploader.STATUS_DIGEST_REJECTED;
+                        return false;
+                    }
+                }
+                otaComplete = true;
+                runningImage = Arrays.copyOf(otaImage, otaImage.length);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean onEncodedOtaBegin(byte[] payload) {
+        int encoding = payload[FrameSizing.OTA_HEADER_SIZE];
+        int encodedLength = (int) readInt(payload, FrameSizing.OTA_HEADER_SIZE + 1);
+        int parameters = FrameSizing.OTA_HEADER_SIZE + 5;
+        if (encoding == EncodedFirmware.ENCODING_DEFLATE) {
+            otaInflater = new Inflater(true);
+        } else if (encoding == EncodedFirmware.ENCODING_DELTA) {
+            // [base length (4)][base SHA-256 (32)], the patch only applies to that image
+            byte[] baseSha256 = Arrays.copyOfRange(payload, parameters + 4, parameters + 36);
+            if (runningImage == null || readInt(payload, parameters) != runningImage.length
+                    || !Arrays.equals(baseSha256, Arrays.copyOfRange(digest(runningImage), 4, 36))) {
+                otaImage = null;
+                return false;
+            }
+            otaPatch = new byte[encodedLength];
+        } else {
+            otaImage = null;
+            return false;
+        }
+        otaEncoding = encoding;
+        return true;
+    }
+
+    // COPY [0x01][base offset (4)][length (4)], INSERT [0x02][length (4)][bytes]
+    private boolean applyPatch() {
+        if (otaImage == null || otaEncodedWritten != otaPatch.length) {
+            return false;
+        }
+        int position = 0;
+        otaWritten = 0;
+        while (position < otaPatch.length) {
+            int op = otaPatch[position];
+            if (op == 0x01 && position + 9 <= otaPatch.length) {
+                int offset = (int) readInt(otaPatch, position + 1);
+                int length = (int) readInt(otaPatch, position + 5);
+                if (offset < 0 || length < 0 || offset + length > runningImage.length || otaWritten + length > otaImage.length) {
+                    return false;
+                }
+                System.arraycopy(runningImage, offset, otaImage, otaWritten, length);
+                position += 9;
+                corrupt(otaWritten, length);
+                otaWritten += length;
+            } else if (op == 0x02 && position + 5 <= otaPatch.length) {
+                int length = (int) readInt(otaPatch, position + 1);
+                if (length < 0 || position + 5 + length > otaPatch.length || otaWritten + length > otaImage.length) {
+                    return false;
+                }
+                System.arraycopy(otaPatch, position + 5, otaImage, otaWritten, length);
+                position += 5 + length;
+                corrupt(otaWritten, length);
+                otaWritten += length;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean onCompressedOtaWrite(byte[] payload, int value, int length) {
+        if (otaImage == null || value != otaEncodedWritten) {
+            return false;
+        }
+        otaInflater.setInput(payload, FrameSizing.OTA_HEADER_SIZE, length);
+        try {
+            int start = otaWritten;
+            while (!otaInflater.needsInput() && !otaInflater.finished()) {
+                int inflated = otaInflater.inflate(otaImage, otaWritten, otaImage.length - otaWritten);
+                if (inflated == 0 && otaWritten == otaImage.length) {
+                    // More data than the image BEGIN announced
+                    return false;
+                }
+                otaWritten += inflated;
+            }
+            corrupt(start, otaWritten - start);
+        } catch (DataFormatException e) {
+            return false;
+        }
+        otaEncodedWritten += length;
+        return true;
+    }
+
+    private void corrupt(int offset, int length) {
+        if (otaCorruptOffset >= offset && otaCorruptOffset < offset + length) {
+            otaImage[otaCorruptOffset] ^= 0x01;
+        }
+    }
+
+    private static byte[] digest(byte[] image) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(image, 0, image.length);
+        byte[] digest = new byte[4 + 32];
+        writeInt(digest, 0, (int) crc32.getValue());
+        try {
+            System.arraycopy(MessageDigest.getInstance("SHA-256").digest(image), 0, digest, 4, 32);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return digest;
+    }
+
+    /**
+     * Power cycle: the OTA session and partially received payloads are lost.
+     */
+    public void reboot() {
+        reassemblies.clear();
+        clearOta();
+    }
+
+    private void clearOta() {
+        otaImage = null;
+        otaWritten = 0;
+        otaComplete = false;
+        otaEncoding = 0;
+        otaInflater = null;
+        otaPatch = null;
+        otaEncodedWritten = 0;
+    }
+
+    public List<byte[]> getTerminalPayloads() {
+        return terminalPayloads;
+    }
+
+    public List<byte[]> getRequests() {
+        return requests;
+    }
+
+    public byte[] getClock() {
+        return clock;
+    }
+
+    public boolean isOtaComplete() {
+        return otaComplete;
+    }
+
+    public byte[] getOtaImage() {
+        return otaImage != null ? Arrays.copyOf(otaImage, otaWritten) : null;
+    }
+
+    /**
+     * @return The digest the client sent with the last END, null when none was sent.
+     */
+    public byte[] getOtaEndDigest() {
+        return otaEndDigest;
+    }
+
+    public int getOtaResets() {
+        return otaResets;
+    }
+
+    public int getRejectedWrites() {
+        return rejectedWrites;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    static long readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFFL) | (bytes[index + 1] & 0xFFL) << 8 | (bytes[index + 2] & 0xFFL) << 16 | (bytes[index + 3] & 0xFFL) << 24;
+    }
+
+    static void writeInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >> 8);
+        bytes[index + 2] = (byte) (value >> 16);
+        bytes[index + 3] = (byte) (value >> 24);
+    }
+}
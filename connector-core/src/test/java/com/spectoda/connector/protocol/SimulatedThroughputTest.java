@@ -0,0 +1,531 @@
+package com.spectoda.connector.protocol;
+
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * End-to-end runs of {@link ConnectorEngine} against {@link SimulatedTangleDevice} on a virtual
+ * clock. The floors are well below what the link model allows, they catch regressions that add
+ * round trips or stall the queue rather than measure the link.
+ */
+public class SimulatedThroughputTest {
+    private static final long TIME_LIMIT = 120_000;
+
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final SimulatedTangleDevice device = new SimulatedTangleDevice();
+    private final List<Integer> messages = new ArrayList<>();
+    private final List<byte[]> notifications = new ArrayList<>();
+    private final List<byte[]> responses = new ArrayList<>();
+    private final List<Float> otaProgress = new ArrayList<>();
+    private float otaThroughput;
+    private long lastMessageAt;
+    private SimulatedLink link;
+    private ConnectorEngine engine;
+    private File cacheDirectory;
+    // Encodes right away, the result still reaches the engine through the event loop
+    private Executor encodingExecutor = Runnable::run;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = Files.createTempDirectory("firmware-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDirectory.delete();
+    }
+
+    private void connect(SimulatedLink.Parameters parameters) {
+        link = new SimulatedLink(eventLoop, device, parameters);
+        engine = new ConnectorEngine(eventLoop, link, new ConnectorEngine.Listener() {
+            @Override
+            public void onMessage(byte[] bytes, int communicationType) {
+                messages.add(communicationType);
+                lastMessageAt = eventLoop.now();
+                if (communicationType == ConnectorEngine.CHARACTERISTIC_NOTIFICATION) {
+                    notifications.add(bytes);
+                } else if (communicationType == ConnectorEngine.REQUEST_READ_RESOLVE) {
+                    responses.add(bytes);
+                }
+            }
+
+            @Override
+            public void onOtaProgress(float progress) {
+                otaProgress.add(progress);
+            }
+
+            @Override
+            public void onOtaThroughput(float kilobytesPerSecond) {
+                otaThroughput = kilobytesPerSecond;
+            }
+        });
+        engine.setFirmwareCache(new FirmwareCache(cacheDirectory));
+        engine.setOtaEncodingExecutor(encodingExecutor);
+        link.attach(engine);
+        engine.onConnected();
+        eventLoop.runUntilIdle(eventLoop.now() + 1000);
+        Assert.assertEquals(parameters.maxMtu, engine.getMtu());
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        // Never looks like an OTA flag followed by 0x00
+        payload[0] = (byte) (1 + seed % 100);
+        return payload;
+    }
+
+    // Compresses about as well as real firmware: recurring instruction words, literals, padding
+    private static byte[] firmwareImage(int length, int seed) {
+        Random random = new Random(seed);
+        byte[][] words = new byte[256][4];
+        for (byte[] word : words) {
+            random.nextBytes(word);
+        }
+        byte[] image = new byte[length];
+        int code = length * 9 / 10;
+        for (int i = 0; i + 4 <= code; i += 4) {
+            if (random.nextInt(3) == 0) {
+                image[i] = (byte) random.nextInt();
+                image[i + 1] = (byte) random.nextInt();
+            } else {
+                System.arraycopy(words[(int) Math.abs(random.nextGaussian() * 40) % words.length], 0, image, i, 4);
+            }
+        }
+        Arrays.fill(image, code, length, (byte) 0xff);
+        image[0] = (byte) 0xe9;
+        return image;
+    }
+
+    // A minor release of the image: a few functions grew, a few constants changed
+    private static byte[] minorRelease(byte[] base, int seed) {
+        Random random = new Random(seed);
+        byte[] image = Arrays.copyOf(base, base.length);
+        for (int i = 0; i < 40; i++) {
+            int offset = random.nextInt(image.length - 4) & ~3;
+            image[offset] = (byte) random.nextInt();
+            image[offset + 1] = (byte) random.nextInt();
+        }
+        for (int i = 0; i < 3; i++) {
+            int offset = random.nextInt(image.length) & ~3;
+            byte[] added = new byte[64 + random.nextInt(256)];
+            random.nextBytes(added);
+            byte[] grown = new byte[image.length + added.length];
+            System.arraycopy(image, 0, grown, 0, offset);
+            System.arraycopy(added, 0, grown, offset, added.length);
+            System.arraycopy(image, offset, grown, offset + added.length, image.length - offset);
+            image = grown;
+        }
+        return image;
+    }
+
+    private int count(int communicationType) {
+        int count = 0;
+        for (int message : messages) {
+            if (message == communicationType) count++;
+        }
+        return count;
+    }
+
+    private long bytesPerSecond(long bytes, long startedAt) {
+        return bytes * 1000 / Math.max(1, lastMessageAt - startedAt);
+    }
+
+    @Test
+    public void deliver_reachesTheTerminalIntactAtFrameRoundTripRate() {
+        connect(new SimulatedLink.Parameters());
+        long startedAt = eventLoop.now();
+        for (int i = 0; i < 40; i++) {
+            engine.deliver(payload(1000, i));
+        }
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(40, count(ConnectorEngine.DELIVER_WROTE_RESOLVE));
+        for (int i = 0; i < 40; i++) {
+            Assert.assertArrayEquals(payload(1000, i), device.getTerminalPayloads().get(i));
+        }
+        long throughput = bytesPerSecond(40_000, startedAt);
+        Assert.assertTrue("deliver " + throughput + " B/s", throughput >= 5_000);
+    }
+
+    @Test
+    public void streamedDeliver_reachesTheTerminalIntact() {
+        connect(new SimulatedLink.Parameters());
+        byte[] payload = payload(20_000, 5);
+        engine.deliver(payload(100, 1));
+        engine.deliver(FirmwareSource.of(payload));
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(2, count(ConnectorEngine.DELIVER_WROTE_RESOLVE));
+        Assert.assertArrayEquals(payload(100, 1), device.getTerminalPayloads().get(0));
+        Assert.assertArrayEquals(payload, device.getTerminalPayloads().get(1));
+    }
+
+    @Test
+    public void transmit_isBoundByBandwidthNotRoundTrips() {
+        connect(new SimulatedLink.Parameters());
+        long startedAt = eventLoop.now();
+        for (int i = 0; i < 40; i++) {
+            engine.transmit(payload(1000, i), null);
+        }
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(40, count(ConnectorEngine.TRANSMIT_WROTE_RESOLVE));
+        Assert.assertEquals(40, device.getTerminalPayloads().size());
+        long throughput = bytesPerSecond(40_000, startedAt);
+        Assert.assertTrue("transmit " + throughput + " B/s", throughput >= 30_000);
+    }
+
+    @Test
+    public void requests_getTheirOwnResponses() {
+        connect(new SimulatedLink.Parameters());
+        device.setResponder(request -> Arrays.copyOf(request, 8));
+        engine.setMaxRequestsInFlight(4);
+        for (int i = 0; i < 20; i++) {
+            engine.request(payload(300, i), true, i);
+        }
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(20, responses.size());
+        for (int i = 0; i < 20; i++) {
+            byte[] response = responses.get(i);
+            Assert.assertArrayEquals(Arrays.copyOf(payload(300, i), 8), Arrays.copyOfRange(response, FrameFragmenter.HEADER_SIZE, response.length));
+        }
+        Assert.assertTrue("requests took " + lastMessageAt + " ms", lastMessageAt < 3_000);
+    }
+
+    @Test
+    public void clock_roundTrips() {
+        connect(new SimulatedLink.Parameters());
+        byte[] clock = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
+        engine.setClock(clock);
+        engine.getClock();
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertArrayEquals(clock, device.getClock());
+        Assert.assertEquals(1, count(ConnectorEngine.CLOCK_READ_RESOLVE));
+    }
+
+    @Test
+    public void fragmentedNotification_arrivesAsOneMessage() {
+        connect(new SimulatedLink.Parameters());
+        byte[] payload = payload(1500, 3);
+        link.notifyFromDevice(42, payload);
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(1, notifications.size());
+        Assert.assertArrayEquals(payload, notifications.get(0));
+    }
+
+    @Test
+    public void ota_writesTheWholeImage() {
+        connect(new SimulatedLink.Parameters());
+        device.setEraseMillisPerKilobyte(10);
+        byte[] firmware = payload(64 * 1024, 7);
+        long startedAt = eventLoop.now();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertTrue(device.isOtaComplete());
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        // Transfer plus the 640 ms erase, nothing waits on a fixed delay
+        Assert.assertTrue("ota took " + (lastMessageAt - startedAt) + " ms", lastMessageAt - startedAt < 11_000);
+        Assert.assertEquals(lastMessageAt - startedAt, engine.getLastOtaDurationMillis());
+        // At most one report per percent, the last one at 100%
+        Assert.assertTrue(otaProgress.size() + " progress events", otaProgress.size() <= 101);
+        Assert.assertEquals(100, otaProgress.get(otaProgress.size() - 1), 0.001);
+    }
+
+    @Test
+    public void ota_waitsForAnEraseLongerThanTheOldFixedDelay() {
+        connect(new SimulatedLink.Parameters());
+        device.setEraseMillisPerKilobyte(200);
+        byte[] firmware = payload(64 * 1024, 7);
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+    }
+
+    @Test
+    public void ota_reportsAnImageCorruptedOnTheDeviceAsAnIntegrityFailure() {
+        connect(new SimulatedLink.Parameters());
+        device.setOtaCorruptOffset(40_000);
+        engine.updateFirmware(payload(64 * 1024, 7));
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertFalse(device.isOtaComplete());
+        Assert.assertNotNull(device.getOtaEndDigest());
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_INTEGRITY_REJECT));
+        Assert.assertEquals(0, count(ConnectorEngine.UPDATE_FIRMWARE_REJECT));
+    }
+
+    @Test
+    public void compressedOta_inflatesToTheSameImageInLessTime() {
+        byte[] firmware = firmwareImage(128 * 1024, 11);
+        connect(new SimulatedLink.Parameters());
+        long startedAt = eventLoop.now();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+        long raw = lastMessageAt - startedAt;
+        long rawBytes = device.getReceivedBytes();
+        float rawThroughput = otaThroughput;
+
+        engine.setOtaCompressedTransfer(true);
+        otaProgress.clear();
+        startedAt = eventLoop.now();
+        long receivedBefore = device.getReceivedBytes();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+        long compressed = lastMessageAt - startedAt;
+
+        Assert.assertEquals(2, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertTrue(device.isOtaComplete());
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        Assert.assertTrue("raw " + raw + " ms, compressed " + compressed + " ms", compressed < raw * 7 / 10);
+        Assert.assertTrue("sent " + (device.getReceivedBytes() - receivedBefore) + " of " + rawBytes + " B", device.getReceivedBytes() - receivedBefore < rawBytes * 7 / 10);
+        // Progress and throughput count uncompressed bytes
+        Assert.assertEquals(100, otaProgress.get(otaProgress.size() - 1), 0.001);
+        Assert.assertTrue("raw " + rawThroughput + " KB/s, compressed " + otaThroughput + " KB/s", otaThroughput > rawThroughput * 1.3);
+    }
+
+    @Test
+    public void compressedOta_writesNothingUntilTheImageIsEncoded() {
+        List<Runnable> encodings = new ArrayList<>();
+        encodingExecutor = encodings::add;
+        byte[] firmware = firmwareImage(64 * 1024, 11);
+        connect(new SimulatedLink.Parameters());
+        engine.setOtaCompressedTransfer(true);
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+        Assert.assertEquals(0, device.getOtaResets());
+        Assert.assertEquals(1, encodings.size());
+
+        encodings.get(0).run();
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+    }
+
+    @Test
+    public void compressedOta_abortedWhileEncoding_ignoresTheEncodedImage() {
+        List<Runnable> encodings = new ArrayList<>();
+        encodingExecutor = encodings::add;
+        connect(new SimulatedLink.Parameters());
+        engine.setOtaCompressedTransfer(true);
+        engine.updateFirmware(firmwareImage(64 * 1024, 11));
+        link.disconnect();
+        eventLoop.runUntilIdle(eventLoop.now() + 1000);
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_REJECT));
+
+        encodings.get(0).run();
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(0, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertEquals(0, device.getOtaResets());
+    }
+
+    @Test
+    public void deltaOta_sendsAPatchAnOrderOfMagnitudeSmaller() {
+        byte[] installed = firmwareImage(256 * 1024, 13);
+        byte[] firmware = minorRelease(installed, 14);
+        connect(new SimulatedLink.Parameters());
+        device.setRunningImage(installed);
+        engine.updateFirmware(FirmwareSource.of(firmware), FirmwareSource.of(installed));
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        Assert.assertTrue("sent " + device.getReceivedBytes() + " B for " + firmware.length + " B", device.getReceivedBytes() < firmware.length / 10);
+        Assert.assertEquals(100, otaProgress.get(otaProgress.size() - 1), 0.001);
+    }
+
+    @Test
+    public void deltaOta_sendsTheFullImageWhenTheDeviceRunsAnotherBase() {
+        byte[] installed = firmwareImage(64 * 1024, 13);
+        byte[] firmware = minorRelease(installed, 14);
+        connect(new SimulatedLink.Parameters());
+        device.setRunningImage(minorRelease(installed, 15));
+        engine.updateFirmware(FirmwareSource.of(firmware), FirmwareSource.of(installed));
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        Assert.assertTrue(device.getReceivedBytes() > firmware.length);
+    }
+
+    @Test
+    public void windowedOta_streamsChunksAtLinkBandwidth() {
+        connect(new SimulatedLink.Parameters());
+        engine.setOtaWindowedTransfer(true, FrameSizing.OTA_PACKETS_PER_CHUNK, OtaUploader.DEFAULT_MAX_WINDOW);
+        byte[] firmware = payload(64 * 1024, 7);
+        long startedAt = eventLoop.now();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        // Acknowledged writes need about 10 s for the same image
+        Assert.assertTrue("ota took " + (lastMessageAt - startedAt) + " ms", lastMessageAt - startedAt < 3_000);
+        Assert.assertTrue("ota at " + otaThroughput + " KB/s", otaThroughput > 25);
+        Assert.assertEquals(OtaUploader.DEFAULT_MAX_WINDOW, engine.getOtaWindow());
+    }
+
+    @Test
+    public void windowedOta_shrinksTheWindowWhenTheDeviceDropsFrames() {
+        connect(new SimulatedLink.Parameters().streamLimit(11));
+        engine.setOtaWindowedTransfer(true, FrameSizing.OTA_PACKETS_PER_CHUNK, OtaUploader.DEFAULT_MAX_WINDOW);
+        byte[] firmware = payload(64 * 1024, 7);
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertTrue(link.getDroppedStreamedWrites() > 0);
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        // 11 frames without response and the acknowledged last one
+        Assert.assertEquals(12, engine.getOtaWindow());
+        Assert.assertTrue("dropped " + link.getDroppedStreamedWrites(), link.getDroppedStreamedWrites() <= 2 * 12);
+    }
+
+    // Drops the link once the update passed the given progress, reconnects a second later
+    private void dropLinkDuringOta(float atProgress) {
+        int checkedProgress = otaProgress.size();
+        while (eventLoop.hasPendingTasks()) {
+            eventLoop.advance(10);
+            if (otaProgress.size() > checkedProgress && otaProgress.get(otaProgress.size() - 1) >= atProgress) {
+                link.disconnect();
+                eventLoop.runUntilIdle(eventLoop.now() + 1000);
+                link.reconnect();
+                eventLoop.runUntilIdle(eventLoop.now() + 1000);
+                return;
+            }
+        }
+        Assert.fail("update finished before " + atProgress + "%");
+    }
+
+    @Test
+    public void interruptedOta_resumesFromTheLastAcknowledgedOffset() {
+        connect(new SimulatedLink.Parameters());
+        byte[] firmware = payload(256 * 1024, 9);
+        engine.updateFirmware(firmware);
+        dropLinkDuringOta(80);
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_REJECT));
+
+        long receivedBeforeRetry = device.getReceivedBytes();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        Assert.assertEquals(1, device.getOtaResets());
+        Assert.assertTrue(engine.getLastOtaResumedFrom() >= firmware.length * 8 / 10);
+        Assert.assertTrue("resent " + (device.getReceivedBytes() - receivedBeforeRetry), device.getReceivedBytes() - receivedBeforeRetry < firmware.length * 3 / 10);
+    }
+
+    @Test
+    public void interruptedOta_comparesTheImagesOffTheLoopBeforeResuming() {
+        List<Runnable> hashings = new ArrayList<>();
+        encodingExecutor = hashings::add;
+        connect(new SimulatedLink.Parameters());
+        byte[] firmware = payload(128 * 1024, 9);
+        engine.updateFirmware(firmware);
+        dropLinkDuringOta(50);
+        Assert.assertTrue(hashings.isEmpty());
+
+        long receivedBeforeRetry = device.getReceivedBytes();
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+        Assert.assertEquals(receivedBeforeRetry, device.getReceivedBytes());
+        Assert.assertEquals(1, hashings.size());
+
+        hashings.get(0).run();
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertTrue(engine.getLastOtaResumedFrom() > 0);
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+    }
+
+    @Test
+    public void interruptedCompressedOta_resumesWithinTheCompressedStream() {
+        connect(new SimulatedLink.Parameters());
+        engine.setOtaCompressedTransfer(true);
+        byte[] firmware = firmwareImage(256 * 1024, 12);
+        engine.updateFirmware(firmware);
+        dropLinkDuringOta(60);
+
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertTrue(engine.getLastOtaResumedFrom() > 0);
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+    }
+
+    @Test
+    public void interruptedOta_startsOverWhenTheDeviceLostTheImage() {
+        connect(new SimulatedLink.Parameters());
+        byte[] firmware = payload(64 * 1024, 9);
+        engine.updateFirmware(firmware);
+        dropLinkDuringOta(50);
+        device.reboot();
+
+        engine.updateFirmware(firmware);
+        eventLoop.runUntilIdle(eventLoop.now() + TIME_LIMIT);
+
+        Assert.assertEquals(1, count(ConnectorEngine.UPDATE_FIRMWARE_RESOLVE));
+        Assert.assertArrayEquals(firmware, device.getOtaImage());
+        Assert.assertEquals(2, device.getOtaResets());
+        Assert.assertEquals(-1, engine.getLastOtaResumedFrom());
+    }
+
+    @Test
+    public void lossyLink_stillDeliversEverythingInOrder() {
+        connect(new SimulatedLink.Parameters().loss(0.1, 42));
+        for (int i = 0; i < 10; i++) {
+            engine.deliver(payload(1000, i));
+        }
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertTrue(link.getRetransmissions() > 0);
+        Assert.assertEquals(10, count(ConnectorEngine.DELIVER_WROTE_RESOLVE));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertArrayEquals(payload(1000, i), device.getTerminalPayloads().get(i));
+        }
+    }
+
+    @Test
+    public void smallMtu_stillFramesCorrectly() {
+        connect(new SimulatedLink.Parameters().mtu(FrameSizing.DEFAULT_MTU));
+        engine.deliver(payload(500, 1));
+        eventLoop.runUntilIdle(TIME_LIMIT);
+
+        Assert.assertEquals(0, device.getRejectedWrites());
+        Assert.assertArrayEquals(payload(500, 1), device.getTerminalPayloads().get(0));
+    }
+}
@@ -0,0 +1,118 @@
+package com.spectoda.connector;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+import com.spectoda.connector.protocol.EventLoop;
+import com.spectoda.connector.protocol.FleetOtaOrchestrator;
+
+/**
+ * Updates each device of a {@link FleetOtaOrchestrator} rollout over a connection of its own,
+ * the connection is closed once the update finished.
+ */
+public class BluetoothDeviceUpdater implements FleetOtaOrchestrator.DeviceUpdater {
+    private static final String TAG = BluetoothDeviceUpdater.class.getName();
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15_000;
+
+    private final Context context;
+    private final EventLoop eventLoop;
+    private final FirmwareCache firmwareCache;
+    private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /**
+     * @param eventLoop     Loop of the orchestrator, the outcomes are reported on it.
+     * @param firmwareCache Shared by the connections, the image is encoded for the first device only.
+     */
+    public BluetoothDeviceUpdater(Context context, EventLoop eventLoop, FirmwareCache firmwareCache) {
+        this.context = context;
+        this.eventLoop = eventLoop;
+        this.firmwareCache = firmwareCache;
+    }
+
+    public void setConnectTimeout(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public void update(String address, FirmwareSource firmware, FleetOtaOrchestrator.UpdateCallback callback) {
+        new DeviceUpdate(address, firmware, callback).start();
+    }
+
+    // One connection, its callbacks come from the GATT and the connector threads
+    private final class DeviceUpdate {
+        private final String address;
+        private final FirmwareSource firmware;
+        private final FleetOtaOrchestrator.UpdateCallback callback;
+        private final SpectodaBluetoothServices connector;
+        // Only touched on the event loop
+        private boolean updating;
+        private boolean finished;
+
+        private final Runnable connectTimeoutTask = () -> {
+            if (!updating) {
+                Log.w(TAG, "update: " + DeviceUpdate.this.address + " did not connect");
+                finish(false);
+            }
+        };
+
+        DeviceUpdate(String address, FirmwareSource firmware, FleetOtaOrchestrator.UpdateCallback callback) {
+            this.address = address;
+            this.firmware = firmware;
+            this.callback = callback;
+            this.connector = new SpectodaBluetoothServices(address, context);
+            connector.setFirmwareCache(firmwareCache);
+        }
+
+        void start() {
+            connector.setChangeStateListener(connectionState -> eventLoop.post(() -> onChangeState(connectionState)));
+            connector.setOTAUpdateProgressListener(progress -> eventLoop.post(() -> {
+                if (!finished) {
+                    callback.onProgress(progress);
+                }
+            }));
+            connector.setCharacteristicCommunicationListener((bytes, communicationType) -> {
+                if (communicationType == SpectodaBluetoothServices.UPDATE_FIRMWARE_RESOLVE) {
+                    eventLoop.post(() -> finish(true));
+                } else if (communicationType == SpectodaBluetoothServices.UPDATE_FIRMWARE_REJECT
+                        || communicationType == SpectodaBluetoothServices.UPDATE_FIRMWARE_INTEGRITY_REJECT) {
+                    eventLoop.post(() -> finish(false));
+                }
+            });
+
+            Log.d(TAG, "update: connecting to " + address);
+            if (!connector.connect()) {
+                eventLoop.post(() -> finish(false));
+                return;
+            }
+            eventLoop.postDelayed(connectTimeoutTask, connectTimeoutMillis);
+        }
+
+        private void onChangeState(int connectionState) {
+            if (finished) {
+                return;
+            }
+            if (connectionState == SpectodaBluetoothServices.STATE_CONNECTED && !updating) {
+                updating = true;
+                eventLoop.cancel(connectTimeoutTask);
+                connector.updateFirmware(firmware);
+            } else if (connectionState == SpectodaBluetoothServices.STATE_DISCONNECTED && updating) {
+                Log.w(TAG, "update: " + address + " disconnected");
+                finish(false);
+            }
+        }
+
+        private void finish(boolean success) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            eventLoop.cancel(connectTimeoutTask);
+            Log.d(TAG, "update: " + address + (success ? " updated" : " failed"));
+            connector.close();
+            callback.onFinished(success);
+        }
+    }
+}
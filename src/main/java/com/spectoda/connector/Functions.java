@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.content.pm.ActivityInfo;
 
 import com.spectoda.connector.activities.ActivityControl;
+import com.spectoda.connector.codec.ByteEncoders;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -21,21 +22,11 @@ public class Functions {
     }
 
     public static byte[] integerToBytes(int value, int byteCount) {
-        byte[] result = new byte[byteCount];
-        for (int i = 0; i < byteCount; i++) {
-            result[i] = (byte) (value & 0xFF);
-            value >>= Byte.SIZE;
-        }
-        return result;
+        return ByteEncoders.integerToBytes(value, byteCount);
     }
 
     public static byte[] longToBytes(long value, int byteCount) {
-        byte[] result = new byte[byteCount];
-        for (int i = 0; i < byteCount; i++) {
-            result[i] = (byte) (value & 0xFF);
-            value >>= Byte.SIZE;
-        }
-        return result;
+        return ByteEncoders.longToBytes(value, byteCount);
     }
 
     public static byte[] doubleToBytes(long value, int byteCount) {
@@ -48,33 +39,15 @@ public class Functions {
     }
 
     public static byte[] labelToBytes(String label) {
-        byte[] result = new byte[5];
-        if (label.length() > 5) {
-            for (int i = 0; i < 5; i++) {
-                result[i] = (byte) label.charAt(i);
-            }
-        } else {
-            for (int i = 0; i < label.length(); i++) {
-                result[i] = (byte) label.charAt(i);
-            }
-        }
-        return result;
+        return ByteEncoders.labelToBytes(label);
     }
 
     public static byte[] colorToBytes(String color_hex_code) {
-        if (!color_hex_code.matches("#([0-9a-f][0-9a-f])([0-9a-f][0-9a-f])([0-9a-f][0-9a-f])")) {
-            return new byte[]{0, 0, 0};
-        }
-        color_hex_code = color_hex_code.substring(1);
-        byte r = (byte) (Integer.decode("#" + color_hex_code.substring(0, 2)) & 0xFF);
-        byte g = (byte) (Integer.decode("#" + color_hex_code.substring(2, 4)) & 0xFF);
-        byte b = (byte) (Integer.decode("#" + color_hex_code.substring(4, 6)) & 0xFF);
-        return new byte[]{r, g, b};
+        return ByteEncoders.colorToBytes(color_hex_code);
     }
 
     public static byte[] percentageToBytes(float percentage) {
-        int value = (int) mapValue(percentage, -100.0F, 100.0F, -2147483647F, 2147483647F);
-        return integerToBytes(value,4);
+        return ByteEncoders.percentageToBytes(percentage);
     }
 
     public static ArrayList<Integer> logBytes(byte[] data) {
@@ -87,36 +60,28 @@ public class Functions {
         return bytes;
     }
 
+    /**
+     * @return The unsigned values as {@link #logBytes(byte[])} prints them, e.g. [0, 128, 255],
+     * without boxing them.
+     */
+    public static String formatBytes(byte[] data) {
+        StringBuilder bytes = new StringBuilder(data.length * 5 + 2);
+        bytes.append('[');
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                bytes.append(", ");
+            }
+            bytes.append(data[i] & 0xFF);
+        }
+        return bytes.append(']').toString();
+    }
+
     public static int getClockTimestamp() {
         return (int) (new Date().getTime() % Long.decode("0x7fffffff"));
     }
 
     public static float mapValue(float x,float in_min,float in_max,float out_min,float  out_max) {
-        if (in_min == in_max) {
-            return out_min / 2 + out_max / 2;
-        }
-
-        float minimum = Math.min(in_min, in_max);
-        float maximum = Math.max(in_min, in_max);
-
-        if (x < minimum) {
-            x = minimum;
-        } else if (x > maximum) {
-            x = maximum;
-        }
-
-        float result = ((x - in_min) * (out_max - out_min)) / (in_max - in_min) + out_min;
-
-        minimum = Math.min(out_min, out_max);
-        maximum = Math.max(out_min, out_max);
-
-        if (result < minimum){
-            result = minimum;
-        } else if (result > maximum){
-            result = maximum;
-        }
-
-        return result;
+        return ByteEncoders.mapValue(x, in_min, in_max, out_min, out_max);
     }    public static void startAndroidConnector(Context context, String defaultWebUrl){
         Intent intent = new Intent(context, ActivityControl.class);
         intent.putExtra("defaultWebUrl", defaultWebUrl);
@@ -0,0 +1,34 @@
+package com.spectoda.connector;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.spectoda.connector.protocol.EventLoop;
+
+public class HandlerEventLoop implements EventLoop {
+    private final Handler handler;
+
+    public HandlerEventLoop(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
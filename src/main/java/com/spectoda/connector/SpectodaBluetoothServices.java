@@ -6,72 +6,87 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+import com.spectoda.connector.protocol.ConnectorEngine;
+import com.spectoda.connector.protocol.EventLoop;
+import com.spectoda.connector.protocol.GattOperation;
+import com.spectoda.connector.protocol.GattTransport;
+import com.spectoda.connector.protocol.LinkGovernor;
+
+import java.io.File;
+import java.util.List;
 import java.util.UUID;
 
+/**
+ * Android binding of {@link ConnectorEngine}: issues its operations on a {@link BluetoothGatt}
+ * and feeds the GATT callbacks back to it on the asyncWriteThread.
+ */
 public class SpectodaBluetoothServices extends Service {
     private final String TAG = SpectodaBluetoothServices.class.getName();
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTED = 1;
 
-    public static final int COMMUNICATION_TYPE_DELIVER = 0;
-    public static final int COMMUNICATION_TYPE_TRANSMIT = 1;
-    public static final int COMMUNICATION_TYPE_REQUEST = 2;
-    public static final int COMMUNICATION_TYPE_CLOCK = 3;
-    public static final int COMMUNICATION_TYPE_UPDATE_FIRMWARE = 4;
+    public static final int COMMUNICATION_TYPE_DELIVER = ConnectorEngine.COMMUNICATION_TYPE_DELIVER;
+    public static final int COMMUNICATION_TYPE_TRANSMIT = ConnectorEngine.COMMUNICATION_TYPE_TRANSMIT;
+    public static final int COMMUNICATION_TYPE_REQUEST = ConnectorEngine.COMMUNICATION_TYPE_REQUEST;
+    public static final int COMMUNICATION_TYPE_CLOCK = ConnectorEngine.COMMUNICATION_TYPE_CLOCK;
+    public static final int COMMUNICATION_TYPE_UPDATE_FIRMWARE = ConnectorEngine.COMMUNICATION_TYPE_UPDATE_FIRMWARE;
 
     //=====// CHARACTERISTIC_COMMUNICATION_CONSTANTS //=====//
-    public static final int CLOCK_READ_RESOLVE = 0;
-    public static final int CLOCK_READ_REJECT = 1;
-    public static final int CLOCK_WROTE_RESOLVE = 2;
-    public static final int CLOCK_WROTE_REJECT = 3;
+    public static final int CLOCK_READ_RESOLVE = ConnectorEngine.CLOCK_READ_RESOLVE;
+    public static final int CLOCK_READ_REJECT = ConnectorEngine.CLOCK_READ_REJECT;
+    public static final int CLOCK_WROTE_RESOLVE = ConnectorEngine.CLOCK_WROTE_RESOLVE;
+    public static final int CLOCK_WROTE_REJECT = ConnectorEngine.CLOCK_WROTE_REJECT;
 
-    public static final int REQUEST_READ_RESOLVE = 4;
-    public static final int REQUEST_READ_REJECT = 5;
-    public static final int REQUEST_WROTE_RESOLVE = 6;
-    public static final int REQUEST_WROTE_REJECT = 7;
+    public static final int REQUEST_READ_RESOLVE = ConnectorEngine.REQUEST_READ_RESOLVE;
+    public static final int REQUEST_READ_REJECT = ConnectorEngine.REQUEST_READ_REJECT;
+    public static final int REQUEST_WROTE_RESOLVE = ConnectorEngine.REQUEST_WROTE_RESOLVE;
+    public static final int REQUEST_WROTE_REJECT = ConnectorEngine.REQUEST_WROTE_REJECT;
 
-    public static final int DELIVER_WROTE_RESOLVE = 8;
-    public static final int DELIVER_WROTE_REJECT = 9;
+    public static final int DELIVER_WROTE_RESOLVE = ConnectorEngine.DELIVER_WROTE_RESOLVE;
+    public static final int DELIVER_WROTE_REJECT = ConnectorEngine.DELIVER_WROTE_REJECT;
 
-    public static final int TRANSMIT_WROTE_RESOLVE = 10;
-    public static final int TRANSMIT_WROTE_REJECT = 11;
+    public static final int TRANSMIT_WROTE_RESOLVE = ConnectorEngine.TRANSMIT_WROTE_RESOLVE;
+    public static final int TRANSMIT_WROTE_REJECT = ConnectorEngine.TRANSMIT_WROTE_REJECT;
 
-    public static final int UPDATE_FIRMWARE_RESOLVE = 12;
-    public static final int UPDATE_FIRMWARE_REJECT = 13;
+    public static final int UPDATE_FIRMWARE_RESOLVE = ConnectorEngine.UPDATE_FIRMWARE_RESOLVE;
+    public static final int UPDATE_FIRMWARE_REJECT = ConnectorEngine.UPDATE_FIRMWARE_REJECT;
+    public static final int UPDATE_FIRMWARE_INTEGRITY_REJECT = ConnectorEngine.UPDATE_FIRMWARE_INTEGRITY_REJECT;
 
-    public static final int CHARACTERISTIC_NOTIFICATION = 14;
+    public static final int CHARACTERISTIC_NOTIFICATION = ConnectorEngine.CHARACTERISTIC_NOTIFICATION;
 
+    public static final int NO_REQUEST_ID = ConnectorEngine.NO_REQUEST_ID;
 
-    private final String deviceMacAddress;
-    private final asyncWriteThread mAsyncWriteReadThread;
 
-    private volatile boolean isDataSent = true;
-    private boolean requested = false;
-    private boolean otaUpdateFailed = false;
-    private boolean otaUpdateEnd = false;
-    private int communicationType;
-    private int writtenUpdate;
-    private float updateProgress;
+    // Logging every frame formats a copy of it, keep it off outside of debugging
+    private static final boolean LOG_FRAMES = false;
+
+    private final String deviceMacAddress;
+    private final HandlerThread mAsyncWriteReadThread;
+    private final Handler mHandler;
+    private final EventLoop eventLoop;
+    private final ConnectorEngine engine;
 
-    public static final UUID TANGLE_SERVICE_UUID = UUID.fromString("cc540e31-80be-44af-b64a-5d2def886bf5");
-    private final UUID TERMINAL_CHAR_UUID = UUID.fromString("33a0937e-0c61-41ea-b770-007ade2c79fa");
-    private final UUID CLOCK_CHAR_UUID = UUID.fromString("7a1e0e3a-6b9b-49ef-b9b7-65c81b714a19");
-    private final UUID DEVICE_CHAR_UUID = UUID.fromString("9ebe2e4b-10c7-4a81-ac83-49540d1135a5");
+    public static final UUID TANGLE_SERVICE_UUID = ConnectorEngine.SERVICE_UUID;
+    private final UUID TERMINAL_CHAR_UUID = ConnectorEngine.TERMINAL_CHAR_UUID;
+    private final UUID CLOCK_CHAR_UUID = ConnectorEngine.CLOCK_CHAR_UUID;
+    private final UUID DEVICE_CHAR_UUID = ConnectorEngine.DEVICE_CHAR_UUID;
 
     private BluetoothGatt mBluetoothGatt;
+    private volatile CharacteristicHandles characteristicHandles;
     private int connectionState = STATE_DISCONNECTED;
     private ChangeStateListener changeStateListener;
     private OTAUpdateProgressListener otaUpdateProgressListener;
@@ -82,8 +97,12 @@ public class SpectodaBluetoothServices extends Service {
         this.deviceMacAddress = deviceMacAddress;
         this.mContext = context;
 
-        mAsyncWriteReadThread = new asyncWriteThread();
+        mAsyncWriteReadThread = new HandlerThread("asyncWriteThread");
         mAsyncWriteReadThread.start();
+        mHandler = new Handler(mAsyncWriteReadThread.getLooper());
+        eventLoop = new HandlerEventLoop(mHandler);
+        engine = new ConnectorEngine(eventLoop, gattTransport, engineListener);
+        engine.setFirmwareCache(new FirmwareCache(new File(context.getCacheDir(), "firmware")));
     }
 
     // --- CONNECTION STATE LISTENER --- //
@@ -105,6 +124,199 @@ public class SpectodaBluetoothServices extends Service {
         return connectionState;
     }
 
+    // --- FRAME SIZING --- //
+
+    /**
+     * @return ATT MTU negotiated for the current connection.
+     */
+    public int getMtu() {
+        return engine.getMtu();
+    }
+
+    /**
+     * Caps the size of a single GATT write regardless of the negotiated MTU.
+     *
+     * @param maxPacketSize Largest frame in bytes including the 12 byte header, at most 512.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        engine.setMaxPacketSize(maxPacketSize);
+    }
+
+    /**
+     * @return Number of payload bytes carried by one GATT write on the current connection.
+     */
+    public int getPayloadPerPacket() {
+        return engine.getPayloadPerPacket();
+    }
+
+
+    // --- SCHEDULING --- //
+
+    /**
+     * Sets how many frames a lane may send per scheduling round while other lanes have work.
+     * Defaults are transmit 8, deliver 4, request 4, clock 4 and OTA 1.
+     *
+     * @param lane One of the {@link GattOperation} LANE_ constants.
+     */
+    public void setLaneWeight(int lane, int weight) {
+        eventLoop.post(() -> engine.setLaneWeight(lane, weight));
+    }
+
+    // --- DELIVER BATCHING --- //
+
+    /**
+     * Opt-in packing of consecutive deliver() payloads into one framed write. Every deliver()
+     * is still resolved or rejected on its own. Only usable when the device parses the terminal
+     * payload as a stream of self-delimiting commands.
+     *
+     * @param windowMillis  How long the first payload of a batch waits for others, 0 turns batching off.
+     * @param maxBatchBytes Largest batch in bytes, 0 to fill exactly one frame of the current MTU.
+     */
+    public void setDeliverBatching(long windowMillis, int maxBatchBytes) {
+        eventLoop.post(() -> engine.setDeliverBatching(windowMillis, maxBatchBytes));
+    }
+
+    /**
+     * Tunes when the link governor switches between connection priorities and PHYs.
+     *
+     * @param highQueueDepth      Waiting operations that switch to high priority and the 2M PHY.
+     * @param balancedAfterMillis Idle time after which high priority steps down to balanced.
+     * @param lowPowerAfterMillis Further idle time after which balanced steps down to low power.
+     */
+    public void setLinkGovernorThresholds(int highQueueDepth, long balancedAfterMillis, long lowPowerAfterMillis) {
+        eventLoop.post(() -> engine.setLinkGovernorThresholds(highQueueDepth, balancedAfterMillis, lowPowerAfterMillis));
+    }
+
+    /**
+     * @return The most recent link mode switches, oldest first.
+     */
+    public List<LinkGovernor.Transition> getLinkTransitions() {
+        return engine.getLinkTransitions();
+    }
+
+    /**
+     * @param mode One of the LinkGovernor.MODE_ constants.
+     * @return Bytes written per second while the link was in the mode.
+     */
+    public long getLinkThroughput(int mode) {
+        return engine.getLinkThroughput(mode);
+    }
+
+    /**
+     * Limits the memory held by notifications that are still being reassembled.
+     *
+     * @param memoryCap     Bytes of all incomplete notifications together, also the largest notification accepted.
+     * @param timeoutMillis How long an incomplete notification waits for its next fragment before it is dropped.
+     */
+    public void setNotificationReassemblyLimits(int memoryCap, long timeoutMillis) {
+        eventLoop.post(() -> engine.setNotificationReassemblyLimits(memoryCap, timeoutMillis));
+    }
+
+    /**
+     * For firmware that frames every notification: one that is no valid frame is rejected
+     * instead of being passed to the listener unchanged, as it is by default.
+     */
+    public void setStrictNotificationFraming(boolean strictFraming) {
+        eventLoop.post(() -> engine.setStrictNotificationFraming(strictFraming));
+    }
+
+    /**
+     * @return Fragmented notifications dropped incomplete so far.
+     */
+    public long getDroppedNotificationCount() {
+        return engine.getDroppedNotificationCount();
+    }
+
+    /**
+     * @return Notification frames rejected for a bad header or a message over the memory cap, with strict framing.
+     */
+    public long getRejectedNotificationFrameCount() {
+        return engine.getRejectedNotificationFrameCount();
+    }
+
+    /**
+     * @return Notifications passed through unchanged as they are no valid frame.
+     */
+    public long getUnframedNotificationCount() {
+        return engine.getUnframedNotificationCount();
+    }
+
+    /**
+     * @return Frames saved by deliver batching so far.
+     */
+    public long getDeliverFramesSaved() {
+        return engine.getDeliverFramesSaved();
+    }
+
+    /**
+     * @return Average time a batched deliver() payload waited for its batch to be written.
+     */
+    public long getDeliverAverageQueueWaitMillis() {
+        return engine.getDeliverAverageQueueWaitMillis();
+    }
+
+    public long getDeliverMaxQueueWaitMillis() {
+        return engine.getDeliverMaxQueueWaitMillis();
+    }
+
+    /**
+     * @return OTA progress events held back by the progress limits so far.
+     */
+    public long getSuppressedOtaProgressCount() {
+        return engine.getSuppressedOtaProgressCount();
+    }
+
+    // --- OTA UPDATE --- //
+
+    /**
+     * Streams OTA chunks: only the last frame of a chunk waits for a response, and the number of
+     * frames per chunk adapts to the measured goodput and to failures.
+     *
+     * @param initialWindow Frames per chunk to start with.
+     * @param maxWindow     Largest number of frames per chunk.
+     */
+    public void setOtaWindowedTransfer(boolean windowed, int initialWindow, int maxWindow) {
+        eventLoop.post(() -> engine.setOtaWindowedTransfer(windowed, initialWindow, maxWindow));
+    }
+
+    /**
+     * Sends the firmware deflated, for devices whose firmware inflates it. Progress is still
+     * reported in uncompressed bytes.
+     */
+    public void setOtaCompressedTransfer(boolean compressed) {
+        eventLoop.post(() -> engine.setOtaCompressedTransfer(compressed));
+    }
+
+    /**
+     * Cache the compressed and patched firmware is encoded into, shared by the connections of a
+     * rollout so each image is encoded once. Defaults to one in the app's cache directory.
+     */
+    public void setFirmwareCache(FirmwareCache firmwareCache) {
+        eventLoop.post(() -> engine.setFirmwareCache(firmwareCache));
+    }
+
+    /**
+     * Limits how often OTA progress is reported, each report costs the page a JavaScript call on
+     * the UI thread. The first report and 100% are always sent.
+     *
+     * @param maxEventsPerSecond Defaults to 10, 0 for no limit.
+     * @param minStepPercent     Least progress between two reports, defaults to 1%, 0 for no limit.
+     */
+    public void setOtaProgressLimits(int maxEventsPerSecond, float minStepPercent) {
+        eventLoop.post(() -> engine.setOtaProgressLimits(maxEventsPerSecond, minStepPercent));
+    }
+
+    /**
+     * Longest wait for the device to acknowledge an OTA write before the update fails.
+     *
+     * @param beginTimeoutMillis Covers erasing the flash, which the device does before it answers BEGIN.
+     * @param writeTimeoutMillis Per firmware chunk.
+     * @param endTimeoutMillis   Covers verifying the image, which the device does before it answers END.
+     */
+    public void setOtaTimeouts(long resetTimeoutMillis, long beginTimeoutMillis, long writeTimeoutMillis, long endTimeoutMillis) {
+        eventLoop.post(() -> engine.setOtaTimeouts(resetTimeoutMillis, beginTimeoutMillis, writeTimeoutMillis, endTimeoutMillis));
+    }
+
     // --- OTA UPDATE LISTENER --- //
 
     public void setOTAUpdateProgressListener(OTAUpdateProgressListener listener) {
@@ -113,6 +325,12 @@ public class SpectodaBluetoothServices extends Service {
 
     public interface OTAUpdateProgressListener {
         void onOTAUpdateProgressChange(float updateProgress);
+
+        /**
+         * @param kilobytesPerSecond Effective firmware upload rate so far.
+         */
+        default void onOTAUpdateThroughputChange(float kilobytesPerSecond) {
+        }
     }
 
     // --- CHARACTERISTIC COMMUNICATION LISTENER --- //
@@ -123,8 +341,155 @@ public class SpectodaBluetoothServices extends Service {
 
     public interface CharacteristicCommunicationListener {
         void onCharacteristicCommunicationMassage(byte[] readBytes, int communicationType);
+
+        /**
+         * Outcome of a request made with an id, one of the REQUEST_ constants.
+         */
+        default void onRequestCommunicationMessage(int requestId, byte[] readBytes, int communicationType) {
+            onCharacteristicCommunicationMassage(readBytes, communicationType);
+        }
     }
 
+    // Forwards what the engine reports to the listeners set on the service
+    private final ConnectorEngine.Listener engineListener = new ConnectorEngine.Listener() {
+        @Override
+        public void onMessage(byte[] bytes, int communicationType) {
+            if (characteristicCommunicationListener != null)
+                characteristicCommunicationListener.onCharacteristicCommunicationMassage(bytes, communicationType);
+        }
+
+        @Override
+        public void onRequestMessage(int requestId, byte[] bytes, int communicationType) {
+            if (characteristicCommunicationListener != null)
+                characteristicCommunicationListener.onRequestCommunicationMessage(requestId, bytes, communicationType);
+        }
+
+        @Override
+        public void onOtaProgress(float progress) {
+            Log.d(TAG, "writeFirmware: " + progress + "%");
+            if (otaUpdateProgressListener != null)
+                otaUpdateProgressListener.onOTAUpdateProgressChange(progress);
+        }
+
+        @Override
+        public void onOtaThroughput(float kilobytesPerSecond) {
+            if (otaUpdateProgressListener != null)
+                otaUpdateProgressListener.onOTAUpdateThroughputChange(kilobytesPerSecond);
+        }
+    };
+
+    // Characteristics of the current connection, resolved once per service discovery
+    private final class CharacteristicHandles {
+        final BluetoothGattCharacteristic terminal;
+        final BluetoothGattCharacteristic clock;
+        final BluetoothGattCharacteristic device;
+
+        CharacteristicHandles(BluetoothGattService service) {
+            terminal = service.getCharacteristic(TERMINAL_CHAR_UUID);
+            clock = service.getCharacteristic(CLOCK_CHAR_UUID);
+            device = service.getCharacteristic(DEVICE_CHAR_UUID);
+        }
+
+        // Operations carry the UUID constants of the engine, so identity is enough
+        BluetoothGattCharacteristic get(UUID characteristicUUID) {
+            if (characteristicUUID == TERMINAL_CHAR_UUID) return terminal;
+            if (characteristicUUID == CLOCK_CHAR_UUID) return clock;
+            if (characteristicUUID == DEVICE_CHAR_UUID) return device;
+            return null;
+        }
+
+        UUID uuidOf(BluetoothGattCharacteristic characteristic) {
+            if (characteristic == terminal) return TERMINAL_CHAR_UUID;
+            if (characteristic == clock) return CLOCK_CHAR_UUID;
+            if (characteristic == device) return DEVICE_CHAR_UUID;
+            return null;
+        }
+    }
+
+    // Issues the operations of the engine, called on mAsyncWriteReadThread only
+    private final GattTransport gattTransport = new GattTransport() {
+        @Override
+        public boolean writeCharacteristic(UUID characteristicUUID, byte[] value, int writeType) {
+            if (LOG_FRAMES) Log.d(TAG, "writeCharacteristic: Tray write: " + Functions.formatBytes(value));
+            BluetoothGattCharacteristic characteristic = characteristic(characteristicUUID);
+            if (characteristic == null) {
+                Log.w(TAG, "writeCharacteristic: no characteristic " + characteristicUUID + " until the services are discovered");
+                return false;
+            }
+            try {
+                characteristic.setWriteType(writeType);
+                characteristic.setValue(value);
+                return mBluetoothGatt.writeCharacteristic(characteristic);
+            } catch (Exception e) {
+                Log.e(TAG, "writeCharacteristic: Value was not wrote: " + e);
+                return false;
+            }
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID characteristicUUID) {
+            Log.d(TAG, "readCharacteristic: characteristic: " + characteristicUUID);
+            BluetoothGattCharacteristic characteristic = characteristic(characteristicUUID);
+            if (characteristic == null) {
+                Log.w(TAG, "readCharacteristic: no characteristic " + characteristicUUID + " until the services are discovered");
+                return false;
+            }
+            try {
+                return mBluetoothGatt.readCharacteristic(characteristic);
+            } catch (Exception e) {
+                Log.e(TAG, "readCharacteristic: Value was not read: " + e);
+                return false;
+            }
+        }
+
+        // Null while the services are not discovered
+        private BluetoothGattCharacteristic characteristic(UUID characteristicUUID) {
+            final CharacteristicHandles handles = characteristicHandles;
+            return handles != null ? handles.get(characteristicUUID) : null;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            try {
+                return mBluetoothGatt.requestMtu(mtu);
+            } catch (Exception e) {
+                Log.e(TAG, "requestMtu: failed with: " + e);
+                return false;
+            }
+        }
+
+        @Override
+        public void setConnectionPriority(int mode) {
+            final BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null) {
+                return;
+            }
+            int priority;
+            switch (mode) {
+                case LinkGovernor.MODE_HIGH:
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                    break;
+                case LinkGovernor.MODE_LOW_POWER:
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                    break;
+                default:
+                    priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                    break;
+            }
+            Log.d(TAG, "setConnectionPriority: " + priority + ": " + gatt.requestConnectionPriority(priority));
+        }
+
+        @Override
+        public void setFastPhy(boolean fast) {
+            final BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                return;
+            }
+            int phy = fast ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+            gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+    };
+
     // Various callback methods defined by the BLE API.
     private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
         @Override
@@ -140,6 +505,8 @@ public class SpectodaBluetoothServices extends Service {
                     Log.d(TAG, "onConnectionStateChange: Disconnected from GATT server.");
                     mBluetoothGatt.close();
                     mBluetoothGatt = null;
+                    characteristicHandles = null;
+                    eventLoop.post(engine::onDisconnected);
                     break;
             }
         }
@@ -148,10 +515,10 @@ public class SpectodaBluetoothServices extends Service {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                gatt.setCharacteristicNotification(gatt.getService(TANGLE_SERVICE_UUID).getCharacteristic(TERMINAL_CHAR_UUID), true);
-                gatt.requestMtu(517);
+                characteristicHandles = new CharacteristicHandles(gatt.getService(TANGLE_SERVICE_UUID));
+                gatt.setCharacteristicNotification(characteristicHandles.terminal, true);
+                mHandler.postAtFrontOfQueue(engine::onConnected);
 
-                isDataSent = false;
                 setConnectionState(STATE_CONNECTED);
 
             } else {
@@ -159,108 +526,59 @@ public class SpectodaBluetoothServices extends Service {
             }
         }
 
+        @Override
+        public void onServiceChanged(BluetoothGatt gatt) {
+            super.onServiceChanged(gatt);
+            Log.d(TAG, "onServiceChanged: rediscovering services");
+            characteristicHandles = null;
+            eventLoop.post(engine::onServiceChanged);
+            gatt.discoverServices();
+        }
+
         // Result of a characteristic read operation
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            synchronized (mAsyncWriteReadThread) {
-                isDataSent = true;
-                requested = false;
-//                Log.d(TAG, "onCharacteristicRead: mAsyncWriteReadThread: notify");
-                mAsyncWriteReadThread.notify();
-            }
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (characteristic.getUuid().toString().equals(CLOCK_CHAR_UUID.toString())) {
-                    characteristicCommunicationListener.onCharacteristicCommunicationMassage(characteristic.getValue(), CLOCK_READ_RESOLVE);
-                } else if (characteristic.getUuid().toString().equals(DEVICE_CHAR_UUID.toString())) {
-                    characteristicCommunicationListener.onCharacteristicCommunicationMassage(characteristic.getValue(), REQUEST_READ_RESOLVE);
-                }
-            } else {
-                switch (communicationType) {
-                    case COMMUNICATION_TYPE_CLOCK:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], CLOCK_READ_REJECT);
-                        break;
-                    case COMMUNICATION_TYPE_REQUEST:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], REQUEST_READ_REJECT);
-                        break;
-                }
+            final UUID characteristicUUID = uuidOf(characteristic);
+            if (characteristicUUID == null) {
+                return;
             }
+            final byte[] value = characteristic.getValue();
+            eventLoop.post(() -> engine.onCharacteristicRead(characteristicUUID, status == BluetoothGatt.GATT_SUCCESS, value));
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic
                 characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            final byte[] data = characteristic.getValue();
-            if (status == BluetoothGatt.GATT_SUCCESS && data != null) {
-                synchronized (mAsyncWriteReadThread) {
-                    isDataSent = true;
-//                    Log.d(TAG, "onCharacteristicWrite: mAsyncWriteReadThread: notify");
-                    mAsyncWriteReadThread.notify();
-                }
-                Log.d(TAG, "Wrote bytes: " + Functions.logBytes(data));
-                if (!requested) {
-                    if (characteristic.getUuid().equals(CLOCK_CHAR_UUID)) {
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], CLOCK_WROTE_RESOLVE);
-                    } else if (characteristic.getUuid().toString().equals(TERMINAL_CHAR_UUID.toString())) {
-                        switch (communicationType) {
-                            case COMMUNICATION_TYPE_DELIVER:
-                                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], DELIVER_WROTE_RESOLVE);
-                                break;
-                            case COMMUNICATION_TYPE_TRANSMIT:
-                                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], TRANSMIT_WROTE_RESOLVE);
-                                break;
-                        }
-                    } else if (characteristic.getUuid().toString().equals(DEVICE_CHAR_UUID.toString())) {
-                        switch (communicationType) {
-                            case COMMUNICATION_TYPE_REQUEST:
-                                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], REQUEST_WROTE_RESOLVE);
-                                break;
-                            case COMMUNICATION_TYPE_UPDATE_FIRMWARE:
-                                if (otaUpdateEnd) {
-                                    characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_RESOLVE);
-                                }
-                                break;
-                        }
-                    }
-                }
-            } else {
-                switch (communicationType) {
-                    case COMMUNICATION_TYPE_DELIVER:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], DELIVER_WROTE_REJECT);
-                        break;
-                    case COMMUNICATION_TYPE_TRANSMIT:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], TRANSMIT_WROTE_REJECT);
-                        break;
-                    case COMMUNICATION_TYPE_REQUEST:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], REQUEST_WROTE_REJECT);
-                        break;
-                    case COMMUNICATION_TYPE_CLOCK:
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], CLOCK_WROTE_REJECT);
-                        break;
-                    case COMMUNICATION_TYPE_UPDATE_FIRMWARE:
-                        otaUpdateFailed = true;
-                        characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_REJECT);
-                }
+            final UUID characteristicUUID = uuidOf(characteristic);
+            if (characteristicUUID == null) {
+                return;
             }
+            if (LOG_FRAMES) Log.d(TAG, "Wrote bytes: " + Functions.formatBytes(characteristic.getValue()));
+            eventLoop.post(() -> engine.onCharacteristicWrite(characteristicUUID, status));
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
+            if (uuidOf(characteristic) != TERMINAL_CHAR_UUID) {
+                return;
+            }
             final byte[] notifiedData = characteristic.getValue();
-
-            characteristicCommunicationListener.onCharacteristicCommunicationMassage(notifiedData, CHARACTERISTIC_NOTIFICATION);
+            eventLoop.post(() -> engine.onNotification(notifiedData));
         }
 
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             super.onMtuChanged(gatt, mtu, status);
-            synchronized (mAsyncWriteReadThread) {
-                isDataSent = true;
-//                Log.d(TAG, "onMtuChanged: mAsyncWriteReadThread: notify");
-                mAsyncWriteReadThread.notify();
-            }
-            Log.d(TAG, "onMtuChanged: " + mtu);
+            Log.d(TAG, "onMtuChanged: " + mtu + ", status " + status);
+            eventLoop.post(() -> engine.onMtuChanged(mtu, status == BluetoothGatt.GATT_SUCCESS));
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            Log.d(TAG, "onPhyUpdate: tx " + txPhy + ", rx " + rxPhy + ", status " + status);
         }
 
 
@@ -287,357 +605,100 @@ public class SpectodaBluetoothServices extends Service {
     }
 
     public void deliver(byte[] command_payload) {
-        communicationType = COMMUNICATION_TYPE_DELIVER;
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            if (!isDataSent) {
-                pauseThread();
-            }
-            try {
-                writeBytes(TERMINAL_CHAR_UUID, command_payload, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            } catch (Exception e) {
-                Log.d(TAG, "deliver: failed with: " + e);
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], DELIVER_WROTE_REJECT);
-            }
-        });
+        eventLoop.post(() -> engine.deliver(command_payload));
     }
 
-    public void transmit(byte[] command_payload) {
-        communicationType = COMMUNICATION_TYPE_TRANSMIT;
-        mAsyncWriteReadThread.mHandler.postAtFrontOfQueue(() -> {
-            if (!isDataSent) {
-                pauseThread();
-            }
-            try {
-                writeBytes(TERMINAL_CHAR_UUID, command_payload, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            } catch (Exception e) {
-                Log.d(TAG, "transmit: failed with: " + e);
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], TRANSMIT_WROTE_REJECT);
-            }
-        });
+    /**
+     * Deliver of a payload read slice by slice as it is written, e.g. a spooled upload.
+     */
+    public void deliver(FirmwareSource command_payload) {
+        eventLoop.post(() -> engine.deliver(command_payload));
     }
 
-    public void request(byte[] command_payload, boolean read_response) {
-        communicationType = COMMUNICATION_TYPE_REQUEST;
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            if (!isDataSent) {
-                pauseThread();
-            }
-
-            requested = read_response;
-            try {
-                writeBytes(DEVICE_CHAR_UUID, command_payload, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            } catch (Exception e) {
-                Log.d(TAG, "request: failed with: " + e);
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], REQUEST_WROTE_REJECT);
-                return;
-            }
-            if (!read_response) {
-                return;
-            }
-            if (!isDataSent) {
-                pauseThread();
-            }
-            readBytes(DEVICE_CHAR_UUID);
-        });
+    public void transmit(byte[] command_payload) {
+        transmit(command_payload, null);
     }
 
-    public void setClock(byte[] clock) {
-        communicationType = COMMUNICATION_TYPE_CLOCK;
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            if (!isDataSent) {
-                pauseThread();
-            }
-            try {
-                writeClock(clock);
-            } catch (Exception e) {
-                Log.d(TAG, "setClock: failed with: " + e);
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], CLOCK_WROTE_REJECT);
-            }
-        });
+    /**
+     * Transmit with last-write-wins semantics: a transmit still waiting in the queue with the same
+     * key is replaced by this one, and resolved right away without being written.
+     *
+     * @param key Identifies the value the payload updates, e.g. {@link Functions#labelToBytes(String)}. Null never supersedes.
+     */
+    public void transmit(byte[] command_payload, byte[] key) {
+        eventLoop.post(() -> engine.transmit(command_payload, key));
     }
 
-    public void getClock() {
-        communicationType = COMMUNICATION_TYPE_CLOCK;
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            if (!isDataSent) {
-                pauseThread();
-            }
-            readBytes(CLOCK_CHAR_UUID);
-        });
-
+    /**
+     * @return Number of queued transmits replaced by a newer one with the same key.
+     */
+    public long getSupersededTransmitCount() {
+        return engine.getSupersededTransmitCount();
     }
 
-    public void updateFirmware(byte[] firmware) {
-        final int FLAG_OTA_BEGIN = 255;
-        final int FLAG_OTA_WRITE = 0;
-        final int FLAG_OTA_END = 254;
-        final int FLAG_OTA_RESET = 253;
-
-        int data_size = 4992; // must by modulo 16
-        otaUpdateFailed = false;
-        otaUpdateEnd = false;
-
-        Log.d(TAG, "writeFirmware: OTA UPDATE");
-        Log.d(TAG, "writeFirmware: firmware");
-        communicationType = COMMUNICATION_TYPE_UPDATE_FIRMWARE;
-        otaUpdateProgressListener.onOTAUpdateProgressChange(-1); // ota_status = begin
-
-        //===========// RESET //===========//
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            Log.d(TAG, "writeFirmware: OTA RESET");
-
-            if (!isDataSent) {
-                pauseThread();
-            }
-            if (otaUpdateFailed) {
-                return;
-            }
-
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(FLAG_OTA_RESET);
-                outputStream.write(0x00);
-                outputStream.write(Functions.integerToBytes(0x00000000, 4));
-            } catch (IOException e) {
-                Log.e(TAG, "" + e);
-            }
-            byte[] bytes = outputStream.toByteArray();
-
-            try {
-                writeBytes(DEVICE_CHAR_UUID, bytes, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            } catch (Exception e) {
-                Log.d(TAG, "updateFirmware: failed");
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_REJECT);
-                otaUpdateFailed = true;
-            }
-        });
-
-        //===========// BEGIN //===========//
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            Log.d(TAG, "writeFirmware: OTA BEGIN");
-
-            if (!isDataSent) {
-                pauseThread();
-            }
-            if (otaUpdateFailed) {
-                return;
-            }
-
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(FLAG_OTA_BEGIN);
-                outputStream.write(0x00);
-                outputStream.write(Functions.integerToBytes(firmware.length, 4));
-            } catch (Exception e) {
-                Log.e(TAG, "" + e);
-            }
-            byte[] bytes = outputStream.toByteArray();
-
-            try {
-                writeBytes(DEVICE_CHAR_UUID, bytes, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            } catch (Exception e) {
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_REJECT);
-                otaUpdateFailed = true;
-            }
-        });
-
-        //===========// WRITE //===========//
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            int indexFrom = 0;
-            int indexTo = data_size;
-
-            writtenUpdate = 0;
-
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Log.d(TAG, "writeFirmware: OTA WRITE");
-
-
-            while (writtenUpdate < firmware.length) {
-                if (indexTo > firmware.length) {
-                    indexTo = firmware.length;
-                }
-
-                if (!isDataSent) {
-                    pauseThread();
-                }
-                if (otaUpdateFailed) {
-                    return;
-                }
-
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                try {
-                    outputStream.write(FLAG_OTA_WRITE);
-                    outputStream.write(0x00);
-                    outputStream.write(Functions.integerToBytes(writtenUpdate, 4));
-                    outputStream.write(Arrays.copyOfRange(firmware, indexFrom, indexTo));
-                } catch (Exception e) {
-                    Log.e(TAG, "" + e);
-                }
-                byte[] bytes = outputStream.toByteArray();
-
-                try {
-                    writeBytes(DEVICE_CHAR_UUID, bytes, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-                } catch (Exception e) {
-                    Log.d(TAG, "updateFirmware: failed");
-                    characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_REJECT);
-                    otaUpdateFailed = true;
-                    return;
-                }
-                writtenUpdate += indexTo - indexFrom;
-                updateProgress = (((float) writtenUpdate) / firmware.length) * 100;
-                if (otaUpdateProgressListener != null)
-                    otaUpdateProgressListener.onOTAUpdateProgressChange(updateProgress);
-
-                Log.d(TAG, "writeFirmware: " + updateProgress + "%");
-
-                indexFrom += data_size;
-                indexTo = indexFrom + data_size;
-            }
-        });
-
-        //===========// END //===========//
-        mAsyncWriteReadThread.mHandler.post(() -> {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            Log.d(TAG, "writeFirmware: OTA END");
-
-            if (!isDataSent) {
-                pauseThread();
-            }
-            if (otaUpdateFailed) {
-                return;
-            }
-
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(FLAG_OTA_END);
-                outputStream.write(0x00);
-                outputStream.write(Functions.integerToBytes(writtenUpdate, 4));
-            } catch (Exception e) {
-                Log.e(TAG, "" + e);
-            }
-            byte[] bytes = outputStream.toByteArray();
-
-            try {
-                otaUpdateEnd = true;
-                writeBytes(DEVICE_CHAR_UUID, bytes, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            } catch (Exception e) {
-                Log.d(TAG, "updateFirmware: failed");
-                characteristicCommunicationListener.onCharacteristicCommunicationMassage(new byte[0], UPDATE_FIRMWARE_REJECT);
-                otaUpdateFailed = true;
-            }
-        });
+    public void request(byte[] command_payload, boolean read_response) {
+        request(command_payload, read_response, NO_REQUEST_ID);
     }
 
-    private void writeClock(byte[] clock) throws Exception {
-        BluetoothGattCharacteristic characteristic = mBluetoothGatt.getService(TANGLE_SERVICE_UUID).getCharacteristic(CLOCK_CHAR_UUID);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-
-        if (!isDataSent) {
-            pauseThread();
-        }
-        isDataSent = false;
-
-        Log.d(TAG, "syncClock: Tray write: " + Functions.logBytes(clock));
-        try {
-            characteristic.setValue(clock);
-            mBluetoothGatt.writeCharacteristic(characteristic);
-        } catch (Exception e) {
-            isDataSent = true;
-            Log.d(TAG, "syncClock: Was not wrote");
-            throw e;
-        }
+    /**
+     * Request whose outcome is reported through
+     * {@link CharacteristicCommunicationListener#onRequestCommunicationMessage(int, byte[], int)}
+     * with the given id, so that several requests can be outstanding at once.
+     */
+    public void request(byte[] command_payload, boolean read_response, int requestId) {
+        eventLoop.post(() -> engine.request(command_payload, read_response, requestId));
     }
 
-    private void writeBytes(UUID characteristicUUID, byte[] payload, int writeType) throws Exception {
-
-        long payloadUuid = (long) (Math.random() * Long.decode("0xffffffff"));
-        int packetSize = 512;
-        int bytesSize = packetSize - 12;
-
-        int indexFrom = 0;
-        int indexTo = bytesSize;
-
-        BluetoothGattCharacteristic characteristic = mBluetoothGatt.getService(TANGLE_SERVICE_UUID).getCharacteristic(characteristicUUID);
-        characteristic.setWriteType(writeType);
-
-        while (indexFrom < payload.length) {
-            if (indexTo > payload.length) {
-                indexTo = payload.length;
-            }
-
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(Functions.longToBytes(payloadUuid, 4));
-                outputStream.write(Functions.longToBytes(indexFrom, 4));
-                outputStream.write(Functions.longToBytes(payload.length, 4));
-                outputStream.write(Arrays.copyOfRange(payload, indexFrom, indexTo));
-            } catch (Exception e) {
-                Log.e(TAG, "" + e);
-            }
-            byte[] bytes = outputStream.toByteArray();
+    /**
+     * @param maxRequestsInFlight How many requests may be written before the response of the
+     *                            oldest one was read. 1 (the default) suits firmware that keeps a
+     *                            single response; responses are matched by the payload id they carry.
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        eventLoop.post(() -> engine.setMaxRequestsInFlight(maxRequestsInFlight));
+    }
 
-            if (!isDataSent) {
-                pauseThread();
-            }
-            isDataSent = false;
+    public void setClock(byte[] clock) {
+        if (LOG_FRAMES) Log.d(TAG, "syncClock: Tray write: " + Functions.formatBytes(clock));
+        eventLoop.post(() -> engine.setClock(clock));
+    }
 
-            Log.d(TAG, "writeBytes: Tray write: " + Functions.logBytes(bytes));
-            try {
-                characteristic.setValue(bytes);
-                mBluetoothGatt.writeCharacteristic(characteristic);
-            } catch (Exception e) {
-                Log.e(TAG, "writeBytes: Value was not wrote");
-                isDataSent = true;
-                throw e;
-            }
+    public void getClock() {
+        eventLoop.post(engine::getClock);
+    }
 
-            indexFrom += bytesSize;
-            indexTo = indexFrom + bytesSize;
-        }
+    public void updateFirmware(byte[] firmware) {
+        updateFirmware(FirmwareSource.of(firmware));
     }
 
-    private void readBytes(UUID characteristicUUID) {
-        BluetoothGattCharacteristic characteristic = mBluetoothGatt.getService(TANGLE_SERVICE_UUID).getCharacteristic(characteristicUUID);
-        Log.d(TAG, "readBytes: characteristic: " + characteristicUUID);
-        mBluetoothGatt.readCharacteristic(characteristic);
+    /**
+     * @param firmware E.g. an image from {@link com.spectoda.connector.firmware.FirmwareCache}, read chunk by chunk while the update runs.
+     */
+    public void updateFirmware(FirmwareSource firmware) {
+        updateFirmware(firmware, null);
     }
 
-    private static class asyncWriteThread extends Thread {
-        public Handler mHandler;
+    /**
+     * Delta update: only a patch from the installed image is sent when the device runs it,
+     * otherwise the whole image.
+     *
+     * @param installed Image of the firmware version the device advertises, null when not at hand.
+     */
+    public void updateFirmware(FirmwareSource firmware, FirmwareSource installed) {
+        Log.d(TAG, "writeFirmware: OTA UPDATE");
+        Log.d(TAG, "writeFirmware: firmware " + firmware.length() + " B" + (installed != null ? ", delta" : ""));
+        otaUpdateProgressListener.onOTAUpdateProgressChange(-1); // ota_status = begin
 
-        @Override
-        public void run() {
-            super.run();
-            Looper.prepare();
-            mHandler = new Handler();
-            Looper.loop();
-        }
+        eventLoop.post(() -> engine.updateFirmware(firmware, installed));
     }
 
-    private void pauseThread() {
-        synchronized (mAsyncWriteReadThread) {
-            try {
-//                Log.d(TAG, "mAsyncWriteReadThread: paused");
-                mAsyncWriteReadThread.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    private UUID uuidOf(BluetoothGattCharacteristic characteristic) {
+        final CharacteristicHandles handles = characteristicHandles;
+        UUID characteristicUUID = handles != null ? handles.uuidOf(characteristic) : null;
+        if (characteristicUUID == null) {
+            Log.w(TAG, "Callback for an unknown characteristic");
         }
+        return characteristicUUID;
     }
 
     public void disconnect() {
@@ -655,9 +716,18 @@ public class SpectodaBluetoothServices extends Service {
         }
     }
 
+    /**
+     * Disconnects and stops the connector thread, for connectors made for a single job such as
+     * one device of a fleet update. The connector cannot be used after.
+     */
+    public void close() {
+        disconnect();
+        mAsyncWriteReadThread.quitSafely();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package com.spectoda.connector;
+
+import android.util.Log;
+import android.view.Choreographer;
+import android.webkit.WebView;
+
+import com.spectoda.connector.codec.JavascriptCallBatch;
+
+/**
+ * Calls functions of the page from any thread. The calls are queued and run once per display
+ * frame by a single evaluateJavascript, a burst of notifications costs the UI thread one script
+ * instead of a page navigation per event.
+ * <p>
+ * Must be made on the UI thread.
+ */
+public class WebViewDispatcher implements Choreographer.FrameCallback {
+    private static final String TAG = WebViewDispatcher.class.getName();
+
+    private final WebView webView;
+    private final JavascriptCallBatch batch;
+    private final Choreographer choreographer;
+    private volatile boolean released;
+
+    /**
+     * @param target Expression of the page object the functions are called on.
+     */
+    public WebViewDispatcher(WebView webView, String target) {
+        this.webView = webView;
+        this.batch = new JavascriptCallBatch(target);
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Queues the call for the next frame.
+     *
+     * @see JavascriptCallBatch#add(String, Object...)
+     */
+    public void call(String function, Object... arguments) {
+        if (released) {
+            return;
+        }
+        if (batch.add(function, arguments)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int count = batch.size();
+        String script = batch.drain();
+        if (script == null || released) {
+            return;
+        }
+        Log.v(TAG, "doFrame: " + count + " calls");
+        webView.evaluateJavascript(script, null);
+    }
+
+    /**
+     * Drops the queued calls, later calls are ignored.
+     */
+    public void release() {
+        released = true;
+        choreographer.removeFrameCallback(this);
+        batch.clear();
+    }
+}
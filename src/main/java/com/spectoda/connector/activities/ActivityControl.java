@@ -41,26 +41,49 @@ import com.spectoda.connector.Functions;
 import com.spectoda.connector.R;
 import com.spectoda.connector.SpectodaBluetoothServices;
 import com.spectoda.connector.SpectodaParameters;
+import com.spectoda.connector.WebViewDispatcher;
+import com.spectoda.connector.codec.Base64Codec;
+import com.spectoda.connector.firmware.FirmwareCache;
+import com.spectoda.connector.firmware.FirmwareSource;
+import com.spectoda.connector.firmware.UploadSpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ActivityControl extends AppCompatActivity {
 
     private static final String TAG = ActivityControl.class.getName();
     private static final int PERMISSION_REQUEST_FINE_LOCATION = 1;
     private static final int PERMISSION_REQUEST_BLUETOOTH = 2;
+    // Logging every payload the page sends formats a copy of it, keep it off outside of debugging
+    private static final boolean LOG_FRAMES = false;
     public static final String USER_SELECT_CANCELED_SELECTION = "userSelect -> reject('UserCanceledSelection')";
     public static final String USER_SELECT_FAILED = "userSelect -> reject('SelectionFailed')";
     public static final String USER_SELECT_RESOLVE = "userSelect -> resolve(tangleParameters)";
+    public static final String UPLOAD_FIRMWARE = "firmware";
+    public static final String UPLOAD_DELIVER = "deliver";
 
     private WebView webView;
+    // Resolves, rejects and events for the page, run once per frame
+    private WebViewDispatcher javascript;
     private FloatingActionButton buttonHome;
     private ConstraintLayout layoutActivityControl;
 
     private SpectodaBluetoothServices connector;
+    private FirmwareCache firmwareCache;
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+    private int nextUploadId = 1;
     private BroadcastReceiver broadcastReceiver;
     private SharedPreferences mSharedPref;
 
     private String macAddress = "";
     private String tangleParametersJson = "";
+    // Firmware the selected device runs, and the version an update from the cache installs
+    private volatile String installedFwVersion = "";
+    private volatile String updatingFwVersion;
     private String homeWebUrl;
     private String webURL;
     private boolean connecting = false;
@@ -81,6 +104,7 @@ public class ActivityControl extends AppCompatActivity {
 
         mSharedPref = getSharedPreferences("webURL", MODE_PRIVATE);
         orientationAdjustable = mSharedPref.getBoolean("orientationAdjustable", true);
+        firmwareCache = new FirmwareCache(new File(getCacheDir(), "firmware"));
 
         setConnectorSpecifications();
 
@@ -202,6 +226,7 @@ public class ActivityControl extends AppCompatActivity {
 
         webView.setWebContentsDebuggingEnabled(true); // pouze pro debugovani
         webView.addJavascriptInterface(new JavascriptHandler(this), "tangleConnect");
+        javascript = new WebViewDispatcher(webView, "window.tangleConnect");
 
 //        if (!isNetworkAvailable()) { // loading offline
 //            webSettings.setCacheMode(WebSettings.LOAD_CACHE_ELSE_NETWORK);
@@ -286,9 +311,11 @@ public class ActivityControl extends AppCompatActivity {
                     case USER_SELECT_RESOLVE:
                         macAddress = intent.getStringExtra("macAddress");
                         connector = new SpectodaBluetoothServices(macAddress, getApplicationContext());
+                        connector.setFirmwareCache(firmwareCache);
                         SpectodaParameters spectodaParameters = intent.getParcelableExtra("tangleParameters");
                         Gson gson = new Gson();
                         tangleParametersJson = gson.toJson(spectodaParameters);
+                        installedFwVersion = spectodaParameters.getFwVersion();
                         sendResolve(tangleParametersJson);
                         break;
                     case USER_SELECT_CANCELED_SELECTION:
@@ -315,16 +342,16 @@ public class ActivityControl extends AppCompatActivity {
                         sendReject("ConnectionFailed");
                         connecting = false;
                     } else if (disconnecting) { // App state disconnecting
-                        webView.loadUrl("javascript:window.tangleConnect.emit('#disconnected');");
+                        javascript.call("emit", "#disconnected");
                         sendResolve();
                         disconnecting = false;
                     } else { // App state running
-                        webView.loadUrl("javascript:window.tangleConnect.emit('#disconnected');");
+                        javascript.call("emit", "#disconnected");
                     }
                     break;
                 case SpectodaBluetoothServices.STATE_CONNECTED:
                     Log.d(TAG, "bluetoothService: Connected");
-                    webView.loadUrl("javascript:window.tangleConnect.emit('#connected');");
+                    javascript.call("emit", "#connected");
                     if (connecting) {
                         connecting = false;
                         sendResolve();
@@ -335,55 +362,78 @@ public class ActivityControl extends AppCompatActivity {
 
         connector.setOTAUpdateProgressListener(updateProgress -> {
             if (updateProgress == -1) {
-                runOnUiThread(() -> webView.loadUrl("javascript:window.tangleConnect.emit('ota_status', 'begin');"));
+                javascript.call("emit", "ota_status", "begin");
             } else {
                 Log.d(TAG, "onOtaUpdateProgress: " + updateProgress);
-                runOnUiThread(() -> webView.loadUrl("javascript:window.tangleConnect.emit('ota_progress', " + updateProgress + ");"));
+                javascript.call("emit", "ota_progress", updateProgress);
             }
         });
 
-        connector.setCharacteristicCommunicationListener((bytes, communicationType) -> {
-            switch (communicationType) {
-                case SpectodaBluetoothServices.CLOCK_READ_RESOLVE:
-                case SpectodaBluetoothServices.REQUEST_READ_RESOLVE:
-                    sendResolve(bytes);
-                    break;
-                case SpectodaBluetoothServices.REQUEST_WROTE_RESOLVE:
-                    if (!readResponse) {
+        connector.setCharacteristicCommunicationListener(new SpectodaBluetoothServices.CharacteristicCommunicationListener() {
+            @Override
+            public void onCharacteristicCommunicationMassage(byte[] bytes, int communicationType) {
+                switch (communicationType) {
+                    case SpectodaBluetoothServices.CLOCK_READ_RESOLVE:
+                    case SpectodaBluetoothServices.REQUEST_READ_RESOLVE:
+                        sendResolve(bytes);
+                        break;
+                    case SpectodaBluetoothServices.REQUEST_WROTE_RESOLVE:
+                        if (!readResponse) {
+                            sendResolve();
+                        }
+                        break;
+                    case SpectodaBluetoothServices.CLOCK_WROTE_RESOLVE:
+                    case SpectodaBluetoothServices.DELIVER_WROTE_RESOLVE:
+                    case SpectodaBluetoothServices.TRANSMIT_WROTE_RESOLVE:
                         sendResolve();
-                    }
-                    break;
-                case SpectodaBluetoothServices.CLOCK_WROTE_RESOLVE:
-                case SpectodaBluetoothServices.DELIVER_WROTE_RESOLVE:
-                case SpectodaBluetoothServices.TRANSMIT_WROTE_RESOLVE:
-                    sendResolve();
-                    break;
-                case SpectodaBluetoothServices.CLOCK_READ_REJECT:
-                    sendReject("ClockReadFailed");
-                    break;
-                case SpectodaBluetoothServices.CLOCK_WROTE_REJECT:
-                    sendReject("ClockWriteFailed");
-                    break;
-                case SpectodaBluetoothServices.REQUEST_READ_REJECT:
-                case SpectodaBluetoothServices.REQUEST_WROTE_REJECT:
-                    sendReject("RequestFailed");
-                    break;
-                case SpectodaBluetoothServices.DELIVER_WROTE_REJECT:
-                    sendReject("DeliverFailed");
-                    break;
-                case SpectodaBluetoothServices.TRANSMIT_WROTE_REJECT:
-                    sendReject("TransmitFailed");
-                    break;
-                case SpectodaBluetoothServices.UPDATE_FIRMWARE_RESOLVE:
-                    runOnUiThread(() -> webView.loadUrl("javascript:window.tangleConnect.emit('ota_status', 'success');"));
-                    sendResolve();
-                    break;
-                case SpectodaBluetoothServices.UPDATE_FIRMWARE_REJECT:
-                    runOnUiThread(() -> webView.loadUrl("javascript:window.tangleConnect.emit('ota_status', 'fail');"));
-                    sendReject("UpdateFailed");
-                    break;
-                case SpectodaBluetoothServices.CHARACTERISTIC_NOTIFICATION:
-                    runOnUiThread(()-> webView.loadUrl("javascript:window.tangleConnect.emit('#bytecode', "+ Functions.logBytes(bytes) +");"));
+                        break;
+                    case SpectodaBluetoothServices.CLOCK_READ_REJECT:
+                        sendReject("ClockReadFailed");
+                        break;
+                    case SpectodaBluetoothServices.CLOCK_WROTE_REJECT:
+                        sendReject("ClockWriteFailed");
+                        break;
+                    case SpectodaBluetoothServices.REQUEST_READ_REJECT:
+                    case SpectodaBluetoothServices.REQUEST_WROTE_REJECT:
+                        sendReject("RequestFailed");
+                        break;
+                    case SpectodaBluetoothServices.DELIVER_WROTE_REJECT:
+                        sendReject("DeliverFailed");
+                        break;
+                    case SpectodaBluetoothServices.TRANSMIT_WROTE_REJECT:
+                        sendReject("TransmitFailed");
+                        break;
+                    case SpectodaBluetoothServices.UPDATE_FIRMWARE_RESOLVE:
+                        installedFwVersion = updatingFwVersion != null ? updatingFwVersion : "";
+                        updatingFwVersion = null;
+                        javascript.call("emit", "ota_status", "success");
+                        sendResolve();
+                        break;
+                    case SpectodaBluetoothServices.UPDATE_FIRMWARE_REJECT:
+                        javascript.call("emit", "ota_status", "fail");
+                        sendReject("UpdateFailed");
+                        break;
+                    case SpectodaBluetoothServices.UPDATE_FIRMWARE_INTEGRITY_REJECT:
+                        javascript.call("emit", "ota_status", "fail");
+                        sendReject("UpdateIntegrityFailed");
+                        break;
+                    case SpectodaBluetoothServices.CHARACTERISTIC_NOTIFICATION:
+                        javascript.call("emit", "#bytecode", bytes);
+                }
+            }
+
+            @Override
+            public void onRequestCommunicationMessage(int requestId, byte[] bytes, int communicationType) {
+                switch (communicationType) {
+                    case SpectodaBluetoothServices.REQUEST_READ_RESOLVE:
+                    case SpectodaBluetoothServices.REQUEST_WROTE_RESOLVE:
+                        sendRequestResolve(requestId, bytes);
+                        break;
+                    case SpectodaBluetoothServices.REQUEST_READ_REJECT:
+                    case SpectodaBluetoothServices.REQUEST_WROTE_REJECT:
+                        sendRequestReject(requestId, "RequestFailed");
+                        break;
+                }
             }
         });
     }
@@ -400,7 +450,9 @@ public class ActivityControl extends AppCompatActivity {
             Gson gson = new Gson();
             macAddress = nearestDevice.getDevice().getAddress();
             tangleParametersJson = gson.toJson(nearestSpectodaParameters);
+            installedFwVersion = nearestSpectodaParameters.getFwVersion();
             connector = new SpectodaBluetoothServices(macAddress, getApplicationContext());
+            connector.setFirmwareCache(firmwareCache);
             sendResolve(tangleParametersJson);
         } else {
             sendReject("SelectionFailed");
@@ -408,68 +460,47 @@ public class ActivityControl extends AppCompatActivity {
     }
 
     private void sendResolveNull() {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.resolve(null);");
-            webView.loadUrl("javascript:window.tangleConnect.resolve(null);");
-        });
+        javascript.call("resolve", (Object) null);
     }
 
     private void sendResolve() {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.resolve();");
-            webView.loadUrl("javascript:window.tangleConnect.resolve();");
-        });
+        javascript.call("resolve");
     }
 
     private void sendResolve(String data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.resolve('" + data.replaceAll("'", "\\'") + "');");
-            webView.loadUrl("javascript:window.tangleConnect.resolve('" + data.replaceAll("'", "\\'") + "');");
-        });
-
+        javascript.call("resolve", data);
     }
 
     private void sendResolve(int data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.resolve(" + data + ");");
-            webView.loadUrl("javascript:window.tangleConnect.resolve(" + data + ");");
-        });
+        javascript.call("resolve", data);
     }
 
     private void sendResolve(byte[] data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.resolve(" + Functions.logBytes(data) + ");");
-            webView.loadUrl("javascript:window.tangleConnect.resolve(" + Functions.logBytes(data) + ");");
-        });
+        javascript.call("resolve", (Object) data);
+    }
+
+    private void sendRequestResolve(int requestId, byte[] data) {
+        javascript.call("resolveRequest", requestId, data);
+    }
+
+    private void sendRequestReject(int requestId, String data) {
+        javascript.call("rejectRequest", requestId, data);
     }
 
     private void sendReject() {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.reject();");
-            webView.loadUrl("javascript:window.tangleConnect.reject();");
-        });
+        javascript.call("reject");
     }
 
     private void sendReject(String data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.reject('" + data.replaceAll("'", "\\'") + "');");
-            webView.loadUrl("javascript:window.tangleConnect.reject('" + data.replaceAll("'", "\\'") + "');");
-        });
-
+        javascript.call("reject", data);
     }
 
     private void sendReject(int data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.reject(" + data + ");");
-            webView.loadUrl("javascript:window.tangleConnect.reject(" + data + ");");
-        });
+        javascript.call("reject", data);
     }
 
     private void sendReject(byte[] data) {
-        runOnUiThread(() -> {
-            Log.d(TAG, "javascript:window.tangleConnect.reject(" + Functions.logBytes(data) + ");");
-            webView.loadUrl("javascript:window.tangleConnect.reject(" + Functions.logBytes(data) + ");");
-        });
+        javascript.call("reject", (Object) data);
     }
 
     private void hideSystemUI() {
@@ -588,14 +619,33 @@ public class ActivityControl extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        synchronized (uploads) {
+            for (Upload upload : uploads.values()) {
+                upload.spool.close();
+            }
+            uploads.clear();
+        }
         if (connector != null) {
             connector.disconnect();
             connector = null;
         }
+        if (javascript != null) {
+            javascript.release();
+        }
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
         super.onDestroy();
     }
 
+    private static final class Upload {
+        final String target;
+        final UploadSpool spool;
+
+        Upload(String target, UploadSpool spool) {
+            this.target = target;
+            this.spool = spool;
+        }
+    }
+
     public class JavascriptHandler {
         private final String TAG = JavascriptHandler.class.getName();
         Context mContext;
@@ -696,6 +746,7 @@ public class ActivityControl extends AppCompatActivity {
             Log.d(TAG, "unselect: ");
             macAddress = "";
             tangleParametersJson = "";
+            installedFwVersion = "";
 
             if (connector != null) {
                 connector.disconnect();
@@ -755,7 +806,7 @@ public class ActivityControl extends AppCompatActivity {
                 return;
             }
 
-            Log.d(TAG, "deliver: " + Functions.logBytes(command_payload));
+            if (LOG_FRAMES) Log.d(TAG, "deliver: " + Functions.formatBytes(command_payload));
             if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
                 connector.deliver(command_payload);
             } else {
@@ -763,13 +814,22 @@ public class ActivityControl extends AppCompatActivity {
             }
         }
 
+        /**
+         * Deliver of a payload encoded with btoa, the bridge passes it as one string instead of
+         * converting every element of an array.
+         **/
+        @JavascriptInterface
+        public void deliverBase64(String command_payload) {
+            deliver(decodeBase64(command_payload));
+        }
+
         @JavascriptInterface
         public void transmit(byte[] command_payload) {
             if (command_payload == null) {
                 sendReject("TransmitFailed");
                 return;
             }
-            Log.d(TAG, "transmit: " + Functions.logBytes(command_payload));
+            if (LOG_FRAMES) Log.d(TAG, "transmit: " + Functions.formatBytes(command_payload));
             if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
                 connector.transmit(command_payload);
             } else {
@@ -777,13 +837,41 @@ public class ActivityControl extends AppCompatActivity {
             }
         }
 
+        /**
+         * Transmit that replaces a transmit with the same key which is still waiting to be written.
+         *
+         * @param key Label of the value the payload updates, only its first 5 characters are used.
+         **/
+        @JavascriptInterface
+        public void transmit(byte[] command_payload, String key) {
+            if (command_payload == null) {
+                sendReject("TransmitFailed");
+                return;
+            }
+            if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
+                connector.transmit(command_payload, key != null ? Functions.labelToBytes(key) : null);
+            } else {
+                sendReject("DeviceDisconnected");
+            }
+        }
+
+        @JavascriptInterface
+        public void transmitBase64(String command_payload) {
+            transmit(decodeBase64(command_payload));
+        }
+
+        @JavascriptInterface
+        public void transmitBase64(String command_payload, String key) {
+            transmit(decodeBase64(command_payload), key);
+        }
+
         @JavascriptInterface
         public void request(byte[] command_payload, boolean read_response) {
             if (command_payload == null) {
                 sendReject("RequestFailed");
                 return;
             }
-            Log.d(TAG, "request: " + Functions.logBytes(command_payload) + ", readResponse: " + read_response);
+            if (LOG_FRAMES) Log.d(TAG, "request: " + Functions.formatBytes(command_payload) + ", readResponse: " + read_response);
 
             readResponse = read_response;
             if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
@@ -793,6 +881,31 @@ public class ActivityControl extends AppCompatActivity {
             }
         }
 
+        /**
+         * Request resolved through window.tangleConnect.resolveRequest(request_id, response) or
+         * rejected through window.tangleConnect.rejectRequest(request_id, error), so several
+         * requests can be outstanding at once.
+         **/
+        @JavascriptInterface
+        public void request(byte[] command_payload, boolean read_response, int request_id) {
+            if (command_payload == null) {
+                sendRequestReject(request_id, "RequestFailed");
+                return;
+            }
+            if (LOG_FRAMES) Log.d(TAG, "request: " + request_id + ": " + Functions.formatBytes(command_payload) + ", readResponse: " + read_response);
+
+            if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
+                connector.request(command_payload, read_response, request_id);
+            } else {
+                sendRequestReject(request_id, "DeviceDisconnected");
+            }
+        }
+
+        @JavascriptInterface
+        public void requestBase64(String command_payload, boolean read_response, int request_id) {
+            request(decodeBase64(command_payload), read_response, request_id);
+        }
+
         @JavascriptInterface
         public void writeClock(byte[] timeStamp) {
             if (timeStamp == null) {
@@ -800,7 +913,7 @@ public class ActivityControl extends AppCompatActivity {
                 return;
             }
 
-            Log.d(TAG, "writeClock: " + Functions.logBytes(timeStamp));
+            if (LOG_FRAMES) Log.d(TAG, "writeClock: " + Functions.formatBytes(timeStamp));
             if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
                 connector.setClock(timeStamp);
             } else {
@@ -824,6 +937,7 @@ public class ActivityControl extends AppCompatActivity {
             Log.d(TAG, "updateFirmware: ");
             if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
                 if (firmware != null) {
+                    updatingFwVersion = null;
                     connector.updateFirmware(firmware);
                 } else {
                     sendReject("FirmwareNull");
@@ -833,6 +947,166 @@ public class ActivityControl extends AppCompatActivity {
             }
         }
 
+        /**
+         * Update from an image the connector downloads itself, a repeated update to the same
+         * version takes the image from the disk cache instead of downloading it again. When the
+         * cache also holds the version the device advertises, only a patch from it is sent.
+         *
+         * @param sha256 Hex SHA-256 of the image, or null to trust the server.
+         **/
+        @JavascriptInterface
+        public void updateFWFromUrl(String url, String version, String sha256) {
+            Log.d(TAG, "updateFirmware: " + version + " from " + url);
+            if (url == null || version == null) {
+                sendReject("FirmwareNull");
+                return;
+            }
+            if (connector == null || connector.getConnectionState() != SpectodaBluetoothServices.STATE_CONNECTED) {
+                sendReject("DeviceDisconnected");
+                return;
+            }
+
+            String installedVersion = installedFwVersion;
+            new Thread(() -> {
+                FirmwareSource firmware;
+                FirmwareSource installed = null;
+                try {
+                    firmware = firmwareCache.fetch(new URL(url), version, sha256);
+                    if (!installedVersion.isEmpty() && !installedVersion.equals(version)) {
+                        installed = firmwareCache.get(installedVersion, null);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "updateFirmware: download failed", e);
+                    sendReject("FirmwareDownloadFailed");
+                    return;
+                }
+                if (connector != null && connector.getConnectionState() == SpectodaBluetoothServices.STATE_CONNECTED) {
+                    updatingFwVersion = version;
+                    connector.updateFirmware(firmware, installed);
+                } else {
+                    sendReject("DeviceDisconnected");
+                }
+            }).start();
+        }
+
+        /**
+         * Starts an upload handed over in chunks through {@link #appendUpload}, so a large payload
+         * never crosses the bridge or sits on the heap as a whole. Resolves the upload id.
+         *
+         * @param target "firmware" to update the firmware with the payload on commit, "deliver" to deliver it.
+         * @param length Size of the whole payload in bytes.
+         **/
+        @JavascriptInterface
+        public void beginUpload(String target, int length) {
+            Log.d(TAG, "beginUpload: " + target + ", " + length + " B");
+            if (!UPLOAD_FIRMWARE.equals(target) && !UPLOAD_DELIVER.equals(target)) {
+                sendReject("UploadInvalid");
+                return;
+            }
+            UploadSpool spool;
+            try {
+                spool = UploadSpool.create(new File(getCacheDir(), "uploads"), length);
+            } catch (IOException e) {
+                Log.e(TAG, "beginUpload: ", e);
+                sendReject("UploadFailed");
+                return;
+            }
+            int uploadId;
+            synchronized (uploads) {
+                uploadId = nextUploadId++;
+                uploads.put(uploadId, new Upload(target, spool));
+            }
+            sendResolve(uploadId);
+        }
+
+        /**
+         * Writes the next chunk of the upload, resolves the number of bytes written so far. The
+         * page should wait for the resolve before it sends the next chunk.
+         *
+         * @param offset Offset of the chunk in the payload, chunks have to come in order.
+         **/
+        @JavascriptInterface
+        public void appendUpload(int upload_id, int offset, byte[] chunk) {
+            Upload upload;
+            synchronized (uploads) {
+                upload = uploads.get(upload_id);
+            }
+            if (upload == null || chunk == null) {
+                sendReject("UploadInvalid");
+                return;
+            }
+            try {
+                upload.spool.append(offset, chunk);
+            } catch (IOException e) {
+                Log.e(TAG, "appendUpload: " + upload_id, e);
+                synchronized (uploads) {
+                    uploads.remove(upload_id);
+                }
+                upload.spool.close();
+                sendReject("UploadFailed");
+                return;
+            }
+            sendResolve(upload.spool.getWritten());
+        }
+
+        @JavascriptInterface
+        public void appendUploadBase64(int upload_id, int offset, String chunk) {
+            appendUpload(upload_id, offset, decodeBase64(chunk));
+        }
+
+        /**
+         * Ends the upload and hands the payload to its target, resolves or rejects as the target does.
+         **/
+        @JavascriptInterface
+        public void commitUpload(int upload_id) {
+            Log.d(TAG, "commitUpload: " + upload_id);
+            Upload upload;
+            synchronized (uploads) {
+                upload = uploads.remove(upload_id);
+            }
+            if (upload == null) {
+                sendReject("UploadInvalid");
+                return;
+            }
+            if (connector == null || connector.getConnectionState() != SpectodaBluetoothServices.STATE_CONNECTED) {
+                upload.spool.close();
+                sendReject("DeviceDisconnected");
+                return;
+            }
+
+            FirmwareSource payload;
+            try {
+                payload = upload.spool.commit();
+            } catch (IOException e) {
+                Log.e(TAG, "commitUpload: " + upload_id, e);
+                sendReject("UploadFailed");
+                return;
+            }
+            if (UPLOAD_FIRMWARE.equals(upload.target)) {
+                updatingFwVersion = null;
+                connector.updateFirmware(payload);
+                return;
+            }
+            // Streamed from the spool frame by frame, it is never on the heap as a whole
+            connector.deliver(payload);
+        }
+
+        /**
+         * Drops the upload and what was written of it.
+         **/
+        @JavascriptInterface
+        public void abortUpload(int upload_id) {
+            Log.d(TAG, "abortUpload: " + upload_id);
+            Upload upload;
+            synchronized (uploads) {
+                upload = uploads.remove(upload_id);
+            }
+            if (upload != null) {
+                upload.spool.close();
+            }
+            sendResolve();
+        }
+
         /**
          * Function open will open url, which is in parameter, in webView or other preferred application.
          *
@@ -885,5 +1159,18 @@ public class ActivityControl extends AppCompatActivity {
             sendResolve();
         }
 
+        // Null for text that is not base64, the methods reject a null payload
+        private byte[] decodeBase64(String text) {
+            if (text == null) {
+                return null;
+            }
+            try {
+                return Base64Codec.decode(text);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "decodeBase64: " + e.getMessage());
+                return null;
+            }
+        }
+
     }
 }
\ No newline at end of file